@@ -0,0 +1,285 @@
+package org.apache.plugins;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost per request of the access log valves, with their default patterns.
+ * The JDBC valve writes to an in-memory H2 database, the Cloudwatch valve to
+ * a client that discards the records, the JDK valve to a no-op handler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccessLogValveBenchmark {
+
+	private CloudwatchAccessLogJsonValve cloudwatchValve;
+
+	private CloudwatchAccessLogJsonValve deferredCloudwatchValve;
+
+	private AccessLogJdkValve jdkValve;
+
+	private Request request;
+
+	private Response response;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, SQLException, LifecycleException {
+		request = BenchmarkRequests.request();
+		response = BenchmarkRequests.response(request);
+
+		cloudwatchValve = new CloudwatchAccessLogJsonValve(new DiscardingClient()) {
+			@Override
+			protected void initInternal() {
+				// no container to register with
+			}
+		};
+		cloudwatchValve.setPattern("default");
+		cloudwatchValve.start();
+
+		deferredCloudwatchValve = new CloudwatchAccessLogJsonValve(new DiscardingClient()) {
+			@Override
+			protected void initInternal() {
+				// no container to register with
+			}
+		};
+		deferredCloudwatchValve.setDeferred(true);
+		deferredCloudwatchValve.setPattern("default");
+		deferredCloudwatchValve.start();
+
+		Logger jdkLogger = Logger.getLogger(AccessLogJdkValve.class.getName());
+		jdkLogger.setUseParentHandlers(false);
+		jdkLogger.addHandler(new DiscardingHandler());
+		jdkValve = new AccessLogJdkValve() {
+			@Override
+			protected void initInternal() {
+				// no container to register with
+			}
+		};
+		// the pattern of the commented out valve in server.xml
+		jdkValve.setPattern("rip=%a lip=%A Ref=\"%{Referer}i\" UA=\"%{User-Agent}i\" session=%S uid=%{user_id}s"
+				+ " apx=%{agent_proxy}s ttfb=%F t=%D b=%B th=%I %H %m %s %U%q");
+		jdkValve.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws LifecycleException {
+		cloudwatchValve.stop();
+		deferredCloudwatchValve.stop();
+		jdkValve.stop();
+	}
+
+	@State(Scope.Benchmark)
+	public static class JdbcState {
+
+		/**
+		 * The valve's mode: a row per insert, batched by a writer thread,
+		 * batched and rendered by the writer thread, batched by four writers
+		 * partitioned by thread (run with -t 4), or batched with user_agent,
+		 * referer, url and host written as dimension ids
+		 */
+		@Param({ "sync", "async", "deferred", "parallel", "normalized" })
+		public String mode;
+
+		private AccessLogJdbcValve valve;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException, SQLException, LifecycleException {
+			createDatabase();
+			valve = new AccessLogJdbcValve() {
+				@Override
+				protected void initInternal() {
+					// no container to register with
+				}
+			};
+			valve.setAsync(!"sync".equals(mode));
+			valve.setDeferred("deferred".equals(mode));
+			if ("parallel".equals(mode)) {
+				valve.setWorkers(4);
+			} else if ("normalized".equals(mode)) {
+				valve.setTable("log_access_normalized");
+				valve.setDimensions("user_agent,referer,url,host");
+			}
+			valve.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws LifecycleException {
+			valve.stop();
+		}
+	}
+
+	/**
+	 * One valve feeding CloudWatch (discarded) and JDBC, in place of the two
+	 * valves
+	 */
+	@State(Scope.Benchmark)
+	public static class MultiSinkState {
+
+		private MultiSinkAccessLogValve valve;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException, SQLException, LifecycleException {
+			createDatabase();
+			valve = new MultiSinkAccessLogValve() {
+				@Override
+				protected void initInternal() {
+					// no container to register with
+				}
+			};
+			valve.setSinks(DiscardingCloudwatchSink.class.getName() + "," + JdbcAccessLogSink.class.getName());
+			valve.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws LifecycleException {
+			valve.stop();
+		}
+	}
+
+	@Benchmark
+	public void cloudwatchJsonValve() {
+		cloudwatchValve.log(request, response, 12);
+	}
+
+	/**
+	 * The request thread's share only: the discarding client never renders
+	 */
+	@Benchmark
+	public void cloudwatchJsonValveDeferred() {
+		deferredCloudwatchValve.log(request, response, 12);
+	}
+
+	@Benchmark
+	public void jdbcValve(JdbcState jdbc) {
+		jdbc.valve.log(request, response, 12);
+	}
+
+	@Benchmark
+	public void multiSinkValve(MultiSinkState multiSink) {
+		multiSink.valve.log(request, response, 12);
+	}
+
+	@Benchmark
+	public void jdkValve() {
+		jdkValve.log(request, response, 12);
+	}
+
+	/**
+	 * Points JdbcConnectionPool at a fresh in-memory H2 database holding the
+	 * log_access table of the default pattern, its normalized variant, and the
+	 * log_application and log_stack_trace tables of JdbcHandler
+	 */
+	static void createDatabase() throws IOException, SQLException {
+		String url = "jdbc:h2:mem:logs;MODE=MySQL;DB_CLOSE_DELAY=-1";
+		Properties p = new Properties();
+		p.setProperty("database.url", url);
+		p.setProperty("database.driver.classname", "org.h2.Driver");
+		p.setProperty("database.username", "sa");
+		p.setProperty("database.password", "");
+		File dir = new File(System.getProperty("java.io.tmpdir"), "benchmarks-" + System.nanoTime());
+		dir.mkdirs();
+		dir.deleteOnExit();
+		File file = new File(dir, "tomcat_db_logging.properties");
+		file.deleteOnExit();
+		try (OutputStream os = new FileOutputStream(file)) {
+			p.store(os, null);
+		}
+		System.setProperty("ctc.config.path", dir.toURI().toString());
+
+		try (Connection connection = DriverManager.getConnection(url, "sa", "");
+				Statement statement = connection.createStatement()) {
+			statement.execute("create table if not exists log_access ("
+					+ "id bigint auto_increment primary key, server_ts timestamp, remote_ip varchar(46),"
+					+ " local_ip varchar(46), method varchar(10), url text, query_string text,"
+					+ " protocol varchar(30), http_status int, bytes_sent bigint, referer text,"
+					+ " user_agent text, time_elapsed bigint, session_id varchar(99), user_id varchar(99),"
+					+ " agent_proxy varchar(99), agent_id varchar(99), time_to_first_byte bigint,"
+					+ " thread_name varchar(99), host varchar(250), sample_weight int default 1)");
+			statement.execute("create table if not exists log_application ("
+					+ "id bigint auto_increment primary key, level varchar(7), hostname varchar(255),"
+					+ " dbTimeStamp timestamp, millis bigint, loggerName varchar(255), message text,"
+					+ " sequenceNumber int, sourceClassName varchar(255), sourceMethodName varchar(255),"
+					+ " threadID int, thrown text)");
+			statement.execute("create table if not exists log_stack_trace ("
+					+ "fingerprint char(16) primary key, exception varchar(255), trace text, first_seen timestamp)");
+			statement.execute("create table if not exists log_access_normalized ("
+					+ "id bigint auto_increment primary key, server_ts timestamp, remote_ip varchar(46),"
+					+ " local_ip varchar(46), method varchar(10), url_id int, query_string text,"
+					+ " protocol varchar(30), http_status int, bytes_sent bigint, referer_id int,"
+					+ " user_agent_id int, time_elapsed bigint, session_id varchar(99), user_id varchar(99),"
+					+ " agent_proxy varchar(99), agent_id varchar(99), time_to_first_byte bigint,"
+					+ " thread_name varchar(99), host_id int, sample_weight int default 1)");
+			for (String dimension : new String[] { "user_agent", "referer", "url", "host" }) {
+				statement.execute("create table if not exists log_" + dimension
+						+ " (id int auto_increment primary key, hash bigint not null unique, value text not null)");
+			}
+		}
+	}
+
+	private static class DiscardingClient extends CloudwatchClient {
+
+		DiscardingClient() {
+			super(new java.util.logging.SimpleFormatter(), "benchmark", "benchmark");
+		}
+
+		@Override
+		public void publish(LogRecord record) {
+			// discarded
+		}
+	}
+
+	public static class DiscardingCloudwatchSink extends CloudwatchAccessLogSink {
+
+		public DiscardingCloudwatchSink() {
+			super(new DiscardingClient());
+		}
+	}
+
+	private static class DiscardingHandler extends Handler {
+
+		@Override
+		public void publish(LogRecord record) {
+			// discarded
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package org.apache.plugins;
+
+import org.apache.catalina.connector.OutputBuffer;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+/**
+ * Real (not mocked) request and response objects, so that the benchmarks
+ * measure the valves and not the mocking framework.
+ */
+final class BenchmarkRequests {
+
+	private BenchmarkRequests() {
+	}
+
+	static Request request() {
+		org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+		coyoteRequest.method().setString("GET");
+		coyoteRequest.requestURI().setString("/api/v1/accounts/12345/orders");
+		coyoteRequest.queryString().setString("page=2&size=50");
+		coyoteRequest.protocol().setString("HTTP/1.1");
+		coyoteRequest.getMimeHeaders().addValue("Host").setString("www.example.com");
+		coyoteRequest.getMimeHeaders().addValue("Referer").setString("https://www.example.com/orders?page=1");
+		coyoteRequest.getMimeHeaders().addValue("User-Agent")
+				.setString("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko)");
+		coyoteRequest.setStartTime(System.currentTimeMillis());
+
+		Request request = new Request();
+		request.setCoyoteRequest(coyoteRequest);
+		return request;
+	}
+
+	static Response response(Request request) {
+		org.apache.coyote.Response coyoteResponse = new org.apache.coyote.Response();
+		coyoteResponse.setStatus(200);
+		coyoteResponse.setCommitted(true);
+		coyoteResponse.setOutputBuffer(new org.apache.coyote.OutputBuffer() {
+			@Override
+			public int doWrite(ByteChunk chunk, org.apache.coyote.Response response) {
+				return chunk.getLength();
+			}
+
+			@Override
+			public long getBytesWritten() {
+				return 5120;
+			}
+		});
+
+		Response response = new Response() {
+			{
+				// normally created by setConnector
+				outputBuffer = new OutputBuffer();
+			}
+		};
+		response.setCoyoteResponse(coyoteResponse);
+		response.setRequest(request);
+		return response;
+	}
+}
@@ -0,0 +1,142 @@
+package org.apache.plugins;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.amazonaws.services.logs.AWSLogsClient;
+import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import com.amazonaws.services.logs.model.PutLogEventsResult;
+
+/**
+ * CloudwatchClient against a mocked AWSLogsClient that answers at once:
+ * publish from 1 to 256 producer threads, with the background senders
+ * draining, shows how the buffer scales under contention; flush shows the
+ * cost of formatting, packing and sending a batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CloudwatchClientBenchmark {
+
+	/**
+	 * Small enough to fit the buffer stripe of a single producer thread
+	 */
+	private static final int BATCH = 100;
+
+	static AWSLogsClient mockLogsClient() {
+		// stubOnly: do not record the invocations for verification
+		AWSLogsClient awsLogsClient = Mockito.mock(AWSLogsClient.class, Mockito.withSettings().stubOnly());
+		PutLogEventsResult result = new PutLogEventsResult();
+		result.setNextSequenceToken("1");
+		Mockito.when(awsLogsClient.putLogEvents(Mockito.any(PutLogEventsRequest.class))).thenReturn(result);
+		return awsLogsClient;
+	}
+
+	@State(Scope.Benchmark)
+	public static class Draining {
+
+		CloudwatchClient client;
+
+		@Setup
+		public void setUp() {
+			client = new CloudwatchClient(new SimpleFormatter(), "benchmark", "benchmark");
+			client.awsLogsClient = mockLogsClient();
+			client.initializeBackgroundThreads();
+		}
+
+		@TearDown
+		public void tearDown() {
+			client.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Filled {
+
+		CloudwatchClient client;
+
+		@Setup
+		public void setUp() {
+			client = new CloudwatchClient(new SimpleFormatter(), "benchmark", "benchmark");
+			client.awsLogsClient = mockLogsClient();
+			// flush only sends once the client is ready
+			client.initializeBackgroundThreads();
+		}
+
+		@TearDown
+		public void tearDown() {
+			client.close();
+		}
+
+		@Setup(org.openjdk.jmh.annotations.Level.Invocation)
+		public void fill() {
+			for (int i = 0; i < BATCH; i++) {
+				client.publish(new LogRecord(Level.INFO, "GET /api/v1/accounts/12345/orders 200 " + i));
+			}
+		}
+	}
+
+	private static LogRecord record() {
+		return new LogRecord(Level.INFO, "GET /api/v1/accounts/12345/orders 200");
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void publish1(Draining state) {
+		state.client.publish(record());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void publish4(Draining state) {
+		state.client.publish(record());
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void publish16(Draining state) {
+		state.client.publish(record());
+	}
+
+	@Benchmark
+	@Threads(64)
+	public void publish64(Draining state) {
+		state.client.publish(record());
+	}
+
+	@Benchmark
+	@Threads(256)
+	public void publish256(Draining state) {
+		state.client.publish(record());
+	}
+
+	/**
+	 * Sends the BATCH records buffered by the setup, per record
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void flush(Filled state, Blackhole bh) {
+		state.client.flush();
+		bh.consume(state.client.getQueueDepth());
+	}
+}
@@ -0,0 +1,225 @@
+package org.apache.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the CloudWatch Logs endpoint, speaking the AWS JSON 1.1
+ * protocol of the SDK: DescribeLogGroups, CreateLogGroup, CreateLogStream and
+ * PutLogEvents with sequence tokens. It counts the events it stores and can
+ * add latency, throttle requests, invalidate sequence tokens (as another
+ * writer of the stream would) and go down for periods of time.
+ */
+public class FakeCloudwatchLogs {
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	private final ObjectMapper om = new ObjectMapper();
+
+	/**
+	 * The next expected sequence token of each stream
+	 */
+	private final Map<String, String> tokens = new ConcurrentHashMap<>();
+
+	private final AtomicLong nextToken = new AtomicLong();
+
+	private final long started = System.currentTimeMillis();
+
+	final LongAdder events = new LongAdder();
+
+	final LongAdder bytes = new LongAdder();
+
+	final LongAdder puts = new LongAdder();
+
+	final LongAdder throttled = new LongAdder();
+
+	final LongAdder tokenErrors = new LongAdder();
+
+	final LongAdder unavailable = new LongAdder();
+
+	/**
+	 * Milliseconds added to each request
+	 */
+	volatile long latency;
+
+	/**
+	 * Share of PutLogEvents requests refused with ThrottlingException
+	 */
+	volatile double throttleRate;
+
+	/**
+	 * Share of PutLogEvents requests for which the token changes first
+	 */
+	volatile double tokenErrorRate;
+
+	/**
+	 * Every outageEvery milliseconds, fail all requests for outageLength
+	 * milliseconds; 0 never
+	 */
+	volatile long outageEvery;
+
+	volatile long outageLength;
+
+	public FakeCloudwatchLogs() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		executor = Executors.newFixedThreadPool(8, r -> {
+			Thread t = new Thread(r, "FakeCloudwatchLogs");
+			t.setDaemon(true);
+			return t;
+		});
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public String getEndpoint() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+			String action = target == null ? "" : target.substring(target.indexOf('.') + 1);
+			JsonNode request;
+			try (InputStream in = exchange.getRequestBody()) {
+				request = om.readTree(in);
+			}
+			if (latency > 0) {
+				Thread.sleep(latency);
+			}
+			if (outageEvery > 0 && (System.currentTimeMillis() - started) % outageEvery < outageLength) {
+				unavailable.increment();
+				error(exchange, 503, "ServiceUnavailableException", "down for the test", null);
+				return;
+			}
+			switch (action) {
+			case "DescribeLogGroups":
+				respond(exchange, om.createObjectNode().set("logGroups", om.createArrayNode()));
+				break;
+			case "CreateLogGroup":
+				respond(exchange, om.createObjectNode());
+				break;
+			case "CreateLogStream":
+				if (tokens.putIfAbsent(stream(request), "") != null) {
+					error(exchange, 400, "ResourceAlreadyExistsException", "The specified log stream already exists",
+							null);
+				} else {
+					respond(exchange, om.createObjectNode());
+				}
+				break;
+			case "PutLogEvents":
+				putLogEvents(exchange, request);
+				break;
+			default:
+				error(exchange, 400, "UnknownOperationException", action, null);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			error(exchange, 500, "InternalFailure", e.toString(), null);
+		} catch (RuntimeException e) {
+			error(exchange, 500, "InternalFailure", e.toString(), null);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static String stream(JsonNode request) {
+		return request.path("logGroupName").asText() + "/" + request.path("logStreamName").asText();
+	}
+
+	private void putLogEvents(HttpExchange exchange, JsonNode request) throws IOException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (random.nextDouble() < throttleRate) {
+			throttled.increment();
+			error(exchange, 400, "ThrottlingException", "Rate exceeded", null);
+			return;
+		}
+		String stream = stream(request);
+		String expected;
+		synchronized (tokens) {
+			expected = tokens.get(stream);
+			if (expected == null) {
+				error(exchange, 400, "ResourceNotFoundException", "The specified log stream does not exist.", null);
+				return;
+			}
+			if (random.nextDouble() < tokenErrorRate) {
+				expected = String.valueOf(nextToken.incrementAndGet());
+				tokens.put(stream, expected);
+			}
+			String token = request.path("sequenceToken").asText("");
+			if (!expected.equals(token)) {
+				tokenErrors.increment();
+				error(exchange, 400, "InvalidSequenceTokenException",
+						"The given sequenceToken is invalid. The next expected sequenceToken is: " + expected,
+						expected);
+				return;
+			}
+			expected = String.valueOf(nextToken.incrementAndGet());
+			tokens.put(stream, expected);
+		}
+		puts.increment();
+		for (JsonNode event : request.path("logEvents")) {
+			events.increment();
+			bytes.add(event.path("message").asText().length());
+		}
+		ObjectNode response = om.createObjectNode();
+		response.put("nextSequenceToken", expected);
+		respond(exchange, response);
+	}
+
+	private void respond(HttpExchange exchange, JsonNode body) throws IOException {
+		send(exchange, 200, om.writeValueAsBytes(body));
+	}
+
+	private void error(HttpExchange exchange, int status, String type, String message, String expectedSequenceToken)
+			throws IOException {
+		ObjectNode body = om.createObjectNode();
+		body.put("__type", type);
+		body.put("message", message);
+		if (expectedSequenceToken != null) {
+			body.put("expectedSequenceToken", expectedSequenceToken);
+		}
+		exchange.getResponseHeaders().set("x-amzn-ErrorType", type);
+		send(exchange, status, om.writeValueAsBytes(body));
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/x-amz-json-1.1");
+		exchange.getResponseHeaders().set("x-amzn-RequestId", Long.toHexString(System.nanoTime()));
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "events=" + events.sum() + " bytes=" + bytes.sum() + " puts=" + puts.sum() + " throttled="
+				+ throttled.sum() + " tokenErrors=" + tokenErrors.sum() + " unavailable=" + unavailable.sum();
+	}
+}
@@ -0,0 +1,63 @@
+package org.apache.plugins;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * JsonLogRecord.getMessage of a record built from an ObjectNode tree, which
+ * serializes on each call, against one built from streamed JSON text.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonLogRecordBenchmark {
+
+	private JsonLogRecord tree;
+
+	private JsonLogRecord text;
+
+	@Setup
+	public void setUp() {
+		ObjectNode json = new ObjectNode(JsonNodeFactory.instance);
+		json.put("server_ts", "2018-01-01 17:02:03.000 PST");
+		json.put("remote_ip", "10.1.2.3");
+		json.put("method", "GET");
+		json.put("url", "/api/v1/accounts/12345/orders");
+		json.put("query_string", "?page=2&size=50");
+		json.put("protocol", "HTTP/1.1");
+		json.put("http_status", "200");
+		json.put("bytes_sent", "5120");
+		json.put("user_agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko)");
+		json.put("time_elapsed", "12");
+		json.put("thread_name", "http-nio-8080-exec-1");
+		json.put("host", "www.example.com");
+		tree = new JsonLogRecord(json);
+		text = new JsonLogRecord(json.toString());
+	}
+
+	@Benchmark
+	public String objectNode() {
+		return tree.getMessage();
+	}
+
+	@Benchmark
+	public String text() {
+		return text.getMessage();
+	}
+}
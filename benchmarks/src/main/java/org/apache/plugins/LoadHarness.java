@@ -0,0 +1,369 @@
+package org.apache.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Valve;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.valves.AccessLogValve;
+import org.apache.tomcat.util.IntrospectionUtils;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.logs.AWSLogsClient;
+
+/**
+ * End-to-end load and soak harness. Starts embedded Tomcat with the Host
+ * valves of server.xml, CloudwatchClient pointed at a
+ * {@link FakeCloudwatchLogs} endpoint, and the JDBC plugins pointed at an
+ * in-memory H2 database. A servlet answers every request and logs
+ * harness.appLogs application records through CloudwatchHandler and
+ * JdbcHandler.
+ *
+ * After a warm-up, load runs twice: a baseline with the access log valves
+ * disabled, then the measured run. It reports the request p50/p99 of both
+ * (the difference is the overhead of the plugins), the valves' own LogNanos,
+ * the events delivered, dropped and spooled, and heap and direct memory every
+ * harness.sample seconds, so a long run doubles as a soak test. Run with,
+ * e.g.
+ *
+ * <pre>
+ * java -Dharness.duration=3600 -Dharness.latency=50 -Dharness.throttle=0.05 \
+ *     -cp benchmarks/target/benchmarks.jar org.apache.plugins.LoadHarness
+ * </pre>
+ *
+ * Settings (system properties, defaults in brackets): harness.threads [8]
+ * client threads; harness.rate [0] requests per second over all threads, 0 as
+ * fast as possible; harness.duration [60], harness.baseline [10] and
+ * harness.warmup [5] seconds; harness.appLogs [1] records per request;
+ * harness.responseBytes [512]; harness.serverXml [server.xml]; harness.sample
+ * [10] seconds; and for the fake endpoint harness.latency [20] milliseconds,
+ * harness.throttle [0] and harness.tokenErrors [0] shares of PutLogEvents
+ * requests, harness.outageEvery [0] and harness.outageLength [0] seconds.
+ */
+public class LoadHarness {
+
+	private static final String APP_LOGGER = "harness.app";
+
+	private static long setting(String name, long defaultValue) {
+		return Long.getLong("harness." + name, defaultValue);
+	}
+
+	private static double setting(String name, double defaultValue) {
+		String value = System.getProperty("harness." + name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+
+	@SuppressWarnings("serial")
+	private static class AppServlet extends HttpServlet {
+
+		private final Logger logger = Logger.getLogger(APP_LOGGER);
+
+		private final byte[] body;
+
+		private final int appLogs;
+
+		AppServlet(int responseBytes, int appLogs) {
+			this.body = new byte[responseBytes];
+			this.appLogs = appLogs;
+		}
+
+		@Override
+		protected void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			for (int i = 0; i < appLogs; i++) {
+				logger.log(Level.INFO, "Served {0}", request.getRequestURI());
+			}
+			response.setContentType("application/octet-stream");
+			response.setContentLength(body.length);
+			response.getOutputStream().write(body);
+		}
+	}
+
+	static class Load {
+
+		final Histogram latency = new Histogram();
+
+		final LongAdder errors = new LongAdder();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = (int) setting("threads", 8);
+		double rate = setting("rate", 0.0);
+		long duration = setting("duration", 60);
+		long warmup = setting("warmup", 5);
+		long baseline = setting("baseline", 10);
+		int appLogs = (int) setting("appLogs", 1);
+		long sample = setting("sample", 10);
+
+		FakeCloudwatchLogs cloudwatch = new FakeCloudwatchLogs();
+		cloudwatch.latency = setting("latency", 20);
+		cloudwatch.throttleRate = setting("throttle", 0.0);
+		cloudwatch.tokenErrorRate = setting("tokenErrors", 0.0);
+		cloudwatch.outageEvery = TimeUnit.SECONDS.toMillis(setting("outageEvery", 0));
+		cloudwatch.outageLength = TimeUnit.SECONDS.toMillis(setting("outageLength", 0));
+		cloudwatch.start();
+
+		AccessLogValveBenchmark.createDatabase();
+		CloudwatchClient client = startCloudwatchClient(cloudwatch.getEndpoint());
+
+		Logger app = Logger.getLogger(APP_LOGGER);
+		app.setUseParentHandlers(false);
+		app.addHandler(new CloudwatchHandler());
+		JdbcHandler jdbcHandler = new JdbcHandler();
+		app.addHandler(jdbcHandler);
+
+		File base = Files.createTempDirectory("harness").toFile();
+		Tomcat tomcat = new Tomcat();
+		tomcat.setBaseDir(base.getAbsolutePath());
+		tomcat.setPort(0);
+		Context context = tomcat.addContext("", base.getAbsolutePath());
+		Tomcat.addServlet(context, "app", new AppServlet((int) setting("responseBytes", 512), appLogs));
+		context.addServletMappingDecoded("/*", "app");
+		List<Valve> valves = valves(new File(System.getProperty("harness.serverXml", "server.xml")));
+		for (Valve valve : valves) {
+			tomcat.getHost().getPipeline().addValve(valve);
+		}
+		tomcat.start();
+		String url = "http://127.0.0.1:" + tomcat.getConnector().getLocalPort();
+		System.out.println("Tomcat on " + url + " with " + valves.size() + " valves, CloudWatch Logs on "
+				+ cloudwatch.getEndpoint());
+
+		run(url, threads, rate, warmup, 0, null);
+		setEnabled(valves, false);
+		Load baselineLoad = run(url, threads, rate, baseline, 0, null);
+		setEnabled(valves, true);
+		long accessRows = count("log_access");
+		long applicationRows = count("log_application");
+		long before = cloudwatch.events.sum();
+		Load measured = run(url, threads, rate, duration, sample, () -> report(client, cloudwatch));
+
+		List<String> valveTimes = valveTimes();
+		tomcat.stop();
+		jdbcHandler.close();
+		client.close();
+		long requests = measured.latency.getCount();
+
+		System.out.println();
+		System.out.println("requests          " + requests + " (" + measured.errors.sum() + " errors), baseline "
+				+ baselineLoad.latency.getCount());
+		System.out.println("latency p50       " + measured.latency.getPercentile(0.5) + " us (baseline "
+				+ baselineLoad.latency.getPercentile(0.5) + ")");
+		System.out.println("latency p99       " + measured.latency.getPercentile(0.99) + " us (baseline "
+				+ baselineLoad.latency.getPercentile(0.99) + ")");
+		for (String line : valveTimes) {
+			System.out.println(line);
+		}
+		System.out.println("cloudwatch        " + (cloudwatch.events.sum() - before) + " events delivered of "
+				+ requests * (1 + appLogs) + " expected, " + client.getDropped() + " dropped, "
+				+ client.spooled.sum() + " spooled, " + client.replayed.sum() + " replayed, "
+				+ client.spoolDropped.sum() + " dropped by the spool");
+		System.out.println("cloudwatch fake   " + cloudwatch);
+		System.out.println("jdbc              " + (count("log_access") - accessRows) + " access rows, "
+				+ (count("log_application") - applicationRows) + " application rows");
+		cloudwatch.stop();
+		System.exit(0);
+	}
+
+	/**
+	 * Makes CloudwatchClient.getInstance() return a client of the fake
+	 * endpoint, and waits a while for it to be ready
+	 */
+	private static CloudwatchClient startCloudwatchClient(String endpoint) throws InterruptedException {
+		CloudwatchClient client = new CloudwatchClient(new SimpleFormatter(), "/harness", "harness");
+		client.awsLogsClient = new AWSLogsClient(
+				new AWSStaticCredentialsProvider(new BasicAWSCredentials("harness", "harness")),
+				new ClientConfiguration());
+		client.awsLogsClient.setRegion(Region.getRegion(Regions.US_EAST_1));
+		client.awsLogsClient.setEndpoint(endpoint);
+		CloudwatchClient.instance = client;
+		client.start();
+		long deadline = System.currentTimeMillis() + 30000;
+		while (!client.isReady() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		if (!client.isReady()) {
+			System.err.println("CloudwatchClient is not ready after 30 s, running with it buffering");
+		}
+		return client;
+	}
+
+	/**
+	 * @return the valves of the Host elements, with their attributes set as
+	 *         Tomcat's digester would
+	 */
+	static List<Valve> valves(File serverXml) throws Exception {
+		List<Valve> valves = new ArrayList<>();
+		NodeList hosts = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(serverXml)
+				.getElementsByTagName("Host");
+		for (int h = 0; h < hosts.getLength(); h++) {
+			for (Node child = hosts.item(h).getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (!(child instanceof Element) || !"Valve".equals(child.getNodeName())) {
+					continue;
+				}
+				NamedNodeMap attributes = child.getAttributes();
+				Valve valve = (Valve) Class.forName(((Element) child).getAttribute("className")).newInstance();
+				for (int a = 0; a < attributes.getLength(); a++) {
+					Node attribute = attributes.item(a);
+					if (!"className".equals(attribute.getNodeName())) {
+						IntrospectionUtils.setProperty(valve, attribute.getNodeName(), attribute.getNodeValue());
+					}
+				}
+				valves.add(valve);
+			}
+		}
+		return valves;
+	}
+
+	private static void setEnabled(List<Valve> valves, boolean enabled) {
+		for (Valve valve : valves) {
+			if (valve instanceof AccessLogValve) {
+				((AccessLogValve) valve).setEnabled(enabled);
+			}
+		}
+	}
+
+	/**
+	 * Sends requests from the threads for the duration, paced to the rate if
+	 * there is one
+	 */
+	static Load run(String url, int threads, double rate, long seconds, long sample, Runnable reporter)
+			throws InterruptedException {
+		Load load = new Load();
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * threads / rate) : 0;
+		List<Thread> clients = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Thread thread = new Thread(() -> {
+				byte[] buffer = new byte[8192];
+				long next = System.nanoTime();
+				while (System.nanoTime() < end) {
+					if (interval > 0) {
+						next += interval;
+						long wait = next - System.nanoTime();
+						if (wait > 0) {
+							try {
+								TimeUnit.NANOSECONDS.sleep(wait);
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+					}
+					long start = System.nanoTime();
+					try {
+						HttpURLConnection connection = (HttpURLConnection) new URL(
+								url + "/items/" + ThreadLocalRandom.current().nextInt(1000)).openConnection();
+						try (InputStream in = connection.getInputStream()) {
+							while (in.read(buffer) >= 0) {
+								// drain, so the connection is kept alive
+							}
+						}
+						load.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+					} catch (IOException e) {
+						load.errors.increment();
+					}
+				}
+			}, "harness-client-" + t);
+			thread.start();
+			clients.add(thread);
+		}
+		long started = System.nanoTime();
+		for (Thread thread : clients) {
+			while (thread.isAlive()) {
+				thread.join(TimeUnit.SECONDS.toMillis(Math.max(1, sample)));
+				if (reporter != null && System.nanoTime() - started >= TimeUnit.SECONDS.toNanos(sample)) {
+					started = System.nanoTime();
+					reporter.run();
+				}
+			}
+		}
+		return load;
+	}
+
+	private static void report(CloudwatchClient client, FakeCloudwatchLogs cloudwatch) {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long direct = 0;
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if ("direct".equals(pool.getName())) {
+				direct = pool.getMemoryUsed();
+			}
+		}
+		System.out.println(String.format("heap %,d kB, direct %,d kB, queue %d, delivered %d, dropped %d, spool %,d B",
+				memory.getHeapMemoryUsage().getUsed() >> 10, direct >> 10, client.getQueueDepth(),
+				cloudwatch.events.sum(), client.getDropped(), client.getSpoolBytes()));
+	}
+
+	/**
+	 * @return the LogNanos percentiles of the access log valves, from JMX
+	 */
+	private static List<String> valveTimes() throws Exception {
+		List<String> lines = new ArrayList<>();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Set<ObjectName> names = server.queryNames(
+				new ObjectName(Metrics.DOMAIN + ":type=" + ObjectName.quote("AccessLogValve") + ",*"), null);
+		for (ObjectName name : names) {
+			lines.add(String.format("%s: log() p50 %s ns, p99 %s ns, dropped %s",
+					ObjectName.unquote(name.getKeyProperty("name")), server.getAttribute(name, "LogNanosP50"),
+					server.getAttribute(name, "LogNanosP99"), attribute(server, name, "Dropped", "WriterDropped")));
+		}
+		return lines;
+	}
+
+	/**
+	 * @return the first of the attributes the MBean has
+	 */
+	private static Object attribute(MBeanServer server, ObjectName name, String... attributes) {
+		for (String attribute : attributes) {
+			try {
+				return server.getAttribute(name, attribute);
+			} catch (Exception e) {
+				// try the next
+			}
+		}
+		return "-";
+	}
+
+	private static long count(String table) throws SQLException {
+		try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:logs;MODE=MySQL;DB_CLOSE_DELAY=-1",
+				"sa", ""); Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("select count(*) from " + table)) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+}
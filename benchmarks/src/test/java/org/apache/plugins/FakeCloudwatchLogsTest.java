@@ -0,0 +1,125 @@
+package org.apache.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class FakeCloudwatchLogsTest {
+
+	private final ObjectMapper om = new ObjectMapper();
+
+	private FakeCloudwatchLogs fake;
+
+	/**
+	 * The status of the last call
+	 */
+	private int status;
+
+	@Before
+	public void start() throws IOException {
+		fake = new FakeCloudwatchLogs();
+		fake.start();
+	}
+
+	@After
+	public void stop() {
+		fake.stop();
+	}
+
+	/**
+	 * Calls the action as the SDK would
+	 */
+	private JsonNode call(String action, ObjectNode request) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(fake.getEndpoint()).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("X-Amz-Target", "Logs_20140328." + action);
+		connection.setRequestProperty("Content-Type", "application/x-amz-json-1.1");
+		try (OutputStream out = connection.getOutputStream()) {
+			om.writeValue(out, request.put("logGroupName", "group").put("logStreamName", "stream"));
+		}
+		status = connection.getResponseCode();
+		try (InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+			return om.readTree(in);
+		}
+	}
+
+	private JsonNode put(String token, String... messages) throws IOException {
+		ObjectNode request = om.createObjectNode();
+		if (token != null) {
+			request.put("sequenceToken", token);
+		}
+		for (String message : messages) {
+			request.withArray("logEvents").addObject().put("timestamp", System.currentTimeMillis()).put("message",
+					message);
+		}
+		return call("PutLogEvents", request);
+	}
+
+	private void assertError(int status, String type, JsonNode response) {
+		Assert.assertEquals(status, this.status);
+		Assert.assertEquals(type, response.path("__type").asText());
+	}
+
+	@Test
+	public void storesEventsInSequence() throws IOException {
+		// no stream yet
+		assertError(400, "ResourceNotFoundException", put(null, "a"));
+		call("CreateLogStream", om.createObjectNode());
+		Assert.assertEquals(200, status);
+		// as CloudwatchClient expects when it was created before
+		assertError(400, "ResourceAlreadyExistsException", call("CreateLogStream", om.createObjectNode()));
+
+		String token = put(null, "a", "bc").path("nextSequenceToken").asText();
+		Assert.assertEquals(200, status);
+		token = put(token, "def").path("nextSequenceToken").asText();
+		Assert.assertEquals(200, status);
+		Assert.assertFalse(token.isEmpty());
+		Assert.assertEquals(3, fake.events.sum());
+		Assert.assertEquals(6, fake.bytes.sum());
+		Assert.assertEquals(2, fake.puts.sum());
+	}
+
+	@Test
+	public void rejectsAStaleToken() throws IOException {
+		call("CreateLogStream", om.createObjectNode());
+		String token = put(null, "a").path("nextSequenceToken").asText();
+		JsonNode stale = put(null, "b");
+		assertError(400, "InvalidSequenceTokenException", stale);
+		Assert.assertEquals(token, stale.path("expectedSequenceToken").asText());
+
+		// another writer got in first
+		fake.tokenErrorRate = 1;
+		JsonNode taken = put(token, "c");
+		assertError(400, "InvalidSequenceTokenException", taken);
+		Assert.assertNotEquals(token, taken.path("expectedSequenceToken").asText());
+		Assert.assertEquals(2, fake.tokenErrors.sum());
+		Assert.assertEquals(1, fake.events.sum());
+	}
+
+	@Test
+	public void throttlesAndGoesDown() throws IOException {
+		call("CreateLogStream", om.createObjectNode());
+		fake.throttleRate = 1;
+		assertError(400, "ThrottlingException", put(null, "a"));
+		Assert.assertEquals(1, fake.throttled.sum());
+
+		fake.throttleRate = 0;
+		fake.outageEvery = 1;
+		fake.outageLength = 1;
+		assertError(503, "ServiceUnavailableException", put(null, "a"));
+		Assert.assertEquals(1, fake.unavailable.sum());
+		Assert.assertEquals(0, fake.events.sum());
+	}
+}
@@ -0,0 +1,92 @@
+package org.apache.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.catalina.Valve;
+import org.apache.catalina.valves.AccessLogValve;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class LoadHarnessTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void readsTheHostValves() throws Exception {
+		File serverXml = folder.newFile("server.xml");
+		Files.write(serverXml.toPath(), ("<Server><Service><Engine>"
+				+ "<Valve className=\"org.apache.catalina.valves.RemoteIpValve\"/>"
+				+ "<Host name=\"localhost\">"
+				+ "<Valve className=\"org.apache.catalina.valves.AccessLogValve\" pattern=\"%h %s\" enabled=\"false\"/>"
+				+ "<Context path=\"\"/>"
+				+ "<Valve className=\"org.apache.plugins.MultiSinkAccessLogValve\" sinks=\"a.Sink\" slowThreshold=\"250\"/>"
+				+ "</Host></Engine></Service></Server>").getBytes(StandardCharsets.UTF_8));
+
+		List<Valve> valves = LoadHarness.valves(serverXml);
+		// only the Host's, in order
+		Assert.assertEquals(2, valves.size());
+		AccessLogValve plain = (AccessLogValve) valves.get(0);
+		Assert.assertEquals("%h %s", plain.getPattern());
+		Assert.assertFalse(plain.getEnabled());
+		MultiSinkAccessLogValve multi = (MultiSinkAccessLogValve) valves.get(1);
+		Assert.assertEquals("a.Sink", multi.getSinks());
+		Assert.assertEquals(250, multi.getSlowThreshold());
+	}
+
+	@Test
+	public void pacesTheRequests() throws Exception {
+		LongAdder served = new LongAdder();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			served.increment();
+			exchange.sendResponseHeaders(exchange.getRequestURI().getPath().startsWith("/items/") ? 200 : 404, 2);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(new byte[2]);
+			}
+		});
+		server.start();
+		try {
+			LongAdder reports = new LongAdder();
+			LoadHarness.Load load = LoadHarness.run("http://127.0.0.1:" + server.getAddress().getPort(), 2, 40, 2,
+					1, reports::increment);
+			// 40 per second for 2 seconds, give or take the last interval
+			Assert.assertTrue(String.valueOf(load.latency.getCount()),
+					load.latency.getCount() >= 60 && load.latency.getCount() <= 82);
+			Assert.assertEquals(0, load.errors.sum());
+			Assert.assertEquals(load.latency.getCount(), served.sum());
+			Assert.assertTrue(reports.sum() >= 1);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void countsErrors() throws IOException, InterruptedException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			exchange.sendResponseHeaders(500, -1);
+			exchange.close();
+		});
+		server.start();
+		try {
+			LoadHarness.Load load = LoadHarness.run("http://127.0.0.1:" + server.getAddress().getPort(), 1, 20, 1,
+					0, null);
+			Assert.assertEquals(0, load.latency.getCount());
+			Assert.assertTrue(load.errors.sum() > 0);
+		} finally {
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package org.apache.plugins;
+
+/**
+ * {@link CloudwatchHandler} behind an {@link AsyncHandler}, configured under
+ * org.apache.plugins.AsyncCloudwatchHandler so that other handlers can be made
+ * asynchronous next to it, e.g.
+ *
+ * <pre>
+ * handlers = org.apache.plugins.AsyncCloudwatchHandler
+ * org.apache.plugins.AsyncCloudwatchHandler.capacity = 8192
+ * org.apache.plugins.AsyncCloudwatchHandler.overflowPolicy = DROP_NEW
+ * </pre>
+ */
+public class AsyncCloudwatchHandler extends AsyncHandler {
+
+	public AsyncCloudwatchHandler() {
+		super(AsyncCloudwatchHandler.class.getName(), CloudwatchHandler.class.getName());
+	}
+}
@@ -3,19 +3,119 @@ package org.apache.plugins;
 import java.io.CharArrayWriter;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.valves.AccessLogValve;
 
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-
+/**
+ * Ships each access log entry to CloudWatch as one compact JSON object. The
+ * pattern is a comma separated list of field=pattern pairs, or "default".
+ *
+ * The JSON text is written straight into a per-thread buffer: field name
+ * tokens are computed once in setPattern, values are escaped as they are
+ * copied out of the element buffer, so a request costs one String.
+ *
+ * With sampleRate set, an {@link AccessLogSampler} decides before any element
+ * is evaluated; kept entries get a sample_weight field.
+ *
+ * With deferred set, log() only copies the request facts into a pooled
+ * {@link AccessLogEvent}; the JSON is rendered by the CloudWatch sender
+ * thread when it batches the record. Not with the client's stagingBytes,
+ * which formats every record as it is published.
+ *
+ * With metricsInterval set, every request (before sampling) is also counted
+ * by a {@link RequestMetricsAggregator}, which sends request, error, byte and
+ * latency metrics as EMF documents; rawEvents="false" then stops sending the
+ * entries themselves.
+ */
 public class CloudwatchAccessLogJsonValve extends AccessLogValve {
 
+	/**
+	 * CharArrayWriter that lets the escaper read its characters in place
+	 */
+	private static class ElementBuffer extends CharArrayWriter {
+
+		ElementBuffer() {
+			super(128);
+		}
+
+		boolean isDash() {
+			return count == 1 && buf[0] == '-';
+		}
+
+		void appendJsonTo(StringBuilder sb) {
+			JsonText.appendString(sb, buf, 0, count);
+		}
+	}
+
+	private static final ThreadLocal<ElementBuffer> elementBuffers = ThreadLocal.withInitial(ElementBuffer::new);
+
+	private static final ThreadLocal<StringBuilder> jsonBuffers = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
 	protected CloudwatchClient client;
+
+	/**
+	 * Exposed over JMX as org.apache.plugins:type=AccessLogValve
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * The time (in nanoseconds) log() adds to each request
+	 */
+	private final Histogram logTime = metrics.histogram("LogNanos");
+
+	/**
+	 * Entries dropped by the sampler
+	 */
+	private final LongAdder sampledOut = metrics.counter("SampledOut");
+
+	/**
+	 * Entries per second kept from ordinary requests; 0 keeps everything
+	 */
+	private double sampleRate = 0;
+
+	/**
+	 * "url" or "status": what the sampling budget is split by
+	 */
+	private String sampleBy = "url";
+
+	/**
+	 * Milliseconds; slower requests are always kept
+	 */
+	private long slowThreshold = 1000;
+
+	/**
+	 * Keep every later request of a session once one was sampled
+	 */
+	private boolean sampleSessions = false;
+
+	private AccessLogSampler sampler;
+
+	/**
+	 * Render entries on the sender thread instead of the request thread
+	 */
+	private boolean deferred = false;
+
+	private AccessLogCapture capture;
+
+	private AccessLogCapture.Field[] captureFields;
+
+	/**
+	 * Milliseconds between two EMF documents of a key; 0 aggregates nothing
+	 */
+	private long metricsInterval = 0;
+
+	private String metricsNamespace = "Tomcat";
+
+	private int metricsKeys = 1000;
+
+	private boolean rawEvents = true;
+
+	private RequestMetricsAggregator aggregator;
 	
 	public CloudwatchAccessLogJsonValve() {
 		this(CloudwatchClient.getInstance());
@@ -23,10 +123,21 @@ public class CloudwatchAccessLogJsonValve extends AccessLogValve {
 
 	public CloudwatchAccessLogJsonValve(CloudwatchClient cloudwatchHandler) {
 		this.client = cloudwatchHandler;
+		metrics.gauge("MetricsOverflow", () -> {
+			RequestMetricsAggregator current = aggregator;
+			return current == null ? 0 : current.getOverflow();
+		});
 	}
 
 	private String fields[];
 
+	private String fieldPatterns[];
+
+	/**
+	 * {"field": for the first field, ,"field": for the others
+	 */
+	private String fieldTokens[];
+
 	private String pattern = null;
 	
 	@Override
@@ -42,9 +153,35 @@ public class CloudwatchAccessLogJsonValve extends AccessLogValve {
 			return;
 		}
 
+		long start = System.nanoTime();
+		if (aggregator != null) {
+			aggregator.record(request.getMethod(), request.getRequestURI(), response.getStatus(), time,
+					response.getBytesWritten(false));
+			if (!rawEvents) {
+				logTime.record(System.nanoTime() - start);
+				return;
+			}
+		}
+		long weight = 1;
+		if (sampler != null) {
+			weight = sampler.sample("status".equals(sampleBy) ? String.valueOf(response.getStatus())
+					: request.getRequestURI(), response.getStatus(), time, sampleSessions ? sessionId(request) : null);
+			if (weight == 0) {
+				sampledOut.increment();
+				return;
+			}
+		}
+		if (capture != null) {
+			client.publish(new DeferredRecord(capture, capture.capture(request, response, time),
+					sampler == null ? 0 : weight));
+			logTime.record(System.nanoTime() - start);
+			return;
+		}
 		Date date = timestamp();
 		int n = 0;
-		ObjectNode json = new ObjectNode(JsonNodeFactory.instance);
+		ElementBuffer result = elementBuffers.get();
+		StringBuilder json = jsonBuffers.get();
+		json.setLength(0);
 
 		for (int i = 0; i < logElements.length; i++) {
 
@@ -53,21 +190,90 @@ public class CloudwatchAccessLogJsonValve extends AccessLogValve {
 				// parser
 				continue;
 
-			CharArrayWriter result = new CharArrayWriter(128);
+			result.reset();
 			logElements[i].addElement(result, date, request, response, time);
 
-			String value = result.toString();
-			if ("-".equals(value)) {
-				value = null;
+			json.append(fieldTokens[n]);
+			if (result.isDash()) {
+				json.append("null");
+			} else {
+				result.appendJsonTo(json);
 			}
 
-			json.put(fields[n], value);
-
 			++n;
 		}
+		if (sampler != null) {
+			json.append(n == 0 ? "{" : ",").append("\"sample_weight\":").append(weight);
+			++n;
+		}
+		json.append(n == 0 ? "{}" : "}");
+
+		client.publish(new JsonLogRecord(json.toString()));
+
+		if (json.capacity() > 65536) {
+			// do not pin the buffer of one huge request to this thread
+			jsonBuffers.remove();
+		}
+		logTime.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * An entry captured on the request thread, rendered by the first
+	 * getMessage()
+	 */
+	@SuppressWarnings("serial")
+	private class DeferredRecord extends JsonLogRecord {
+
+		private final AccessLogCapture capture;
+
+		private final AccessLogEvent event;
+
+		/**
+		 * 0 when not sampling
+		 */
+		private final long weight;
+
+		DeferredRecord(AccessLogCapture capture, AccessLogEvent event, long weight) {
+			this.capture = capture;
+			this.event = event;
+			this.weight = weight;
+		}
+
+		@Override
+		protected String render() {
+			StringBuilder json = jsonBuffers.get();
+			json.setLength(0);
+			for (int i = 0; i < captureFields.length; i++) {
+				String value = AccessLogCapture.value(captureFields[i], event);
+				json.append(fieldTokens[i]);
+				if (value == null) {
+					json.append("null");
+				} else {
+					JsonText.appendString(json, value);
+				}
+			}
+			if (weight > 0) {
+				json.append(captureFields.length == 0 ? "{" : ",").append("\"sample_weight\":").append(weight);
+			}
+			json.append(json.length() == 0 ? "{}" : "}");
+			capture.release(event);
+			return json.toString();
+		}
+	}
 
-		client.publish(new JsonLogRecord(json));
+	/**
+	 * Tomcat's element for a code AccessLogCapture does not know
+	 */
+	private AccessLogCapture.Element element(String code) {
+		char c = code.charAt(code.length() - 1);
+		AccessLogElement element = code.charAt(1) == '{'
+				? createAccessLogElement(code.substring(2, code.length() - 2), c) : createAccessLogElement(c);
+		return element::addElement;
+	}
 
+	private static String sessionId(Request request) {
+		Session session = request.getSessionInternal(false);
+		return session == null ? null : session.getIdInternal();
 	}
 
 	protected Date timestamp() {
@@ -79,15 +285,126 @@ public class CloudwatchAccessLogJsonValve extends AccessLogValve {
 		// do nothing
 	}
 
+	@Override
+	protected synchronized void startInternal() throws LifecycleException {
+		sampler = sampleRate > 0 ? new AccessLogSampler(sampleRate, slowThreshold, sampleSessions) : null;
+		if (deferred && client.isStaging()) {
+			System.err.println(new Date() + " " + getClass().getName()
+					+ ": deferred has no effect with stagingBytes, entries are rendered on the request thread");
+			capture = null;
+		} else if (deferred && fieldPatterns != null) {
+			capture = new AccessLogCapture(1024);
+			captureFields = new AccessLogCapture.Field[fieldPatterns.length];
+			for (int i = 0; i < fieldPatterns.length; i++) {
+				captureFields[i] = capture.compile(fieldPatterns[i], this::element);
+			}
+		} else {
+			capture = null;
+		}
+		if (metricsInterval > 0) {
+			aggregator = new RequestMetricsAggregator(client, metricsNamespace, metricsInterval, metricsKeys);
+			aggregator.start();
+		}
+		metrics.register("AccessLogValve", ValveNames.of(this));
+		super.startInternal();
+	}
+
+	@Override
+	protected synchronized void stopInternal() throws LifecycleException {
+		super.stopInternal();
+		if (aggregator != null) {
+			aggregator.stop();
+			aggregator = null;
+		}
+		metrics.unregister();
+	}
+
+	public long getMetricsInterval() {
+		return metricsInterval;
+	}
+
+	public void setMetricsInterval(long metricsInterval) {
+		this.metricsInterval = metricsInterval;
+	}
+
+	public String getMetricsNamespace() {
+		return metricsNamespace;
+	}
+
+	public void setMetricsNamespace(String metricsNamespace) {
+		this.metricsNamespace = metricsNamespace;
+	}
+
+	public int getMetricsKeys() {
+		return metricsKeys;
+	}
+
+	public void setMetricsKeys(int metricsKeys) {
+		this.metricsKeys = metricsKeys;
+	}
+
+	public boolean getRawEvents() {
+		return rawEvents;
+	}
+
+	public void setRawEvents(boolean rawEvents) {
+		this.rawEvents = rawEvents;
+	}
+
+	public boolean getDeferred() {
+		return deferred;
+	}
+
+	public void setDeferred(boolean deferred) {
+		this.deferred = deferred;
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	public String getSampleBy() {
+		return sampleBy;
+	}
+
+	public void setSampleBy(String sampleBy) {
+		this.sampleBy = sampleBy;
+	}
+
+	public long getSlowThreshold() {
+		return slowThreshold;
+	}
+
+	public void setSlowThreshold(long slowThreshold) {
+		this.slowThreshold = slowThreshold;
+	}
+
+	public boolean getSampleSessions() {
+		return sampleSessions;
+	}
+
+	public void setSampleSessions(boolean sampleSessions) {
+		this.sampleSessions = sampleSessions;
+	}
+
 	@Override
 	public void setPattern(String patternParm) {
 		String defaultPattern =
 				"server_ts=%{y-MM-dd HH:mm:ss.SSS z}t,remote_ip=%a,local_ip=%A,method=%m,url=%U,query_string=%q,protocol=%H,http_status=%s,bytes_sent=%B,referer=%{Referer}i,user_agent=%{User-Agent}i,time_elapsed=%D,session_id=%S,user_id=%{user_id}s,agent_proxy=%{agent_proxy}s,agent_id=%{agent_device_id}c,time_to_first_byte=%F,thread_name=%I,host=%{Host}i";
 
-		List<String> pairs = Arrays.asList((patternParm.equals("default") ? defaultPattern : patternParm).split(","));
-		
-		this.pattern = pairs.stream().map(s -> s.split("=")[1]).collect(Collectors.joining(""));
-		this.fields =  pairs.stream().map(s -> s.split("=")[0]).toArray(String[]::new);
+		String[][] pairs = AccessLogPattern.pairs(patternParm.equals("default") ? defaultPattern : patternParm);
+
+		this.fields = Arrays.stream(pairs).map(pair -> pair[0]).toArray(String[]::new);
+		this.fieldPatterns = Arrays.stream(pairs).map(pair -> pair[1]).toArray(String[]::new);
+		this.pattern = String.join("", fieldPatterns);
+		this.fieldTokens = new String[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			fieldTokens[i] = (i == 0 ? "{" : ",") + JsonText.fieldName(fields[i]);
+		}
 
 		super.setPattern(pattern);
 	}
@@ -0,0 +1,81 @@
+package org.apache.plugins;
+
+/**
+ * {@link AccessLogSink} that ships each entry to CloudWatch as one compact
+ * JSON object, like {@link CloudwatchAccessLogJsonValve}. The JSON is built
+ * by the CloudwatchClient sender thread, or on the request thread when the
+ * client stages entries off the heap (stagingBytes).
+ */
+public class CloudwatchAccessLogSink implements AccessLogSink {
+
+	private static final ThreadLocal<StringBuilder> jsonBuffers = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+	private final CloudwatchClient client;
+
+	/**
+	 * {"field": for the first field, ,"field": for the others
+	 */
+	private String[] fieldTokens;
+
+	public CloudwatchAccessLogSink() {
+		this(CloudwatchClient.getInstance());
+	}
+
+	public CloudwatchAccessLogSink(CloudwatchClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Rendered by the first getMessage()
+	 */
+	@SuppressWarnings("serial")
+	private class EntryRecord extends JsonLogRecord {
+
+		private final AccessLogEntry entry;
+
+		EntryRecord(AccessLogEntry entry) {
+			this.entry = entry;
+			setMillis(entry.getTimestamp());
+		}
+
+		@Override
+		protected String render() {
+			String[] values = entry.getValues();
+			StringBuilder json = jsonBuffers.get();
+			json.setLength(0);
+			for (int i = 0; i < fieldTokens.length; i++) {
+				json.append(fieldTokens[i]);
+				if (values[i] == null) {
+					json.append("null");
+				} else {
+					JsonText.appendString(json, values[i]);
+				}
+			}
+			if (entry.getWeight() > 0) {
+				json.append(fieldTokens.length == 0 ? "{" : ",").append("\"sample_weight\":").append(entry.getWeight());
+			}
+			json.append(json.length() == 0 ? "{}" : "}");
+			return json.toString();
+		}
+	}
+
+	@Override
+	public void start(String[] fields, String[] patterns, boolean sampled) {
+		fieldTokens = new String[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			fieldTokens[i] = (i == 0 ? "{" : ",") + JsonText.fieldName(fields[i]);
+		}
+	}
+
+	@Override
+	public boolean offer(AccessLogEntry entry) {
+		client.publish(new EntryRecord(entry));
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		// the client is shared: ship what is queued, leave it open
+		client.flush();
+	}
+}
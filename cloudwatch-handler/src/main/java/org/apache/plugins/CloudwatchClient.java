@@ -1,19 +1,18 @@
 package org.apache.plugins;
 
-import static java.util.stream.Collectors.toList;
-
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Formatter;
+import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
 import java.util.logging.SimpleFormatter;
 
@@ -28,28 +27,152 @@ public class CloudwatchClient {
 
 	protected static CloudwatchClient instance;
 
+	/**
+	 * Never waits for AWS: the client is initialized in the background and
+	 * records published meanwhile are buffered
+	 */
 	public static synchronized CloudwatchClient getInstance() {
-		try {
-			if (instance == null) {
-				instance = new CloudwatchClient();
-				instance.init();
+		if (instance == null) {
+			instance = new CloudwatchClient();
+			instance.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * The queue / buffer size, split over the streams
+	 */
+	private final int queueLength = Integer.parseInt(property("queueLength", "8192"));
+
+	/**
+	 * The number of log streams written in parallel, each with its own buffer,
+	 * sequence token and sender. Streams are named logStreamName-0 ..
+	 * logStreamName-(n-1) when there is more than one.
+	 */
+	private final int streams = Math.max(1, Integer.parseInt(property("streams", "1")));
+
+	/**
+	 * How log entries are assigned to streams: "thread" (by producer thread)
+	 * or "logger" (by logger name). Either keeps the entries of one thread or
+	 * logger in order within their stream.
+	 */
+	private final boolean shardByLogger = "logger".equalsIgnoreCase(property("shardBy", "thread"));
+
+	/**
+	 * When set, entries are formatted as they are published and staged as
+	 * UTF-8 bytes in this many bytes of direct memory, split over the
+	 * streams, instead of queueLength LogRecords on the heap. Deferred
+	 * records are then rendered by the publishing thread too.
+	 */
+	private final int stagingBytes = Integer.parseInt(property("stagingBytes", "0"));
+
+	/**
+	 * When set, the most bytes of disk the spool of events that could not be
+	 * buffered or sent may take, per stream
+	 */
+	private final long spoolBytes = Long.parseLong(property("spoolBytes", "0"));
+
+	/**
+	 * Defaults to ${catalina.base}/spool/cloudwatch; stream i spools to its
+	 * subdirectory i
+	 */
+	private final String spoolDir = property("spoolDir",
+			System.getProperty("catalina.base", System.getProperty("java.io.tmpdir")) + "/spool/cloudwatch");
+
+	/**
+	 * Milliseconds between two full copies of the same stack trace; in
+	 * between, a reference with its fingerprint and a count is sent. 0 sends
+	 * every trace in full.
+	 */
+	private final long fingerprintInterval = Long.parseLong(property("fingerprintInterval", "0"));
+
+	private final StackTraceFingerprinter fingerprinter = fingerprintInterval > 0
+			? new StackTraceFingerprinter(Integer.parseInt(property("fingerprintCache", "1024")), fingerprintInterval)
+			: null;
+
+	/**
+	 * Records with the same logger, level and message passed per
+	 * burstWindow milliseconds; the rest are summed up in one record when the
+	 * window closes. 0 passes every record. JsonLogRecords (access log
+	 * entries, metric documents) are never suppressed.
+	 */
+	private final int burstThreshold = Integer.parseInt(property("burstThreshold", "0"));
+
+	private final long burstWindow = Long.parseLong(property("burstWindow", "10000"));
+
+	private final BurstSuppressor suppressor = burstThreshold > 0
+			? new BurstSuppressor(burstThreshold, burstWindow, Integer.parseInt(property("burstKeys", "1024")))
+			: null;
+
+	private final LogStreamShard[] shards = new LogStreamShard[streams];
+
+	{
+		int stripes = Integer.parseInt(property("stripes", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		OverflowPolicy overflowPolicy = OverflowPolicy.valueOf(property("overflowPolicy", OverflowPolicy.DROP_NEW.name()));
+		long blockTimeout = Long.parseLong(property("blockTimeout", "100"));
+		int sampleRate = Integer.parseInt(property("sampleRate", "10"));
+		for (int i = 0; i < streams; i++) {
+			EventQueue queue;
+			if (stagingBytes > 0) {
+				queue = new OffHeapEventQueue(stagingBytes / streams, Math.max(1, stripes / streams), overflowPolicy,
+						blockTimeout, this::message);
+			} else {
+				// one lock-free ring per stripe, producers spread over the stripes by thread id
+				queue = new HeapEventQueue(new StripedBuffer<>(Math.max(16, queueLength / streams),
+						Math.max(1, stripes / streams), overflowPolicy, blockTimeout, sampleRate), this::message);
 			}
-			return instance;
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			shards[i] = new LogStreamShard(this, i, queue, spoolBytes > 0 ? openSpool(i) : null);
 		}
 	}
 
 	/**
-	 * The queue / buffer size
+	 * Exposed over JMX as org.apache.plugins:type=CloudwatchClient
 	 */
-	private final static int queueLength = 1024;
+	final Metrics metrics = new Metrics();
+
+	final Meter enqueued = metrics.meter("Enqueued");
+
+	final Histogram batchSize = metrics.histogram("BatchSize");
+
+	final Histogram batchBytes = metrics.histogram("BatchBytes");
+
+	final Histogram putLatency = metrics.histogram("PutLogEventsMicros");
 
 	/**
-	 * The queue used to buffer log entries
+	 * PutLogEvents requests sent again with the expected sequence token
 	 */
-	private LinkedBlockingQueue<LogRecord> loggingEventsQueue
-			= new LinkedBlockingQueue<>(queueLength);
+	final LongAdder retries = metrics.counter("Retries");
+
+	final LongAdder failures = metrics.counter("Failures");
+
+	/**
+	 * Events written to the spool, replayed from it, or refused because it
+	 * was full
+	 */
+	final LongAdder spooled = metrics.counter("Spooled");
+
+	final LongAdder replayed = metrics.counter("Replayed");
+
+	final LongAdder spoolDropped = metrics.counter("SpoolDropped");
+
+	/**
+	 * Stack traces sent as a reference instead of in full
+	 */
+	final LongAdder tracesOmitted = metrics.counter("TracesOmitted");
+
+	{
+		metrics.gauge("Dropped", this::getDropped);
+		metrics.gauge("QueueDepth", this::getQueueDepth);
+		if (stagingBytes > 0) {
+			metrics.gauge("StagedBytes", this::getStagedBytes);
+		}
+		if (spoolBytes > 0) {
+			metrics.gauge("SpoolBytes", this::getSpoolBytes);
+		}
+		if (suppressor != null) {
+			metrics.gauge("Suppressed", suppressor::getSuppressed);
+		}
+	}
 
 	/**
 	 * the AWS Cloudwatch Logs API client
@@ -58,8 +181,6 @@ public class CloudwatchClient {
 
 	private Formatter formatter = new SimpleFormatter();
 
-	private AtomicReference<String> lastSequenceToken = new AtomicReference<>();
-
 	/**
 	 * The AWS Cloudwatch Log group name
 	 */
@@ -71,20 +192,69 @@ public class CloudwatchClient {
 	private String logStreamName;
 
 	/**
-	 * The maximum number of log entries to send in one go to the AWS Cloudwatch
-	 * Log service
+	 * Send as soon as this many log entries are buffered, without waiting for
+	 * maxLatency
 	 */
-	private final static int messagesBatchSize = 128;
+	private final int flushThreshold = Integer.parseInt(property("flushThreshold", "1000"));
+
+	/**
+	 * The longest time (in milliseconds) a log entry waits in the buffer
+	 * before it is sent
+	 */
+	private final long maxLatency = Long.parseLong(property("maxLatency", "1000"));
 
 	private ScheduledThreadPoolExecutor exe;
 
+	/**
+	 * Set when Embedded Metric Format documents are sent: PutLogEvents then
+	 * carries the x-amzn-logs-format header for CloudWatch to extract them
+	 */
+	private volatile boolean emf;
+
+	/**
+	 * Creates the AWS client, the log group and the senders, retrying every
+	 * 1 s up to every 60 s until it succeeds
+	 */
+	private final Bootstrap bootstrap = new Bootstrap(getClass().getSimpleName(), this::init, 1000, 60000);
+
+	/**
+	 * Set once the senders run
+	 */
+	private volatile boolean ready;
+
+	private boolean closed;
+
+	/**
+	 * The most PutLogEvents requests in flight at once, across streams. A
+	 * stream never has more than one.
+	 */
+	private final int inFlight = Math.max(1, Integer.parseInt(property("inFlight", String.valueOf(streams))));
+
+	/**
+	 * Runs the PutLogEvents requests, so that the senders prepare the next
+	 * batch while the previous one is on the wire
+	 */
+	private final ExecutorService ioExecutor = Executors.newFixedThreadPool(inFlight, r -> {
+		Thread t = new Thread(r, "CloudwatchClient-io");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Reads org.apache.plugins.CloudwatchClient.&lt;name&gt; from
+	 * logging.properties
+	 */
+	protected static String property(String name, String defaultValue) {
+		String value = LogManager.getLogManager().getProperty(CloudwatchClient.class.getName() + "." + name);
+		return value == null ? defaultValue : value.trim();
+	}
+
 	public CloudwatchClient() {
 		super();
 		try {
 			logGroupName
 					= "/tomcat/" + InetAddress.getLocalHost().getHostName();
 			logStreamName = Instant.now().toString().replace(':', '.');
-			init();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -107,71 +277,144 @@ public class CloudwatchClient {
 		this.logStreamName = logStreamName;
 	}
 
-	public Formatter getFormatter() {
-		return formatter;
+	public String getLogGroupName() {
+		return logGroupName;
 	}
 
-	public void setFormatter(Formatter formatter) {
-		this.formatter = formatter;
+	public String getLogStreamName() {
+		return logStreamName;
 	}
 
-	private synchronized void sendMessages() {
-		LogRecord polledLoggingEvent;
-		List<LogRecord> loggingEvents = new ArrayList<>();
-		try {
-			while ((polledLoggingEvent = loggingEventsQueue.poll()) != null
-					&& loggingEvents.size() <= messagesBatchSize) {
-				loggingEvents.add(polledLoggingEvent);
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * @return true if records are formatted as they are published, see
+	 *         stagingBytes
+	 */
+	public boolean isStaging() {
+		return stagingBytes > 0;
+	}
+
+	public boolean isEmf() {
+		return emf;
+	}
+
+	public void setEmf(boolean emf) {
+		this.emf = emf;
+	}
+
+	Executor getIoExecutor() {
+		return ioExecutor;
+	}
+
+	int getFlushThreshold() {
+		return flushThreshold;
+	}
+
+	long getMaxLatency() {
+		return maxLatency;
+	}
+
+	/**
+	 * @return the number of log entries discarded because the buffer was full
+	 */
+	public long getDropped() {
+		long dropped = 0;
+		for (LogStreamShard shard : shards) {
+			dropped += shard.loggingEventsQueue.getDropped();
+		}
+		return dropped;
+	}
+
+	public int getQueueDepth() {
+		int depth = 0;
+		for (LogStreamShard shard : shards) {
+			depth += shard.loggingEventsQueue.size();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return the bytes of direct memory holding staged entries
+	 */
+	public long getStagedBytes() {
+		long staged = 0;
+		for (LogStreamShard shard : shards) {
+			if (shard.loggingEventsQueue instanceof OffHeapEventQueue) {
+				staged += ((OffHeapEventQueue) shard.loggingEventsQueue).getStagedBytes();
 			}
+		}
+		return staged;
+	}
 
-			List<InputLogEvent> inputLogEvents = loggingEvents.stream()
-					.sorted(Comparator.comparing(LogRecord::getMillis))
-					.map(loggingEvent -> {
-						String msg;
-						if (loggingEvent instanceof JsonLogRecord) {
-							msg = ((JsonLogRecord) loggingEvent).getMessage();
-						} else {
-							msg = formatter.format(loggingEvent);
-						}
-						return new InputLogEvent()
-								.withTimestamp(loggingEvent.getMillis())
-								.withMessage(msg);
-					}).collect(toList());
-
-			if (!loggingEvents.isEmpty()) {
-				PutLogEventsRequest putLogEventsRequest
-						= new PutLogEventsRequest(logGroupName, logStreamName,
-								inputLogEvents);
-				try {
-					putLogEventsRequest
-							.setSequenceToken(lastSequenceToken.get());
-					PutLogEventsResult result
-							= awsLogsClient.putLogEvents(putLogEventsRequest);
-					lastSequenceToken.set(result.getNextSequenceToken());
-				} catch (InvalidSequenceTokenException invalidSequenceTokenException) {
-					System.err.println("Resetting sequenceToken");
-					putLogEventsRequest
-							.setSequenceToken(invalidSequenceTokenException
-									.getExpectedSequenceToken());
-					PutLogEventsResult result
-							= awsLogsClient.putLogEvents(putLogEventsRequest);
-					lastSequenceToken.set(result.getNextSequenceToken());
-				}
+	/**
+	 * @return the bytes of spooled events not sent yet
+	 */
+	public long getSpoolBytes() {
+		long bytes = 0;
+		for (LogStreamShard shard : shards) {
+			if (shard.spool != null) {
+				bytes += shard.spool.getBytes();
 			}
-		} catch (Exception e) {
-			// should never happen
-			System.err.println("IGNORED: " + e.toString());
-			e.printStackTrace();
 		}
+		return bytes;
 	}
 
-	protected void initializeBackgroundThreads() {
-		exe = new ScheduledThreadPoolExecutor(1);
-		exe.scheduleAtFixedRate(() -> {
-			if (loggingEventsQueue.size() > 0) {
-				sendMessages();
+	/**
+	 * @return null, with the error reported, if the spool cannot be opened
+	 */
+	private LogSpool openSpool(int index) {
+		try {
+			return new LogSpool(new File(spoolDir, String.valueOf(index)), spoolBytes);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Failed to open the spool in " + spoolDir + ": " + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * The message a record is sent as
+	 */
+	String message(LogRecord record) {
+		if (record instanceof JsonLogRecord) {
+			return ((JsonLogRecord) record).getMessage();
+		}
+		if (fingerprinter != null && record.getThrown() != null) {
+			StackTraceFingerprinter.Trace trace = fingerprinter.trace(record.getThrown());
+			if (!trace.isFull()) {
+				tracesOmitted.increment();
 			}
-		}, 0, 1, TimeUnit.SECONDS);
+			return formatter.format(StackTraceFingerprinter.withoutThrown(record)) + trace.getText();
+		}
+		return formatter.format(record);
+	}
+
+	public Formatter getFormatter() {
+		return formatter;
+	}
+
+	public void setFormatter(Formatter formatter) {
+		this.formatter = formatter;
+	}
+
+	protected synchronized void initializeBackgroundThreads() {
+		if (exe != null) {
+			return;
+		}
+		metrics.register("CloudwatchClient", logGroupName + "/" + logStreamName);
+		exe = new ScheduledThreadPoolExecutor(shards.length);
+		exe.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		for (LogStreamShard shard : shards) {
+			exe.execute(() -> shard.drain(exe));
+		}
+		if (suppressor != null) {
+			// summaries of the bursts that stopped
+			exe.scheduleWithFixedDelay(() -> suppressor.expire(this::enqueue), burstWindow, burstWindow,
+					TimeUnit.MILLISECONDS);
+		}
+		ready = true;
 	}
 
 	private void initializeCloudwatchResources() {
@@ -189,40 +432,70 @@ public class CloudwatchClient {
 							.withLogGroupName(logGroupName);
 			awsLogsClient.createLogGroup(createLogGroupRequest);
 		}
-		DescribeLogStreamsRequest describeLogStreamsRequest
-				= new DescribeLogStreamsRequest().withLogGroupName(logGroupName)
-						.withLogStreamNamePrefix(logStreamName);
-		Optional<LogStream> logStreamOptional
-				= awsLogsClient.describeLogStreams(describeLogStreamsRequest)
-						.getLogStreams().stream().filter(logStream -> logStream
-								.getLogStreamName().equals(logStreamName))
-						.findFirst();
-		if (!logStreamOptional.isPresent()) {
-			System.out.println("About to create LogStream: " + logStreamName
-					+ " in LogGroup: " + logGroupName);
-			CreateLogStreamRequest createLogStreamRequest
-					= new CreateLogStreamRequest()
-							.withLogGroupName(logGroupName)
-							.withLogStreamName(logStreamName);
-			awsLogsClient.createLogStream(createLogStreamRequest);
-		}
+		// the log streams are created by their shard on its first send
 	}
 
+	/**
+	 * Never throws: when the buffer is full the overflow policy decides
+	 * whether to wait, to displace older entries or to spool or drop this
+	 * one.
+	 */
 	public void publish(LogRecord record) {
-		loggingEventsQueue.add(record);
+		// not JSON entries: each is distinct, and keying one would render it here
+		if (suppressor != null && !(record instanceof JsonLogRecord)) {
+			suppressor.offer(record, this::enqueue);
+		} else {
+			enqueue(record);
+		}
+	}
+
+	private void enqueue(LogRecord record) {
+		enqueued.mark();
+		shardFor(record).offer(record);
+	}
+
+	private LogStreamShard shardFor(LogRecord record) {
+		if (shards.length == 1) {
+			return shards[0];
+		}
+		long key = shardByLogger && record.getLoggerName() != null ? record.getLoggerName().hashCode()
+				: Thread.currentThread().getId();
+		return shards[(int) ((key & Long.MAX_VALUE) % shards.length)];
 	}
 
+	/**
+	 * Starts {@link #init()} in the background, once
+	 */
+	public void start() {
+		bootstrap.start();
+	}
+
+	/**
+	 * @return true once records are being sent
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Blocks on AWS; does nothing once it succeeded
+	 */
 	public synchronized void init() throws IOException {
+		if (ready || closed) {
+			return;
+		}
 		System.err.println(
 				"Initialing CloudwatchAppender with LogGroupName("
 						+ logGroupName + ") and LogStreamName("
 						+ logStreamName + ")");
-			
-		this.awsLogsClient = new AWSLogsClient(
-				DefaultAWSCredentialsProviderChain.getInstance());
 
-		this.awsLogsClient.setRegion(Region.getRegion(Regions
-				.fromName(new DefaultAwsRegionProviderChain().getRegion())));
+		if (this.awsLogsClient == null) {
+			this.awsLogsClient = new AWSLogsClient(
+					DefaultAWSCredentialsProviderChain.getInstance());
+
+			this.awsLogsClient.setRegion(Region.getRegion(Regions
+					.fromName(new DefaultAwsRegionProviderChain().getRegion())));
+		}
 
 		initializeCloudwatchResources();
 		
@@ -230,16 +503,48 @@ public class CloudwatchClient {
 		
 	}
 
-	public synchronized void close() throws SecurityException {
+	public void close() throws SecurityException {
+		bootstrap.cancel();
+		synchronized (this) {
+			closeInternal();
+		}
+	}
+
+	private void closeInternal() {
+		closed = true;
+		if (suppressor != null) {
+			suppressor.close(this::enqueue);
+		}
+		if (exe == null) {
+			ioExecutor.shutdown();
+			flush();
+			System.err.println("Closed before " + logGroupName + "/" + logStreamName + " was initialized, "
+					+ getQueueDepth() + " log entries not sent");
+			return;
+		}
 		exe.shutdown();
 		try {
 			exe.awaitTermination(2, TimeUnit.SECONDS);
 		} catch (InterruptedException e) {
 		}
 		flush();
+		ioExecutor.shutdown();
+		metrics.unregister();
+		if (getDropped() > 0) {
+			System.err.println("Dropped " + getDropped() + " log entries because the buffer was full");
+		}
 	}
 
+	/**
+	 * Before the senders run, only syncs the spools
+	 */
 	public void flush() {
-		sendMessages();
+		for (LogStreamShard shard : shards) {
+			if (ready) {
+				shard.flush();
+			} else if (shard.spool != null) {
+				shard.spool.sync();
+			}
+		}
 	}
 }
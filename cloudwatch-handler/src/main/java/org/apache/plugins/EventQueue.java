@@ -0,0 +1,33 @@
+package org.apache.plugins;
+
+import java.util.logging.LogRecord;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+
+/**
+ * Where the log entries of one {@link LogStreamShard} wait for its sender.
+ * Any number of threads offer, one thread at a time polls.
+ */
+interface EventQueue {
+
+	/**
+	 * Never throws
+	 *
+	 * @return false if the entry was dropped
+	 */
+	boolean offer(LogRecord record);
+
+	/**
+	 * @return the oldest entry, ready to send, or null if there is none
+	 */
+	InputLogEvent poll();
+
+	int size();
+
+	boolean isEmpty();
+
+	/**
+	 * @return the number of entries discarded because the queue was full
+	 */
+	long getDropped();
+}
@@ -0,0 +1,48 @@
+package org.apache.plugins;
+
+import java.util.function.Function;
+import java.util.logging.LogRecord;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+
+/**
+ * Keeps the LogRecords themselves, bounded by count, and formats them as
+ * they are polled: the producers only pay for the offer.
+ */
+class HeapEventQueue implements EventQueue {
+
+	private final StripedBuffer<LogRecord> buffer;
+
+	private final Function<LogRecord, String> formatter;
+
+	HeapEventQueue(StripedBuffer<LogRecord> buffer, Function<LogRecord, String> formatter) {
+		this.buffer = buffer;
+		this.formatter = formatter;
+	}
+
+	@Override
+	public boolean offer(LogRecord record) {
+		return buffer.offer(record);
+	}
+
+	@Override
+	public InputLogEvent poll() {
+		LogRecord record = buffer.poll();
+		return record == null ? null : LogEventBatch.event(record.getMillis(), formatter.apply(record));
+	}
+
+	@Override
+	public int size() {
+		return buffer.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return buffer.isEmpty();
+	}
+
+	@Override
+	public long getDropped() {
+		return buffer.getDropped();
+	}
+}
@@ -11,6 +11,11 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 public class JsonLogRecord extends LogRecord {
 
 	private ObjectNode json;
+
+	/**
+	 * Already serialized JSON text, if the record was built from one
+	 */
+	private String text;
 	
 	private static final ObjectMapper om = new ObjectMapper();
 
@@ -19,11 +24,44 @@ public class JsonLogRecord extends LogRecord {
 		this.json = json;
 	}
 
-	public final String getMessage() {
+	/**
+	 * @param text a complete, compact JSON document
+	 */
+	public JsonLogRecord(String text) {
+		super(Level.ALL, null);
+		this.text = text;
+	}
+
+	/**
+	 * For records whose text is rendered on first use, see {@link #render()}
+	 */
+	protected JsonLogRecord() {
+		super(Level.ALL, null);
+	}
+
+	/**
+	 * Synchronized, as the first call may come from any sender thread
+	 */
+	public final synchronized String getMessage() {
+		if (text != null) {
+			return text;
+		}
+		if (json == null) {
+			text = render();
+			return text;
+		}
 		try {
 			return om.writeValueAsString(json);
 		} catch (JsonProcessingException e) {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/**
+	 * Called once, by the first getMessage(), on records built with neither
+	 * JSON nor text
+	 */
+	protected String render() {
+		return "{}";
+	}
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package org.apache.plugins;
+
+/**
+ * Appends JSON string literals to a StringBuilder, escaping the same
+ * characters Jackson does by default: quote, backslash and control
+ * characters.
+ */
+public final class JsonText {
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private JsonText() {
+	}
+
+	/**
+	 * @return the field name token, e.g. "name": ready to be appended before a
+	 *         value
+	 */
+	public static String fieldName(String name) {
+		StringBuilder sb = new StringBuilder(name.length() + 3);
+		appendString(sb, name);
+		return sb.append(':').toString();
+	}
+
+	public static void appendString(StringBuilder sb, CharSequence value) {
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			appendChar(sb, value.charAt(i));
+		}
+		sb.append('"');
+	}
+
+	public static void appendString(StringBuilder sb, char[] value, int offset, int length) {
+		sb.append('"');
+		for (int i = offset; i < offset + length; i++) {
+			appendChar(sb, value[i]);
+		}
+		sb.append('"');
+	}
+
+	private static void appendChar(StringBuilder sb, char c) {
+		if (c >= 0x20 && c != '"' && c != '\\') {
+			sb.append(c);
+			return;
+		}
+		switch (c) {
+		case '"':
+			sb.append("\\\"");
+			break;
+		case '\\':
+			sb.append("\\\\");
+			break;
+		case '\n':
+			sb.append("\\n");
+			break;
+		case '\r':
+			sb.append("\\r");
+			break;
+		case '\t':
+			sb.append("\\t");
+			break;
+		case '\b':
+			sb.append("\\b");
+			break;
+		case '\f':
+			sb.append("\\f");
+			break;
+		default:
+			sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+		}
+	}
+}
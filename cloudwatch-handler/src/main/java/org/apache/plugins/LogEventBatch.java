@@ -0,0 +1,130 @@
+package org.apache.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+
+/**
+ * One PutLogEvents request worth of events, filled up to the service limits:
+ * 10,000 events, 1,048,576 bytes counting 26 bytes of overhead per event, and
+ * a 24 hour span between the oldest and the newest event. A message too big
+ * for a single event is truncated instead of failing the whole batch.
+ */
+public class LogEventBatch {
+
+	public static final int MAX_EVENTS = 10000;
+
+	public static final int MAX_BYTES = 1048576;
+
+	public static final int EVENT_OVERHEAD = 26;
+
+	public static final int MAX_EVENT_BYTES = 262144;
+
+	public static final long MAX_SPAN = TimeUnit.HOURS.toMillis(24);
+
+	static final String TRUNCATED = "...[TRUNCATED]";
+
+	private final List<InputLogEvent> events = new ArrayList<>();
+
+	private int bytes;
+
+	private long oldest = Long.MAX_VALUE;
+
+	private long newest = Long.MIN_VALUE;
+
+	/**
+	 * @return the event as it will be sent: the message is truncated to fit
+	 *         MAX_EVENT_BYTES once encoded in UTF-8
+	 */
+	public static InputLogEvent event(long timestamp, String message) {
+		return new InputLogEvent().withTimestamp(timestamp).withMessage(fit(message));
+	}
+
+	/**
+	 * @return the message, truncated to fit MAX_EVENT_BYTES once encoded in
+	 *         UTF-8
+	 */
+	public static String fit(String message) {
+		if (message.length() * 3 + EVENT_OVERHEAD > MAX_EVENT_BYTES
+				&& size(message) > MAX_EVENT_BYTES) {
+			return truncate(message, MAX_EVENT_BYTES - EVENT_OVERHEAD - TRUNCATED.length()) + TRUNCATED;
+		}
+		return message;
+	}
+
+	/**
+	 * @return the number of bytes the event counts for against MAX_BYTES
+	 */
+	public static int size(InputLogEvent event) {
+		return size(event.getMessage());
+	}
+
+	private static int size(String message) {
+		int size = EVENT_OVERHEAD;
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			if (c < 0x80) {
+				size += 1;
+			} else if (c < 0x800) {
+				size += 2;
+			} else if (Character.isHighSurrogate(c)) {
+				size += 4;
+				++i;
+			} else {
+				size += 3;
+			}
+		}
+		return size;
+	}
+
+	private static String truncate(String message, int maxBytes) {
+		byte[] utf8 = message.getBytes(StandardCharsets.UTF_8);
+		int end = Math.min(maxBytes, utf8.length);
+		// do not cut a multi-byte character in half
+		while (end > 0 && end < utf8.length && (utf8[end] & 0xC0) == 0x80) {
+			--end;
+		}
+		return new String(utf8, 0, end, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return false, leaving the batch unchanged, if the event does not fit
+	 */
+	public boolean add(InputLogEvent event) {
+		int size = size(event);
+		long timestamp = event.getTimestamp();
+		if (events.size() >= MAX_EVENTS || bytes + size > MAX_BYTES
+				|| Math.max(newest, timestamp) - Math.min(oldest, timestamp) > MAX_SPAN) {
+			return false;
+		}
+		events.add(event);
+		bytes += size;
+		oldest = Math.min(oldest, timestamp);
+		newest = Math.max(newest, timestamp);
+		return true;
+	}
+
+	public boolean isEmpty() {
+		return events.isEmpty();
+	}
+
+	public int getEventCount() {
+		return events.size();
+	}
+
+	public int getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the events in chronological order, as PutLogEvents requires
+	 */
+	public List<InputLogEvent> getEvents() {
+		events.sort(Comparator.comparing(InputLogEvent::getTimestamp));
+		return events;
+	}
+}
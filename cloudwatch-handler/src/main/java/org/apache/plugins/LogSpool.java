@@ -0,0 +1,271 @@
+package org.apache.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+
+/**
+ * Durable, append-only store of log events that could not be sent, read
+ * back in order once the service recovers, also after a restart.
+ *
+ * Events go to memory-mapped segment files named by sequence number, as
+ * [length][timestamp][UTF-8 message] records; the length is written last,
+ * so a record cut short by a crash ends the segment. The position up to
+ * which events were acknowledged is kept in a mapped "ack" file. Fully
+ * acknowledged segments are deleted. The segments never take more than
+ * maxBytes on disk: events beyond that are refused.
+ */
+class LogSpool {
+
+	/**
+	 * int length, long timestamp
+	 */
+	private static final int HEADER = 12;
+
+	private static final String SUFFIX = ".seg";
+
+	/**
+	 * Where a read stopped, to acknowledge once its events are sent
+	 */
+	static final class Position {
+
+		final long segment;
+
+		final int offset;
+
+		Position(long segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+
+	private static final class Segment {
+
+		final long sequence;
+
+		final File file;
+
+		final MappedByteBuffer buffer;
+
+		/**
+		 * The end of the last complete record
+		 */
+		int end;
+
+		Segment(long sequence, File file, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private final File dir;
+
+	private final int segmentSize;
+
+	private final int maxSegments;
+
+	private final List<Segment> segments = new ArrayList<>();
+
+	private final MappedByteBuffer ack;
+
+	private long ackSegment;
+
+	private int ackOffset;
+
+	private boolean dirty;
+
+	/**
+	 * @param maxBytes
+	 *            the most disk space taken by the segments
+	 */
+	LogSpool(File dir, long maxBytes) throws IOException {
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		// a segment holds at least one event of the largest size
+		this.segmentSize = (int) Math.max(LogEventBatch.MAX_EVENT_BYTES + HEADER,
+				Math.min(64L << 20, maxBytes / 4));
+		this.maxSegments = (int) Math.max(1, maxBytes / segmentSize);
+
+		try (RandomAccessFile file = new RandomAccessFile(new File(dir, "ack"), "rw")) {
+			ack = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 12);
+		}
+		ackSegment = ack.getLong(0);
+		ackOffset = ack.getInt(8);
+
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		Arrays.sort(files);
+		for (File file : files) {
+			long sequence = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+			if (sequence < ackSegment) {
+				file.delete();
+				continue;
+			}
+			Segment segment = map(sequence, file);
+			segment.end = scan(segment.buffer);
+			segments.add(segment);
+		}
+		if (!segments.isEmpty() && segments.get(0).sequence > ackSegment) {
+			acknowledge(segments.get(0).sequence, 0);
+		}
+	}
+
+	private Segment map(long sequence, File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			return new Segment(sequence, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+		}
+	}
+
+	/**
+	 * @return the end of the last complete record
+	 */
+	private int scan(MappedByteBuffer buffer) {
+		int position = 0;
+		while (position + HEADER <= segmentSize) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || position + HEADER + length > segmentSize) {
+				break;
+			}
+			position += HEADER + length;
+		}
+		return position;
+	}
+
+	/**
+	 * @return false if the spool is full
+	 */
+	synchronized boolean append(long timestamp, String message) {
+		byte[] bytes = LogEventBatch.fit(message).getBytes(StandardCharsets.UTF_8);
+		Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (tail == null || tail.end + HEADER + bytes.length > segmentSize) {
+			if (segments.size() >= maxSegments) {
+				return false;
+			}
+			if (tail != null) {
+				tail.buffer.force();
+			}
+			try {
+				long sequence = tail == null ? Math.max(ackSegment, 1) : tail.sequence + 1;
+				tail = map(sequence, new File(dir, String.format("%020d", sequence) + SUFFIX));
+			} catch (IOException e) {
+				System.err.println("Failed to create a spool segment in " + dir + ": " + e.toString());
+				return false;
+			}
+			segments.add(tail);
+			if (segments.size() == 1) {
+				acknowledge(tail.sequence, 0);
+			}
+		}
+		MappedByteBuffer buffer = tail.buffer;
+		buffer.putLong(tail.end + 4, timestamp);
+		buffer.position(tail.end + HEADER);
+		buffer.put(bytes);
+		// last, so that a torn record is never read
+		buffer.putInt(tail.end, bytes.length);
+		tail.end += HEADER + bytes.length;
+		dirty = true;
+		return true;
+	}
+
+	synchronized boolean isEmpty() {
+		for (Segment segment : segments) {
+			if (segment.end > (segment.sequence == ackSegment ? ackOffset : 0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the bytes of events not acknowledged yet
+	 */
+	synchronized long getBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += segment.end - (segment.sequence == ackSegment ? ackOffset : 0);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Adds the oldest events not acknowledged yet to the batch, until it is
+	 * full or the spool is exhausted
+	 *
+	 * @return where the read stopped
+	 */
+	synchronized Position read(LogEventBatch batch) {
+		long segmentSequence = ackSegment;
+		int position = ackOffset;
+		for (Segment segment : segments) {
+			if (segment.sequence < ackSegment) {
+				continue;
+			}
+			position = segment.sequence == ackSegment ? ackOffset : 0;
+			segmentSequence = segment.sequence;
+			while (position < segment.end) {
+				int length = segment.buffer.getInt(position);
+				long timestamp = segment.buffer.getLong(position + 4);
+				byte[] bytes = new byte[length];
+				segment.buffer.position(position + HEADER);
+				segment.buffer.get(bytes);
+				InputLogEvent event = new InputLogEvent().withTimestamp(timestamp)
+						.withMessage(new String(bytes, StandardCharsets.UTF_8));
+				if (!batch.add(event)) {
+					return new Position(segmentSequence, position);
+				}
+				position += HEADER + length;
+			}
+		}
+		return new Position(segmentSequence, position);
+	}
+
+	/**
+	 * Marks everything before the position as sent, deleting the segments it
+	 * leaves behind
+	 */
+	synchronized void ack(Position position) {
+		while (!segments.isEmpty() && segments.get(0).sequence < position.segment) {
+			segments.remove(0).file.delete();
+		}
+		if (!segments.isEmpty() && segments.size() == 1 && position.offset >= segments.get(0).end) {
+			// all sent: start over with the next append
+			Segment last = segments.remove(0);
+			acknowledge(last.sequence + 1, 0);
+			last.file.delete();
+			return;
+		}
+		acknowledge(position.segment, position.offset);
+	}
+
+	private void acknowledge(long segment, int offset) {
+		ackSegment = segment;
+		ackOffset = offset;
+		ack.putLong(0, segment);
+		ack.putInt(8, offset);
+		dirty = true;
+	}
+
+	/**
+	 * Writes the mapped pages to disk
+	 */
+	synchronized void sync() {
+		if (!dirty) {
+			return;
+		}
+		if (!segments.isEmpty()) {
+			segments.get(segments.size() - 1).buffer.force();
+		}
+		ack.force();
+		dirty = false;
+	}
+}
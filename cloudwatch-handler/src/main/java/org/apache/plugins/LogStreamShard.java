@@ -0,0 +1,347 @@
+package org.apache.plugins;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.LogRecord;
+
+import com.amazonaws.services.logs.model.CreateLogStreamRequest;
+import com.amazonaws.services.logs.model.DataAlreadyAcceptedException;
+import com.amazonaws.services.logs.model.InputLogEvent;
+import com.amazonaws.services.logs.model.InvalidSequenceTokenException;
+import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import com.amazonaws.services.logs.model.PutLogEventsResult;
+import com.amazonaws.services.logs.model.ResourceAlreadyExistsException;
+
+/**
+ * One log stream of a {@link CloudwatchClient}, with its own buffer, sequence
+ * token and sender. The stream is created on its first send.
+ *
+ * With a {@link LogSpool}, events that do not fit the buffer or fail to send
+ * are spooled to disk. While the spool holds events, new batches are
+ * appended behind them, and the sender replays the spool in order, backing
+ * off while the service keeps failing.
+ */
+class LogStreamShard {
+
+	/**
+	 * The shortest pause (in milliseconds) between two drains. The pause
+	 * doubles while the buffer stays empty, up to half of maxLatency.
+	 */
+	private final static long minPollInterval = 10;
+
+	/**
+	 * Milliseconds between replays of the spool while sending fails
+	 */
+	private final static long minReplayBackoff = 1000;
+
+	private final static long maxReplayBackoff = 60000;
+
+	/**
+	 * Batches replayed per drain, so that the buffer is drained in between
+	 */
+	private final static int replayBatches = 10;
+
+	private final CloudwatchClient client;
+
+	private final int index;
+
+	final EventQueue loggingEventsQueue;
+
+	/**
+	 * May be null
+	 */
+	final LogSpool spool;
+
+	private long replayBackoff;
+
+	/**
+	 * When the spool may be replayed next
+	 */
+	private volatile long nextReplay;
+
+	private final AtomicReference<String> lastSequenceToken = new AtomicReference<>();
+
+	private volatile boolean streamCreated;
+
+	/**
+	 * An event taken from the buffer that did not fit the previous batch
+	 */
+	private InputLogEvent carry;
+
+	/**
+	 * When the sender first saw the buffer non-empty since its last send
+	 */
+	private long pendingSince;
+
+	private long pollInterval = minPollInterval;
+
+	/**
+	 * The PutLogEvents request of this stream currently being sent
+	 */
+	private CompletableFuture<Void> inFlight = CompletableFuture.completedFuture(null);
+
+	LogStreamShard(CloudwatchClient client, int index, EventQueue loggingEventsQueue, LogSpool spool) {
+		this.client = client;
+		this.index = index;
+		this.loggingEventsQueue = loggingEventsQueue;
+		this.spool = spool;
+	}
+
+	/**
+	 * Never throws: the record goes to the buffer, else to the spool, else it
+	 * is dropped
+	 */
+	void offer(LogRecord record) {
+		if (!loggingEventsQueue.offer(record) && spool != null) {
+			try {
+				spool(record.getMillis(), client.message(record));
+			} catch (RuntimeException e) {
+				System.err.println("IGNORED: " + e.toString());
+			}
+		}
+	}
+
+	private void spool(long timestamp, String message) {
+		if (spool.append(timestamp, message)) {
+			client.spooled.increment();
+		} else {
+			client.spoolDropped.increment();
+		}
+	}
+
+	/**
+	 * Never throws: what the spool fails to take is dropped
+	 */
+	private void spool(List<InputLogEvent> events) {
+		int spooled = 0;
+		try {
+			for (InputLogEvent event : events) {
+				spool(event.getTimestamp(), event.getMessage());
+				spooled++;
+			}
+		} catch (RuntimeException e) {
+			client.spoolDropped.add(events.size() - spooled);
+			System.err.println("Dropping " + (events.size() - spooled) + " events: " + e.toString());
+		}
+	}
+
+	String getLogStreamName() {
+		return client.getShardCount() == 1 ? client.getLogStreamName()
+				: client.getLogStreamName() + "-" + index;
+	}
+
+	private void ensureStream() {
+		if (streamCreated) {
+			return;
+		}
+		try {
+			System.out.println("About to create LogStream: " + getLogStreamName()
+					+ " in LogGroup: " + client.getLogGroupName());
+			client.awsLogsClient.createLogStream(new CreateLogStreamRequest()
+					.withLogGroupName(client.getLogGroupName())
+					.withLogStreamName(getLogStreamName()));
+		} catch (ResourceAlreadyExistsException e) {
+			// the first put learns the sequence token
+		}
+		streamCreated = true;
+	}
+
+	/**
+	 * Prepares one batch, as large as the PutLogEvents limits allow, while the
+	 * previous request of this stream is still in flight, then hands it to the
+	 * client's I/O executor once that request has completed. A stream has at
+	 * most one request in flight because each put needs the sequence token
+	 * returned by the previous one.
+	 *
+	 * @return the number of log entries sent
+	 */
+	synchronized int sendMessages() {
+		LogEventBatch batch = new LogEventBatch();
+		try {
+			if (carry != null && batch.add(carry)) {
+				carry = null;
+			}
+			InputLogEvent event;
+			while (carry == null && (event = loggingEventsQueue.poll()) != null) {
+				if (!batch.add(event)) {
+					carry = event;
+				}
+			}
+		} catch (Exception e) {
+			// should never happen
+			System.err.println("IGNORED: " + e.toString());
+			e.printStackTrace();
+		}
+		if (batch.isEmpty()) {
+			return 0;
+		}
+		List<InputLogEvent> events = batch.getEvents();
+		awaitInFlight();
+		if (spool != null && !spool.isEmpty()) {
+			// behind the spooled events, to keep the order
+			spool(events);
+			return batch.getEventCount();
+		}
+		client.batchSize.record(batch.getEventCount());
+		client.batchBytes.record(batch.getBytes());
+		try {
+			inFlight = CompletableFuture.runAsync(() -> put(events), client.getIoExecutor());
+		} catch (RejectedExecutionException e) {
+			// closed: send on this thread
+			put(events);
+		}
+		return batch.getEventCount();
+	}
+
+	/**
+	 * Never throws, so that inFlight always completes normally
+	 */
+	private void put(List<InputLogEvent> events) {
+		try {
+			if (!send(events) && spool != null) {
+				spool(events);
+				nextReplay = System.currentTimeMillis() + Math.max(minReplayBackoff, replayBackoff);
+			}
+		} catch (RuntimeException e) {
+			System.err.println("IGNORED: " + e.toString());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Waits for the request in flight; its failures were handled by put
+	 */
+	private void awaitInFlight() {
+		try {
+			inFlight.join();
+		} catch (CompletionException e) {
+			// should never happen
+			System.err.println("IGNORED: " + e.toString());
+		}
+	}
+
+	/**
+	 * @return false if the events were not stored
+	 */
+	private boolean send(List<InputLogEvent> events) {
+		long start = System.nanoTime();
+		try {
+			ensureStream();
+			PutLogEventsRequest putLogEventsRequest
+					= new PutLogEventsRequest(client.getLogGroupName(), getLogStreamName(), events);
+			if (client.isEmf()) {
+				putLogEventsRequest.putCustomRequestHeader("x-amzn-logs-format", "json/emf");
+			}
+			try {
+				putLogEventsRequest
+						.setSequenceToken(lastSequenceToken.get());
+				PutLogEventsResult result
+						= client.awsLogsClient.putLogEvents(putLogEventsRequest);
+				lastSequenceToken.set(result.getNextSequenceToken());
+			} catch (InvalidSequenceTokenException invalidSequenceTokenException) {
+				System.err.println("Resetting sequenceToken");
+				client.retries.increment();
+				putLogEventsRequest
+						.setSequenceToken(invalidSequenceTokenException
+								.getExpectedSequenceToken());
+				PutLogEventsResult result
+						= client.awsLogsClient.putLogEvents(putLogEventsRequest);
+				lastSequenceToken.set(result.getNextSequenceToken());
+			} catch (DataAlreadyAcceptedException dataAlreadyAcceptedException) {
+				// a retry of a request that went through: the events are stored
+				lastSequenceToken.set(dataAlreadyAcceptedException.getExpectedSequenceToken());
+			}
+			return true;
+		} catch (Exception e) {
+			client.failures.increment();
+			if (spool == null) {
+				System.err.println("IGNORED: " + e.toString());
+				e.printStackTrace();
+			} else {
+				System.err.println("Spooling " + events.size() + " events: " + e.toString());
+			}
+			return false;
+		} finally {
+			client.putLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		}
+	}
+
+	/**
+	 * Sends a batch once the oldest pending entry is due, and keeps sending
+	 * full batches for as long as at least flushThreshold entries are
+	 * buffered. Then reschedules itself: quickly while entries are pending,
+	 * backing off while the buffer stays empty.
+	 */
+	void drain(ScheduledExecutorService exe) {
+		try {
+			if (spool != null && System.currentTimeMillis() >= nextReplay && !spool.isEmpty()) {
+				replay();
+			}
+			if (loggingEventsQueue.isEmpty() && carry == null) {
+				pendingSince = 0;
+				pollInterval = Math.min(pollInterval * 2, Math.max(minPollInterval, client.getMaxLatency() / 2));
+				return;
+			}
+			pollInterval = minPollInterval;
+			long now = System.currentTimeMillis();
+			if (pendingSince == 0) {
+				pendingSince = now;
+			}
+			boolean sent = false;
+			if (now - pendingSince >= client.getMaxLatency()) {
+				sent = sendMessages() > 0;
+			}
+			while (loggingEventsQueue.size() >= client.getFlushThreshold() && sendMessages() > 0) {
+				sent = true;
+			}
+			if (sent) {
+				pendingSince = loggingEventsQueue.isEmpty() && carry == null ? 0 : now;
+			}
+		} finally {
+			try {
+				exe.schedule(() -> drain(exe), pollInterval, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// closed
+			}
+		}
+	}
+
+	/**
+	 * Sends the oldest spooled events, on this thread. Stops at the first
+	 * failure and backs off.
+	 */
+	private synchronized void replay() {
+		awaitInFlight();
+		for (int i = 0; i < replayBatches; i++) {
+			LogEventBatch batch = new LogEventBatch();
+			LogSpool.Position end = spool.read(batch);
+			if (batch.isEmpty()) {
+				break;
+			}
+			if (!send(batch.getEvents())) {
+				replayBackoff = Math.min(maxReplayBackoff, Math.max(minReplayBackoff, replayBackoff * 2));
+				nextReplay = System.currentTimeMillis() + replayBackoff;
+				break;
+			}
+			spool.ack(end);
+			client.replayed.add(batch.getEventCount());
+			replayBackoff = 0;
+		}
+		spool.sync();
+	}
+
+	void flush() {
+		while (sendMessages() > 0) {
+			// until the buffer is empty
+		}
+		awaitInFlight();
+		if (spool != null) {
+			spool.sync();
+		}
+	}
+}
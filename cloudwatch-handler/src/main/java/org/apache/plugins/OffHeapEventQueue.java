@@ -0,0 +1,288 @@
+package org.apache.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.logging.LogRecord;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+
+/**
+ * Stages entries as UTF-8 bytes in direct ByteBuffers, bounded by a byte
+ * budget instead of a count. The producer formats and encodes the entry, so
+ * nothing of the LogRecord stays on the heap; the sender decodes each
+ * message straight out of the buffer. Records that render their message on
+ * first use, such as deferred access log entries, are therefore rendered on
+ * the publishing thread.
+ *
+ * The budget is split over stripes picked by thread id, each a ring of
+ * [length][timestamp][message] records. When a stripe is full, DROP_OLDEST
+ * discards its oldest records, BLOCK waits up to blockTimeout for room, and
+ * DROP_NEW and SAMPLE drop the new record. A message longer than a stripe
+ * (only with a budget too small for maximum size messages) is truncated and
+ * marked as LogEventBatch does.
+ */
+class OffHeapEventQueue implements EventQueue {
+
+	/**
+	 * int length, long timestamp
+	 */
+	private static final int HEADER = 12;
+
+	private static final long BLOCK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final Stripe[] stripes;
+
+	private final int mask;
+
+	private final Function<LogRecord, String> formatter;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final long blockTimeoutNanos;
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	private int drainIndex;
+
+	/**
+	 * The sender's copy of the message being decoded
+	 */
+	private byte[] scratch = new byte[4096];
+
+	private long scratchTimestamp;
+
+	private final class Stripe {
+
+		/**
+		 * Only used under the stripe's lock
+		 */
+		private final ByteBuffer ring;
+
+		private final int capacity;
+
+		private final byte[] header = new byte[HEADER];
+
+		/**
+		 * Byte positions of the oldest record and of the end of the newest,
+		 * ever increasing
+		 */
+		private volatile long head;
+
+		private volatile long tail;
+
+		Stripe(int capacity) {
+			this.ring = ByteBuffer.allocateDirect(capacity);
+			this.capacity = capacity;
+		}
+
+		long used() {
+			return tail - head;
+		}
+
+		synchronized boolean write(long timestamp, byte[] message, int length, boolean evict) {
+			int needed = HEADER + length;
+			while (capacity - (tail - head) < needed) {
+				if (!evict || head == tail) {
+					return false;
+				}
+				copyOut(head, header, HEADER);
+				head += HEADER + getInt(header, 0);
+				size.decrementAndGet();
+				dropped.increment();
+			}
+			putInt(header, 0, length);
+			putLong(header, 4, timestamp);
+			copyIn(tail, header, HEADER);
+			copyIn(tail + HEADER, message, length);
+			tail += needed;
+			size.incrementAndGet();
+			return true;
+		}
+
+		/**
+		 * Moves the oldest record into scratch
+		 *
+		 * @return the length of its message, -1 if the stripe is empty
+		 */
+		synchronized int read() {
+			if (head == tail) {
+				return -1;
+			}
+			copyOut(head, header, HEADER);
+			int length = getInt(header, 0);
+			scratchTimestamp = getLong(header, 4);
+			if (scratch.length < length) {
+				scratch = new byte[Math.max(length, scratch.length * 2)];
+			}
+			copyOut(head + HEADER, scratch, length);
+			head += HEADER + length;
+			size.decrementAndGet();
+			return length;
+		}
+
+		private void copyIn(long position, byte[] src, int length) {
+			int offset = (int) (position % capacity);
+			int first = Math.min(length, capacity - offset);
+			ring.position(offset);
+			ring.put(src, 0, first);
+			if (first < length) {
+				ring.position(0);
+				ring.put(src, first, length - first);
+			}
+		}
+
+		private void copyOut(long position, byte[] dst, int length) {
+			int offset = (int) (position % capacity);
+			int first = Math.min(length, capacity - offset);
+			ring.position(offset);
+			ring.get(dst, 0, first);
+			if (first < length) {
+				ring.position(0);
+				ring.get(dst, first, length - first);
+			}
+		}
+	}
+
+	/**
+	 * @param budget
+	 *            bytes of direct memory, split over the stripes
+	 * @param stripes
+	 *            rounded to a power of two, and lowered so that each stripe
+	 *            holds a message of the maximum size
+	 * @param blockTimeout
+	 *            milliseconds a producer waits under
+	 *            {@link OverflowPolicy#BLOCK}
+	 */
+	OffHeapEventQueue(int budget, int stripes, OverflowPolicy overflowPolicy, long blockTimeout,
+			Function<LogRecord, String> formatter) {
+		int n = 1;
+		while (n < stripes && budget / (n * 2) >= LogEventBatch.MAX_EVENT_BYTES + HEADER) {
+			n <<= 1;
+		}
+		this.stripes = new Stripe[n];
+		for (int i = 0; i < n; i++) {
+			this.stripes[i] = new Stripe(Math.max(HEADER + 1024, budget / n));
+		}
+		this.mask = n - 1;
+		this.overflowPolicy = overflowPolicy;
+		this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+		this.formatter = formatter;
+	}
+
+	@Override
+	public boolean offer(LogRecord record) {
+		byte[] message;
+		try {
+			message = LogEventBatch.fit(formatter.apply(record)).getBytes(StandardCharsets.UTF_8);
+		} catch (RuntimeException e) {
+			System.err.println("IGNORED: " + e.toString());
+			dropped.increment();
+			return false;
+		}
+		Stripe stripe = stripes[(int) Thread.currentThread().getId() & mask];
+		if (message.length > stripe.capacity - HEADER) {
+			message = truncate(message, stripe.capacity - HEADER);
+		}
+		int length = message.length;
+		if (stripe.write(record.getMillis(), message, length, overflowPolicy == OverflowPolicy.DROP_OLDEST)) {
+			return true;
+		}
+		if (overflowPolicy == OverflowPolicy.BLOCK) {
+			long start = System.nanoTime();
+			while (System.nanoTime() - start < blockTimeoutNanos) {
+				LockSupport.parkNanos(this, BLOCK_NANOS);
+				if (stripe.write(record.getMillis(), message, length, false)) {
+					return true;
+				}
+			}
+		}
+		dropped.increment();
+		return false;
+	}
+
+	/**
+	 * @return the message cut to at most max bytes, ending with the
+	 *         LogEventBatch truncation marker
+	 */
+	static byte[] truncate(byte[] message, int max) {
+		byte[] marker = LogEventBatch.TRUNCATED.getBytes(StandardCharsets.UTF_8);
+		int length = max - marker.length;
+		// do not cut a multi-byte character in half
+		while (length > 0 && (message[length] & 0xC0) == 0x80) {
+			--length;
+		}
+		byte[] truncated = Arrays.copyOf(message, length + marker.length);
+		System.arraycopy(marker, 0, truncated, length, marker.length);
+		return truncated;
+	}
+
+	/**
+	 * Visits the stripes round robin. Meant for a single consumer thread.
+	 */
+	@Override
+	public InputLogEvent poll() {
+		for (int i = 0; i <= mask; i++) {
+			int length = stripes[drainIndex++ & mask].read();
+			if (length >= 0) {
+				return new InputLogEvent().withTimestamp(scratchTimestamp)
+						.withMessage(new String(scratch, 0, length, StandardCharsets.UTF_8));
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return size.get();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	@Override
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return the bytes of direct memory holding records
+	 */
+	long getStagedBytes() {
+		long used = 0;
+		for (Stripe stripe : stripes) {
+			used += stripe.used();
+		}
+		return used;
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+
+	private static void putLong(byte[] b, int offset, long value) {
+		putInt(b, offset, (int) (value >>> 32));
+		putInt(b, offset + 4, (int) value);
+	}
+
+	private static int getInt(byte[] b, int offset) {
+		return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8
+				| b[offset + 3] & 0xFF;
+	}
+
+	private static long getLong(byte[] b, int offset) {
+		return (long) getInt(b, offset) << 32 | getInt(b, offset + 4) & 0xFFFFFFFFL;
+	}
+}
@@ -0,0 +1,363 @@
+package org.apache.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates requests in process into per-interval request counts, error
+ * (5xx) counts, bytes and a latency distribution, keyed by method, route and
+ * status, and sends one CloudWatch Embedded Metric Format (EMF) document per
+ * key and interval through the {@link CloudwatchClient}. CloudWatch extracts
+ * the metrics from the documents, so rates and percentiles no longer need
+ * every raw access log event.
+ *
+ * The route is the URL with its variable segments (numbers, UUIDs, hex and
+ * long tokens) replaced by {id}. At most maxKeys keys are tracked per
+ * interval; requests beyond go to the route {other}.
+ *
+ * The latency distribution uses the log-linear buckets of {@link Histogram}
+ * (within 12.5%), sent as EMF values and counts.
+ */
+public class RequestMetricsAggregator {
+
+	static final String OTHER = "{other}";
+
+	static final String ID = "{id}";
+
+	/**
+	 * Values of one EMF distribution at most
+	 */
+	private static final int MAX_VALUES = 100;
+
+	private final CloudwatchClient client;
+
+	/**
+	 * The metric definitions, "CloudWatchMetrics":[...]} after the timestamp
+	 */
+	private final String header;
+
+	private final long interval;
+
+	private final int maxKeys;
+
+	private volatile Map<Key, Aggregate> current = new ConcurrentHashMap<>();
+
+	private volatile long intervalStart;
+
+	private final LongAdder overflow = new LongAdder();
+
+	private ScheduledExecutorService exe;
+
+	private static final class Key {
+
+		final String method;
+
+		final String route;
+
+		final int status;
+
+		final int hash;
+
+		Key(String method, String route, int status) {
+			this.method = method;
+			this.route = route;
+			this.status = status;
+			this.hash = Objects.hash(method, route, status);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && status == other.status && Objects.equals(method, other.method)
+					&& Objects.equals(route, other.route);
+		}
+	}
+
+	private static final class Aggregate {
+
+		long count;
+
+		long errors;
+
+		long bytes;
+
+		long sum;
+
+		long min = Long.MAX_VALUE;
+
+		long max;
+
+		/**
+		 * Per Histogram bucket, grown as needed
+		 */
+		long[] latencies = new long[64];
+
+		/**
+		 * Set once emitted: a request that finds it so, or finds its map no
+		 * longer current, retries with the next interval's map
+		 */
+		boolean closed;
+
+		void record(int status, long elapsed, long bytes) {
+			++count;
+			if (status >= 500) {
+				++errors;
+			}
+			if (bytes > 0) {
+				this.bytes += bytes;
+			}
+			long value = Math.max(0, elapsed);
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			int index = Histogram.index(value);
+			if (index >= latencies.length) {
+				latencies = Arrays.copyOf(latencies, Math.min(Histogram.BUCKETS, Math.max(index + 1, latencies.length * 2)));
+			}
+			++latencies[index];
+		}
+	}
+
+	/**
+	 * @param namespace
+	 *            the CloudWatch metrics namespace
+	 * @param interval
+	 *            milliseconds, e.g. 60000
+	 * @param maxKeys
+	 *            method, route and status combinations per interval
+	 */
+	public RequestMetricsAggregator(CloudwatchClient client, String namespace, long interval, int maxKeys) {
+		this.client = client;
+		this.interval = interval;
+		this.maxKeys = maxKeys;
+		StringBuilder sb = new StringBuilder("\"CloudWatchMetrics\":[{\"Namespace\":");
+		JsonText.appendString(sb, namespace);
+		sb.append(",\"Dimensions\":[[\"Method\",\"Route\",\"Status\"]],\"Metrics\":["
+				+ "{\"Name\":\"Requests\",\"Unit\":\"Count\"},{\"Name\":\"Errors\",\"Unit\":\"Count\"},"
+				+ "{\"Name\":\"Bytes\",\"Unit\":\"Bytes\"},{\"Name\":\"Latency\",\"Unit\":\"Milliseconds\"}]}]}");
+		this.header = sb.toString();
+		this.intervalStart = System.currentTimeMillis() / interval * interval;
+	}
+
+	/**
+	 * Emits every interval, on the interval boundaries of the clock
+	 */
+	public synchronized void start() {
+		if (exe != null) {
+			return;
+		}
+		client.setEmf(true);
+		exe = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, getClass().getSimpleName());
+			t.setDaemon(true);
+			return t;
+		});
+		long now = System.currentTimeMillis();
+		exe.scheduleAtFixedRate(this::emit, interval - now % interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Emits what was aggregated so far
+	 */
+	public synchronized void stop() {
+		if (exe == null) {
+			return;
+		}
+		exe.shutdown();
+		try {
+			exe.awaitTermination(2, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		exe = null;
+		emit();
+	}
+
+	/**
+	 * @param elapsed
+	 *            milliseconds
+	 * @param bytes
+	 *            sent, negative if unknown
+	 */
+	public void record(String method, String url, int status, long elapsed, long bytes) {
+		String route = route(url);
+		for (;;) {
+			Map<Key, Aggregate> aggregates = current;
+			Key key = new Key(method, route, status);
+			Aggregate aggregate = aggregates.get(key);
+			if (aggregate == null) {
+				if (aggregates.size() >= maxKeys) {
+					overflow.increment();
+					key = new Key(method, OTHER, status);
+				}
+				aggregate = aggregates.computeIfAbsent(key, k -> new Aggregate());
+			}
+			synchronized (aggregate) {
+				// closed, or in a map emit() has swapped out and may have
+				// iterated past already, e.g. created after the swap
+				if (aggregate.closed || aggregates != current) {
+					continue;
+				}
+				aggregate.record(status, elapsed, bytes);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of requests counted under {other} because there were
+	 *         maxKeys keys already
+	 */
+	public long getOverflow() {
+		return overflow.sum();
+	}
+
+	/**
+	 * Sends one document per key aggregated since the last call
+	 */
+	synchronized void emit() {
+		Map<Key, Aggregate> aggregates = current;
+		long timestamp = intervalStart;
+		current = new ConcurrentHashMap<>();
+		intervalStart = System.currentTimeMillis() / interval * interval;
+		for (Map.Entry<Key, Aggregate> entry : aggregates.entrySet()) {
+			String document;
+			synchronized (entry.getValue()) {
+				entry.getValue().closed = true;
+				document = document(timestamp, entry.getKey(), entry.getValue());
+			}
+			client.publish(new JsonLogRecord(document));
+		}
+	}
+
+	private String document(long timestamp, Key key, Aggregate aggregate) {
+		StringBuilder json = new StringBuilder(512);
+		json.append("{\"_aws\":{\"Timestamp\":").append(timestamp).append(',').append(header);
+		json.append(",\"Method\":");
+		JsonText.appendString(json, key.method == null ? "-" : key.method);
+		json.append(",\"Route\":");
+		JsonText.appendString(json, key.route);
+		json.append(",\"Status\":\"").append(key.status).append('"');
+		json.append(",\"Requests\":").append(aggregate.count);
+		json.append(",\"Errors\":").append(aggregate.errors);
+		json.append(",\"Bytes\":").append(aggregate.bytes);
+
+		List<long[]> buckets = new ArrayList<>();
+		for (int i = 0; i < aggregate.latencies.length; i++) {
+			if (aggregate.latencies[i] > 0) {
+				long low = Histogram.lowerBound(i);
+				long high = i + 1 < Histogram.BUCKETS ? Histogram.lowerBound(i + 1) - 1 : aggregate.max;
+				// value (the middle of the bucket, within min and max), count
+				buckets.add(new long[] {
+						Math.max(aggregate.min, Math.min(aggregate.max, low + (high - low) / 2)),
+						aggregate.latencies[i] });
+			}
+		}
+		while (buckets.size() > MAX_VALUES) {
+			buckets = merge(buckets);
+		}
+		json.append(",\"Latency\":{\"Values\":[");
+		for (int i = 0; i < buckets.size(); i++) {
+			json.append(i == 0 ? "" : ",").append(buckets.get(i)[0]);
+		}
+		json.append("],\"Counts\":[");
+		for (int i = 0; i < buckets.size(); i++) {
+			json.append(i == 0 ? "" : ",").append(buckets.get(i)[1]);
+		}
+		json.append("],\"Max\":").append(aggregate.max).append(",\"Min\":").append(aggregate.min)
+				.append(",\"Count\":").append(aggregate.count).append(",\"Sum\":").append(aggregate.sum).append("}}");
+		return json.toString();
+	}
+
+	/**
+	 * Halves the number of values, keeping the count-weighted mean of each
+	 * pair
+	 */
+	private static List<long[]> merge(List<long[]> buckets) {
+		List<long[]> merged = new ArrayList<>((buckets.size() + 1) / 2);
+		for (int i = 0; i < buckets.size(); i += 2) {
+			long[] a = buckets.get(i);
+			if (i + 1 == buckets.size()) {
+				merged.add(a);
+				break;
+			}
+			long[] b = buckets.get(i + 1);
+			long count = a[1] + b[1];
+			merged.add(new long[] { (long) ((a[0] * (double) a[1] + b[0] * (double) b[1]) / count), count });
+		}
+		return merged;
+	}
+
+	/**
+	 * @return the URL without path parameters, its variable segments replaced
+	 *         by {id}
+	 */
+	static String route(String url) {
+		if (url == null) {
+			return "-";
+		}
+		int end = url.indexOf(';');
+		if (end < 0) {
+			end = url.length();
+		}
+		StringBuilder route = null;
+		int start = 0;
+		while (start <= end) {
+			int slash = url.indexOf('/', start);
+			if (slash < 0 || slash > end) {
+				slash = end;
+			}
+			if (isVariable(url, start, slash)) {
+				if (route == null) {
+					route = new StringBuilder(end).append(url, 0, start);
+				}
+				route.append(ID);
+			} else if (route != null) {
+				route.append(url, start, slash);
+			}
+			if (slash < end && route != null) {
+				route.append('/');
+			}
+			start = slash + 1;
+		}
+		return route != null ? route.toString() : end == url.length() ? url : url.substring(0, end);
+	}
+
+	/**
+	 * Numbers, UUIDs and other hex strings of 8 characters or more, and tokens
+	 * of 24 characters or more that hold a digit
+	 */
+	private static boolean isVariable(String url, int start, int end) {
+		int length = end - start;
+		if (length == 0) {
+			return false;
+		}
+		boolean digits = true;
+		boolean hex = true;
+		boolean anyDigit = false;
+		for (int i = start; i < end; i++) {
+			char c = url.charAt(i);
+			boolean digit = c >= '0' && c <= '9';
+			anyDigit |= digit;
+			digits &= digit;
+			hex &= digit || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F' || c == '-';
+		}
+		return digits || anyDigit && (hex && length >= 8 || length >= 24);
+	}
+}
@@ -64,4 +64,81 @@ public class CloudwatchAccessLogJsonValveTest {
 		Assert.assertEquals("httpx", readTree.get("protocol").asText());
 		Assert.assertEquals("2018-01-01 17:02:03.000 PST", readTree.get("server_ts").asText());
 	}
+
+	@Test
+	public void deferredCapturesNowAndRendersLater() throws Exception {
+		CloudwatchClient client = Mockito.mock(CloudwatchClient.class);
+		List<LogRecord> out = new ArrayList<>();
+		Mockito.doAnswer(invocation -> out.add(invocation.getArgumentAt(0, LogRecord.class))).when(client)
+				.publish(Mockito.any(LogRecord.class));
+
+		CloudwatchAccessLogJsonValve target = new CloudwatchAccessLogJsonValve(client) {
+			@Override
+			protected void initInternal() {
+				// no container to register with
+			}
+		};
+		target.setDeferred(true);
+		target.setPattern("protocol=%H,http_status=%s,user_agent=%{User-Agent}i,first_byte=%F,elapsed=%T,line=%m %U%q");
+		target.start();
+		try {
+			Request request = Mockito.mock(Request.class, Mockito.RETURNS_DEEP_STUBS);
+			Mockito.when(request.getCoyoteRequest()).thenReturn(new org.apache.coyote.Request());
+			Mockito.when(request.getProtocol()).thenReturn("httpx");
+			Mockito.when(request.getHeader("User-Agent")).thenReturn("curl \"7\"");
+			Mockito.when(request.getMethod()).thenReturn("GET");
+			Mockito.when(request.getRequestURI()).thenReturn("/a");
+			Mockito.when(request.getQueryString()).thenReturn("b=1");
+
+			Response response = Mockito.mock(Response.class, Mockito.RETURNS_DEEP_STUBS);
+			Mockito.when(response.getCoyoteResponse()).thenReturn(new org.apache.coyote.Response());
+			Mockito.when(response.getStatus()).thenReturn(404);
+
+			target.log(request, response, 1234);
+			// the request is recycled before the record is shipped
+			Mockito.when(request.getProtocol()).thenReturn("recycled");
+
+			Assert.assertEquals(1, out.size());
+			JsonNode json = new ObjectMapper().readTree(out.get(0).getMessage());
+			Assert.assertEquals("httpx", json.get("protocol").asText());
+			Assert.assertEquals("404", json.get("http_status").asText());
+			Assert.assertEquals("curl \"7\"", json.get("user_agent").asText());
+			Assert.assertTrue(json.get("first_byte").isNull());
+			Assert.assertEquals("1.234", json.get("elapsed").asText());
+			Assert.assertEquals("GET /a?b=1", json.get("line").asText());
+		} finally {
+			target.stop();
+		}
+	}
+
+	/**
+	 * Patterns keep their "=" and the commas of a %{...} format
+	 */
+	@Test
+	public void parsesPatternsWithEqualsAndCommas() throws Exception {
+		CloudwatchClient client = Mockito.mock(CloudwatchClient.class);
+		List<LogRecord> out = new ArrayList<>();
+		Mockito.doAnswer(invocation -> out.add(invocation.getArgumentAt(0, LogRecord.class))).when(client)
+				.publish(Mockito.any(LogRecord.class));
+		CloudwatchAccessLogJsonValve target = Mockito.spy(new CloudwatchAccessLogJsonValve(client));
+		Mockito.when(target.getState()).thenReturn(LifecycleState.STARTED);
+		Mockito.when(target.getEnabled()).thenReturn(true);
+		Mockito.when(target.timestamp()).thenReturn(Date.from(Instant.parse("2018-01-02T01:02:03Z")));
+		target.setPattern("day=%{yyyy-MM-dd, EEE}t,pair=%{a=b}r,url=%U");
+
+		Request request = Mockito.mock(Request.class, Mockito.RETURNS_DEEP_STUBS);
+		Mockito.when(request.getCoyoteRequest()).thenReturn(new org.apache.coyote.Request());
+		Mockito.when(request.getAttribute("a=b")).thenReturn("v");
+		Mockito.when(request.getRequestURI()).thenReturn("/a");
+		Response response = Mockito.mock(Response.class, Mockito.RETURNS_DEEP_STUBS);
+		Mockito.when(response.getCoyoteResponse()).thenReturn(new org.apache.coyote.Response());
+		target.log(request, response, 0);
+
+		Assert.assertEquals(1, out.size());
+		JsonNode json = new ObjectMapper().readTree(out.get(0).getMessage());
+		Assert.assertEquals(3, json.size());
+		Assert.assertEquals("2018-01-01, Mon", json.get("day").asText());
+		Assert.assertEquals("v", json.get("pair").asText());
+		Assert.assertEquals("/a", json.get("url").asText());
+	}
 }
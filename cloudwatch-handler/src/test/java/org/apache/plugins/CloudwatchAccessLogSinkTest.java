@@ -0,0 +1,96 @@
+package org.apache.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.LogRecord;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class CloudwatchAccessLogSinkTest {
+
+	private static final List<AccessLogEntry> recorded = new ArrayList<>();
+
+	private static CloudwatchClient client;
+
+	public static class RecordingSink implements AccessLogSink {
+
+		@Override
+		public void start(String[] fields, String[] patterns, boolean sampled) {
+		}
+
+		@Override
+		public boolean offer(AccessLogEntry entry) {
+			recorded.add(entry);
+			return true;
+		}
+
+		@Override
+		public void stop() {
+		}
+	}
+
+	public static class FailingSink extends RecordingSink {
+
+		@Override
+		public boolean offer(AccessLogEntry entry) {
+			throw new IllegalStateException("down");
+		}
+	}
+
+	public static class TestCloudwatchSink extends CloudwatchAccessLogSink {
+
+		public TestCloudwatchSink() {
+			super(client);
+		}
+	}
+
+	@Test
+	public void oneCaptureForEverySink() throws Exception {
+		client = Mockito.mock(CloudwatchClient.class);
+		List<LogRecord> out = new ArrayList<>();
+		Mockito.doAnswer(invocation -> out.add(invocation.getArgumentAt(0, LogRecord.class))).when(client)
+				.publish(Mockito.any(LogRecord.class));
+		recorded.clear();
+
+		MultiSinkAccessLogValve valve = new MultiSinkAccessLogValve() {
+			@Override
+			protected void initInternal() {
+				// no container to register with
+			}
+		};
+		valve.setPattern("protocol=%H,http_status=%s,first_byte=%F");
+		valve.setSinks(FailingSink.class.getName() + ",no.such.Sink," + RecordingSink.class.getName() + ","
+				+ TestCloudwatchSink.class.getName());
+		valve.start();
+		try {
+			Request request = Mockito.mock(Request.class, Mockito.RETURNS_DEEP_STUBS);
+			Mockito.when(request.getCoyoteRequest()).thenReturn(new org.apache.coyote.Request());
+			Mockito.when(request.getProtocol()).thenReturn("httpx");
+			Response response = Mockito.mock(Response.class, Mockito.RETURNS_DEEP_STUBS);
+			Mockito.when(response.getCoyoteResponse()).thenReturn(new org.apache.coyote.Response());
+			Mockito.when(response.getStatus()).thenReturn(200);
+
+			valve.log(request, response, 5);
+
+			// the failing sink does not keep the entry from the others
+			Assert.assertEquals(1, recorded.size());
+			Assert.assertEquals(1, out.size());
+			JsonNode json = new ObjectMapper().readTree(out.get(0).getMessage());
+			Assert.assertEquals("httpx", json.get("protocol").asText());
+			Assert.assertEquals("200", json.get("http_status").asText());
+			Assert.assertTrue(json.get("first_byte").isNull());
+			// rendered once, shared by the sinks
+			Assert.assertSame(recorded.get(0).getValues(), recorded.get(0).getValues());
+			Assert.assertEquals(5, recorded.get(0).getElapsed());
+		} finally {
+			valve.stop();
+		}
+	}
+}
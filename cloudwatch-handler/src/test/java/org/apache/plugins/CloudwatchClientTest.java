@@ -0,0 +1,186 @@
+package org.apache.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.logs.AWSLogsClient;
+import com.amazonaws.services.logs.model.CreateLogStreamRequest;
+import com.amazonaws.services.logs.model.InputLogEvent;
+import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import com.amazonaws.services.logs.model.PutLogEventsResult;
+
+public class CloudwatchClientTest {
+
+	private final Formatter formatter = new Formatter() {
+		@Override
+		public String format(LogRecord record) {
+			return record.getMessage();
+		}
+	};
+
+	/**
+	 * The messages sent, by log stream
+	 */
+	private final Map<String, List<String>> sent = new ConcurrentHashMap<>();
+
+	private final List<String> created = new ArrayList<>();
+
+	private CloudwatchClient client;
+
+	private void configure(String properties) throws IOException {
+		LogManager.getLogManager()
+				.readConfiguration(new ByteArrayInputStream(properties.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private CloudwatchClient client(String stream) {
+		client = new CloudwatchClient(formatter, "group", stream);
+		client.awsLogsClient = Mockito.mock(AWSLogsClient.class);
+		Mockito.when(client.awsLogsClient.createLogStream(Mockito.any(CreateLogStreamRequest.class)))
+				.thenAnswer(invocation -> {
+					synchronized (created) {
+						created.add(invocation.getArgumentAt(0, CreateLogStreamRequest.class).getLogStreamName());
+					}
+					return null;
+				});
+		Mockito.when(client.awsLogsClient.putLogEvents(Mockito.any(PutLogEventsRequest.class)))
+				.thenAnswer(invocation -> {
+					PutLogEventsRequest request = invocation.getArgumentAt(0, PutLogEventsRequest.class);
+					List<String> messages = sent.computeIfAbsent(request.getLogStreamName(), s -> new ArrayList<>());
+					synchronized (messages) {
+						for (InputLogEvent event : request.getLogEvents()) {
+							messages.add(event.getMessage());
+						}
+					}
+					return new PutLogEventsResult().withNextSequenceToken("token");
+				});
+		client.initializeBackgroundThreads();
+		return client;
+	}
+
+	@After
+	public void close() throws IOException {
+		if (client != null) {
+			client.close();
+		}
+		LogManager.getLogManager().readConfiguration();
+	}
+
+	/**
+	 * @return the stream CloudwatchClient.shardFor picks for the key
+	 */
+	private static String streamFor(String stream, long key, int streams) {
+		return stream + "-" + (key & Long.MAX_VALUE) % streams;
+	}
+
+	@Test
+	public void oneStreamKeepsItsName() throws IOException {
+		configure("");
+		CloudwatchClient client = client("single");
+		Assert.assertEquals(1, client.getShardCount());
+		client.publish(new LogRecord(Level.INFO, "m"));
+		client.flush();
+		Assert.assertEquals(1, sent.size());
+		Assert.assertEquals(1, sent.get("single").size());
+		Assert.assertEquals("[single]", created.toString());
+	}
+
+	@Test
+	public void shardsByThread() throws Exception {
+		configure("org.apache.plugins.CloudwatchClient.streams = 3\n");
+		CloudwatchClient client = client("threads");
+		Assert.assertEquals(3, client.getShardCount());
+
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 6; t++) {
+			String name = "t" + t;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 100; i++) {
+					client.publish(new LogRecord(Level.INFO, name + " " + i));
+				}
+			}, name));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		client.flush();
+
+		for (Thread thread : threads) {
+			List<String> messages = new ArrayList<>(sent.get(streamFor("threads", thread.getId(), 3)));
+			messages.removeIf(m -> !m.startsWith(thread.getName() + " "));
+			Assert.assertEquals(100, messages.size());
+			for (int i = 0; i < 100; i++) {
+				Assert.assertEquals(thread.getName() + " " + i, messages.get(i));
+			}
+		}
+		Assert.assertEquals(600, sent.values().stream().mapToInt(List::size).sum());
+		for (String stream : sent.keySet()) {
+			Assert.assertTrue(stream, stream.matches("threads-[012]"));
+			Assert.assertTrue(stream, created.contains(stream));
+		}
+	}
+
+	@Test
+	public void shardsByLogger() throws Exception {
+		configure("org.apache.plugins.CloudwatchClient.streams = 4\n"
+				+ "org.apache.plugins.CloudwatchClient.shardBy = logger\n");
+		CloudwatchClient client = client("loggers");
+		String[] loggers = { "a", "org.apache.catalina", "com.example.Service", "x.y" };
+		for (int i = 0; i < 50; i++) {
+			for (String logger : loggers) {
+				LogRecord record = new LogRecord(Level.INFO, logger + " " + i);
+				record.setLoggerName(logger);
+				client.publish(record);
+			}
+		}
+		client.flush();
+
+		for (String logger : loggers) {
+			List<String> messages = new ArrayList<>(sent.get(streamFor("loggers", logger.hashCode(), 4)));
+			messages.removeIf(m -> !m.startsWith(logger + " "));
+			Assert.assertEquals(50, messages.size());
+			for (int i = 0; i < 50; i++) {
+				Assert.assertEquals(logger + " " + i, messages.get(i));
+			}
+		}
+		Assert.assertEquals(200, sent.values().stream().mapToInt(List::size).sum());
+	}
+
+	@Test
+	public void suppressesBurstsOfApplicationRecordsOnly() throws IOException {
+		configure("org.apache.plugins.CloudwatchClient.burstThreshold = 2\n"
+				+ "org.apache.plugins.CloudwatchClient.burstWindow = 600000\n");
+		CloudwatchClient client = client("bursts");
+		for (int i = 0; i < 5; i++) {
+			client.publish(new JsonLogRecord("{\"same\":true}"));
+			LogRecord record = new LogRecord(Level.WARNING, "storm");
+			record.setLoggerName("app");
+			client.publish(record);
+		}
+		client.flush();
+		List<String> messages = sent.get("bursts");
+		Assert.assertEquals(5, messages.stream().filter("{\"same\":true}"::equals).count());
+		Assert.assertEquals(2, messages.stream().filter("storm"::equals).count());
+
+		// the open window is summed up on close
+		client.close();
+		this.client = null;
+		Assert.assertEquals("storm (repeated 3 times)", messages.get(messages.size() - 1));
+	}
+}
@@ -2,6 +2,7 @@ package org.apache.plugins;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -9,12 +10,15 @@ import java.util.logging.LogRecord;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import com.amazonaws.services.logs.AWSLogsClient;
+import com.amazonaws.services.logs.model.DataAlreadyAcceptedException;
 import com.amazonaws.services.logs.model.InputLogEvent;
 import com.amazonaws.services.logs.model.PutLogEventsRequest;
 import com.amazonaws.services.logs.model.PutLogEventsResult;
@@ -33,6 +37,9 @@ public class CloudwatchHandlerTest {
 	CloudwatchClient ch
 			= CloudwatchClient.instance = new CloudwatchClient(formatter, "logGroupName", "logStreamName");
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	List<PutLogEventsRequest> requests = new ArrayList<>();
 
 	PutLogEventsResult pler = new PutLogEventsResult();
@@ -84,6 +91,91 @@ public class CloudwatchHandlerTest {
 		Assert.assertEquals("{\"hello\":\"world\"}", inputLogEvent.getMessage());
 	}
 
+	@Test
+	public void dataAlreadyAcceptedIsNotResent() {
+		Mockito.when(ch.awsLogsClient
+				.putLogEvents(Mockito.any(PutLogEventsRequest.class)))
+				.thenAnswer(invocation -> {
+					requests.add((PutLogEventsRequest) invocation.getArguments()[0]);
+					throw new DataAlreadyAcceptedException("already accepted")
+							.withExpectedSequenceToken("2222");
+				})
+				.thenAnswer(invocation -> {
+					requests.add((PutLogEventsRequest) invocation.getArguments()[0]);
+					return pler;
+				});
+
+		requests.clear();
+		ch.publish(new LogRecord(Level.INFO, "first"));
+		ch.flush();
+		Assert.assertEquals(1, requests.size());
+
+		ch.publish(new LogRecord(Level.INFO, "second"));
+		ch.flush();
+		Assert.assertEquals(2, requests.size());
+		Assert.assertEquals("2222", requests.get(1).getSequenceToken());
+		Assert.assertEquals("FORMATTED:second", requests.get(1).getLogEvents().get(0).getMessage());
+	}
+
+	@Test
+	public void failedBatchesAreSpooledAndReplayed() throws Exception {
+		Mockito.when(ch.awsLogsClient
+				.putLogEvents(Mockito.any(PutLogEventsRequest.class)))
+				.thenThrow(new RuntimeException("throttled"))
+				.thenAnswer(invocation -> {
+					requests.add((PutLogEventsRequest) invocation.getArguments()[0]);
+					return pler;
+				});
+		requests.clear();
+
+		LogSpool spool = new LogSpool(folder.newFolder(), 16 << 20);
+		LogStreamShard shard = new LogStreamShard(ch, 0, new HeapEventQueue(
+				new StripedBuffer<>(16, 1, OverflowPolicy.DROP_NEW, 0, 1), ch::message), spool);
+		shard.offer(new LogRecord(Level.INFO, "first"));
+		shard.flush();
+		Assert.assertFalse(spool.isEmpty());
+
+		// queued behind the spooled event while the spool is not empty
+		shard.offer(new LogRecord(Level.INFO, "second"));
+		shard.flush();
+		Assert.assertTrue(requests.isEmpty());
+
+		Thread.sleep(1100);
+		shard.drain(Mockito.mock(ScheduledExecutorService.class));
+		Assert.assertTrue(spool.isEmpty());
+		Assert.assertEquals(1, requests.size());
+		List<InputLogEvent> events = requests.get(0).getLogEvents();
+		Assert.assertEquals("FORMATTED:first", events.get(0).getMessage());
+		Assert.assertEquals("FORMATTED:second", events.get(1).getMessage());
+	}
+
+	@Test
+	public void aFailingSpoolDoesNotStopTheShard() throws Exception {
+		Mockito.when(ch.awsLogsClient
+				.putLogEvents(Mockito.any(PutLogEventsRequest.class)))
+				.thenThrow(new RuntimeException("throttled"))
+				.thenAnswer(invocation -> {
+					requests.add((PutLogEventsRequest) invocation.getArguments()[0]);
+					return pler;
+				});
+		requests.clear();
+
+		LogSpool spool = Mockito.mock(LogSpool.class);
+		Mockito.when(spool.isEmpty()).thenReturn(true);
+		Mockito.when(spool.append(Mockito.anyLong(), Mockito.anyString()))
+				.thenThrow(new IllegalStateException("disk full"));
+		LogStreamShard shard = new LogStreamShard(ch, 0, new HeapEventQueue(
+				new StripedBuffer<>(16, 1, OverflowPolicy.DROP_NEW, 0, 1), ch::message), spool);
+		shard.offer(new LogRecord(Level.INFO, "first"));
+		shard.flush();
+		Assert.assertEquals(1, ch.spoolDropped.sum());
+
+		shard.offer(new LogRecord(Level.INFO, "second"));
+		shard.flush();
+		Assert.assertEquals(1, requests.size());
+		Assert.assertEquals("FORMATTED:second", requests.get(0).getLogEvents().get(0).getMessage());
+	}
+
 	@After
 	public void cleanup() {
 		ch.close();
@@ -0,0 +1,58 @@
+package org.apache.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JsonLogRecordTest {
+
+	@SuppressWarnings("serial")
+	private static class CountingRecord extends JsonLogRecord {
+
+		final AtomicInteger renders = new AtomicInteger();
+
+		@Override
+		protected String render() {
+			renders.incrementAndGet();
+			Thread.yield();
+			return "{\"n\":" + renders.get() + "}";
+		}
+	}
+
+	@Test
+	public void rendersOnceAcrossThreads() throws InterruptedException {
+		for (int round = 0; round < 100; round++) {
+			CountingRecord record = new CountingRecord();
+			CountDownLatch go = new CountDownLatch(1);
+			List<String> messages = new ArrayList<>();
+			List<Thread> threads = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				threads.add(new Thread(() -> {
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					String message = record.getMessage();
+					synchronized (messages) {
+						messages.add(message);
+					}
+				}));
+			}
+			threads.forEach(Thread::start);
+			go.countDown();
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			Assert.assertEquals(1, record.renders.get());
+			Assert.assertEquals(4, messages.size());
+			for (String message : messages) {
+				Assert.assertEquals("{\"n\":1}", message);
+			}
+		}
+	}
+}
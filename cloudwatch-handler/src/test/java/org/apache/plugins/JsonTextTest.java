@@ -0,0 +1,45 @@
+package org.apache.plugins;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class JsonTextTest {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static String quoted(String value) {
+		StringBuilder sb = new StringBuilder();
+		JsonText.appendString(sb, value);
+		return sb.toString();
+	}
+
+	@Test
+	public void escapesLikeJackson() throws Exception {
+		StringBuilder controls = new StringBuilder();
+		for (char c = 0; c < 0x20; c++) {
+			controls.append(c);
+		}
+		String[] values = { "", "plain", controls.toString(), "\u007f", "say \"hi\" \\o/", "a/b",
+				"\ud83d\ude00 smile", "caf\u00e9 \u20ac \u4e2d", "x\ud800" };
+		for (String value : values) {
+			String json = quoted(value);
+			Assert.assertEquals(MAPPER.writeValueAsString(value), json);
+			Assert.assertEquals(value, MAPPER.readValue(json, String.class));
+		}
+		Assert.assertEquals("\"\\u0000\\u001F\\n\\\"\"", quoted("\u0000\u001f\n\""));
+	}
+
+	@Test
+	public void escapesPartOfAnArray() {
+		StringBuilder sb = new StringBuilder();
+		JsonText.appendString(sb, "[\"\ud83d\ude00\t]".toCharArray(), 1, 4);
+		Assert.assertEquals("\"\\\"\ud83d\ude00\\t\"", sb.toString());
+	}
+
+	@Test
+	public void fieldName() {
+		Assert.assertEquals("\"a\\\"b\":", JsonText.fieldName("a\"b"));
+	}
+}
@@ -0,0 +1,52 @@
+package org.apache.plugins;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+
+public class LogEventBatchTest {
+
+	@Test
+	public void stopsAtEventCount() {
+		LogEventBatch batch = new LogEventBatch();
+		for (int i = 0; i < LogEventBatch.MAX_EVENTS; i++) {
+			Assert.assertTrue(batch.add(LogEventBatch.event(i, "x")));
+		}
+		Assert.assertFalse(batch.add(LogEventBatch.event(0, "x")));
+		Assert.assertEquals(LogEventBatch.MAX_EVENTS * (LogEventBatch.EVENT_OVERHEAD + 1), batch.getBytes());
+	}
+
+	@Test
+	public void stopsAtByteSize() {
+		LogEventBatch batch = new LogEventBatch();
+		String message = new String(new char[100000]).replace('\0', 'x');
+		int added = 0;
+		while (batch.add(LogEventBatch.event(0, message))) {
+			++added;
+		}
+		Assert.assertEquals(10, added);
+		Assert.assertTrue(batch.getBytes() <= LogEventBatch.MAX_BYTES);
+	}
+
+	@Test
+	public void stopsAtTimeSpan() {
+		LogEventBatch batch = new LogEventBatch();
+		long now = System.currentTimeMillis();
+		Assert.assertTrue(batch.add(LogEventBatch.event(now, "new")));
+		Assert.assertTrue(batch.add(LogEventBatch.event(now - TimeUnit.HOURS.toMillis(23), "old")));
+		Assert.assertFalse(batch.add(LogEventBatch.event(now - TimeUnit.HOURS.toMillis(25), "too old")));
+		Assert.assertEquals("old", batch.getEvents().get(0).getMessage());
+	}
+
+	@Test
+	public void truncatesOversizedEvent() {
+		String message = new String(new char[200000]).replace('\0', 'é');
+		InputLogEvent event = LogEventBatch.event(0, message);
+		Assert.assertTrue(LogEventBatch.size(event) <= LogEventBatch.MAX_EVENT_BYTES);
+		Assert.assertTrue(event.getMessage().endsWith("[TRUNCATED]"));
+		Assert.assertTrue(new LogEventBatch().add(event));
+	}
+}
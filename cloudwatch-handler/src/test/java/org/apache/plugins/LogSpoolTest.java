@@ -0,0 +1,82 @@
+package org.apache.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+
+public class LogSpoolTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replaysInOrderAfterRestart() throws IOException {
+		File dir = folder.newFolder();
+		LogSpool spool = new LogSpool(dir, 16 << 20);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertTrue(spool.append(i, "event " + i));
+		}
+		spool.sync();
+
+		// a new JVM
+		spool = new LogSpool(dir, 16 << 20);
+		Assert.assertFalse(spool.isEmpty());
+		LogEventBatch batch = new LogEventBatch();
+		LogSpool.Position end = spool.read(batch);
+		List<InputLogEvent> events = batch.getEvents();
+		Assert.assertEquals(100, events.size());
+		Assert.assertEquals("event 0", events.get(0).getMessage());
+		Assert.assertEquals(99, events.get(99).getTimestamp().longValue());
+
+		spool.ack(end);
+		Assert.assertTrue(spool.isEmpty());
+		Assert.assertEquals(0, dir.listFiles((d, name) -> name.endsWith(".seg")).length);
+		Assert.assertTrue(new LogSpool(dir, 16 << 20).isEmpty());
+	}
+
+	@Test
+	public void resumesFromTheAcknowledgedPosition() throws IOException {
+		File dir = folder.newFolder();
+		LogSpool spool = new LogSpool(dir, 16 << 20);
+		String big = new String(new char[100000]).replace('\0', 'x');
+		// 20 events of 100 kB: more than one batch of 1 MB
+		for (int i = 0; i < 20; i++) {
+			Assert.assertTrue(spool.append(i, i + big));
+		}
+		LogEventBatch first = new LogEventBatch();
+		spool.ack(spool.read(first));
+		Assert.assertTrue(first.getEventCount() < 20);
+		spool.sync();
+
+		spool = new LogSpool(dir, 16 << 20);
+		LogEventBatch rest = new LogEventBatch();
+		spool.read(rest);
+		Assert.assertEquals(20, first.getEventCount() + rest.getEventCount());
+		Assert.assertEquals(first.getEventCount(), rest.getEvents().get(0).getTimestamp().longValue());
+	}
+
+	@Test
+	public void refusesEventsBeyondItsSize() throws IOException {
+		File dir = folder.newFolder();
+		LogSpool spool = new LogSpool(dir, 1 << 20);
+		String big = new String(new char[100000]).replace('\0', 'x');
+		int accepted = 0;
+		while (spool.append(accepted, big)) {
+			++accepted;
+		}
+		long disk = 0;
+		for (File segment : dir.listFiles((d, name) -> name.endsWith(".seg"))) {
+			disk += segment.length();
+		}
+		Assert.assertTrue(disk <= 1 << 20);
+		Assert.assertTrue(accepted > 0);
+		Assert.assertEquals(accepted * 100012L, spool.getBytes());
+	}
+}
@@ -0,0 +1,184 @@
+package org.apache.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class MultiSinkAccessLogValveTest {
+
+	private static final List<AccessLogEntry> first = new ArrayList<>();
+
+	private static final List<AccessLogEntry> second = new ArrayList<>();
+
+	public static class FirstSink implements AccessLogSink {
+
+		@Override
+		public void start(String[] fields, String[] patterns, boolean sampled) {
+		}
+
+		@Override
+		public boolean offer(AccessLogEntry entry) {
+			first.add(entry);
+			return true;
+		}
+
+		@Override
+		public void stop() {
+		}
+	}
+
+	public static class SecondSink extends FirstSink {
+
+		@Override
+		public boolean offer(AccessLogEntry entry) {
+			second.add(entry);
+			return true;
+		}
+	}
+
+	/**
+	 * Full from the second entry on
+	 */
+	public static class DroppingSink extends FirstSink {
+
+		private int offered;
+
+		@Override
+		public boolean offer(AccessLogEntry entry) {
+			return offered++ == 0;
+		}
+	}
+
+	public static class FailingSink extends FirstSink {
+
+		@Override
+		public boolean offer(AccessLogEntry entry) {
+			throw new IllegalStateException("down");
+		}
+	}
+
+	public static class UnstartableSink extends FirstSink {
+
+		@Override
+		public void start(String[] fields, String[] patterns, boolean sampled) {
+			throw new IllegalStateException("no database");
+		}
+	}
+
+	@Before
+	public void clear() {
+		first.clear();
+		second.clear();
+	}
+
+	private static MultiSinkAccessLogValve valve(Class<?>... sinks) {
+		MultiSinkAccessLogValve valve = new MultiSinkAccessLogValve() {
+			@Override
+			protected void initInternal() {
+				// no container to register with
+			}
+		};
+		valve.setPattern("url=%U,http_status=%s");
+		StringBuilder names = new StringBuilder();
+		for (Class<?> sink : sinks) {
+			names.append(names.length() == 0 ? "" : ",").append(sink.getName());
+		}
+		valve.setSinks(names.toString());
+		return valve;
+	}
+
+	private static void log(MultiSinkAccessLogValve valve, String url) {
+		Request request = Mockito.mock(Request.class, Mockito.RETURNS_DEEP_STUBS);
+		Mockito.when(request.getCoyoteRequest()).thenReturn(new org.apache.coyote.Request());
+		Mockito.when(request.getRequestURI()).thenReturn(url);
+		Response response = Mockito.mock(Response.class, Mockito.RETURNS_DEEP_STUBS);
+		Mockito.when(response.getCoyoteResponse()).thenReturn(new org.apache.coyote.Response());
+		Mockito.when(response.getStatus()).thenReturn(200);
+		valve.log(request, response, 1);
+	}
+
+	/**
+	 * @return the attribute of the valve's MBean
+	 */
+	private static Object metric(String attribute) throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Set<ObjectName> names = server.queryNames(new ObjectName(Metrics.DOMAIN + ":type=" + ObjectName.quote("AccessLogValve") + ",*"), null);
+		Assert.assertEquals(names.toString(), 1, names.size());
+		return server.getAttribute(names.iterator().next(), attribute);
+	}
+
+	@Test
+	public void everySinkGetsTheSameEntry() throws Exception {
+		MultiSinkAccessLogValve valve = valve(FirstSink.class, SecondSink.class);
+		valve.start();
+		try {
+			log(valve, "/a");
+			log(valve, "/b");
+		} finally {
+			valve.stop();
+		}
+		Assert.assertEquals(2, first.size());
+		Assert.assertEquals(2, second.size());
+		for (int i = 0; i < 2; i++) {
+			Assert.assertSame(first.get(i), second.get(i));
+		}
+		Assert.assertEquals("/a", first.get(0).getValues()[0]);
+		Assert.assertEquals("200", first.get(0).getValues()[1]);
+		Assert.assertEquals("/b", second.get(1).getValues()[0]);
+	}
+
+	@Test
+	public void countsDropsAndFailuresPerSink() throws Exception {
+		MultiSinkAccessLogValve valve = valve(DroppingSink.class, FailingSink.class, UnstartableSink.class,
+				FirstSink.class);
+		valve.start();
+		try {
+			for (int i = 0; i < 5; i++) {
+				log(valve, "/" + i);
+			}
+			// a full or failing sink does not keep the entry from the others
+			Assert.assertEquals(5, first.size());
+			Assert.assertEquals(4L, metric("DroppingSinkDropped"));
+			Assert.assertEquals(0L, metric("DroppingSinkFailures"));
+			Assert.assertEquals(0L, metric("FailingSinkDropped"));
+			Assert.assertEquals(5L, metric("FailingSinkFailures"));
+			Assert.assertEquals(0L, metric("FirstSinkDropped"));
+			Assert.assertEquals(0L, metric("FirstSinkFailures"));
+
+			// the counts survive a restart, with new sinks
+			valve.stop();
+			valve.start();
+			log(valve, "/a");
+			log(valve, "/b");
+			Assert.assertEquals(5L, metric("DroppingSinkDropped"));
+			Assert.assertEquals(7L, metric("FailingSinkFailures"));
+		} finally {
+			valve.stop();
+		}
+	}
+
+	@Test
+	public void namedAfterTheContainer() {
+		Container engine = Mockito.mock(Container.class);
+		Mockito.when(engine.getName()).thenReturn("Catalina");
+		Container host = Mockito.mock(Container.class);
+		Mockito.when(host.getName()).thenReturn("localhost");
+		Mockito.when(host.getParent()).thenReturn(engine);
+		MultiSinkAccessLogValve valve = new MultiSinkAccessLogValve();
+		Assert.assertEquals("MultiSinkAccessLogValve", ValveNames.of(valve));
+		valve.setContainer(host);
+		Assert.assertEquals("MultiSinkAccessLogValve/Catalina/localhost", ValveNames.of(valve));
+	}
+}
@@ -0,0 +1,76 @@
+package org.apache.plugins;
+
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+
+public class OffHeapEventQueueTest {
+
+	private static LogRecord record(long millis, String message) {
+		LogRecord record = new LogRecord(Level.INFO, message);
+		record.setMillis(millis);
+		return record;
+	}
+
+	@Test
+	public void wrapsAroundInOrder() {
+		OffHeapEventQueue queue = new OffHeapEventQueue(2048, 1, OverflowPolicy.DROP_NEW, 0, LogRecord::getMessage);
+		for (int i = 0; i < 1000; i++) {
+			String message = "entry é€ " + i;
+			Assert.assertTrue(queue.offer(record(i, message)));
+			Assert.assertEquals(1, queue.size());
+			InputLogEvent event = queue.poll();
+			Assert.assertEquals(message, event.getMessage());
+			Assert.assertEquals(i, event.getTimestamp().longValue());
+		}
+		Assert.assertNull(queue.poll());
+		Assert.assertEquals(0, queue.getStagedBytes());
+	}
+
+	@Test
+	public void boundedByBytes() {
+		String kilobyte = new String(new char[1000]).replace('\0', 'x');
+		OffHeapEventQueue queue = new OffHeapEventQueue(4096, 1, OverflowPolicy.DROP_NEW, 0, LogRecord::getMessage);
+		int accepted = 0;
+		for (int i = 0; i < 10; i++) {
+			if (queue.offer(record(i, kilobyte))) {
+				++accepted;
+			}
+		}
+		Assert.assertEquals(4, accepted);
+		Assert.assertEquals(6, queue.getDropped());
+		Assert.assertTrue(queue.getStagedBytes() <= 4096);
+		// small entries still fit in what is left
+		Assert.assertTrue(queue.offer(record(10, "small")));
+	}
+
+	@Test
+	public void dropOldestMakesRoom() {
+		String kilobyte = new String(new char[1000]).replace('\0', 'x');
+		OffHeapEventQueue queue = new OffHeapEventQueue(4096, 1, OverflowPolicy.DROP_OLDEST, 0,
+				LogRecord::getMessage);
+		for (int i = 0; i < 10; i++) {
+			Assert.assertTrue(queue.offer(record(i, i + kilobyte)));
+		}
+		Assert.assertEquals(6, queue.getDropped());
+		Assert.assertEquals(4, queue.size());
+		Assert.assertEquals(6, queue.poll().getTimestamp().longValue());
+	}
+
+	@Test
+	public void marksWhatDoesNotFitAStripe() {
+		// a 2 KiB stripe: too small for a maximum size message
+		OffHeapEventQueue queue = new OffHeapEventQueue(2048, 1, OverflowPolicy.DROP_NEW, 0, LogRecord::getMessage);
+		String big = new String(new char[3000]).replace('\0', '€');
+		Assert.assertTrue(queue.offer(record(1, big)));
+		String message = queue.poll().getMessage();
+		Assert.assertTrue(message, message.endsWith(LogEventBatch.TRUNCATED));
+		String kept = message.substring(0, message.length() - LogEventBatch.TRUNCATED.length());
+		Assert.assertTrue(big.startsWith(kept));
+		Assert.assertTrue(kept.length() > 300);
+	}
+}
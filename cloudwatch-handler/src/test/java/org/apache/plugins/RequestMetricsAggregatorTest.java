@@ -0,0 +1,154 @@
+package org.apache.plugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.LogRecord;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class RequestMetricsAggregatorTest {
+
+	private static Map<String, JsonNode> emit(RequestMetricsAggregator aggregator, CloudwatchClient client,
+			List<LogRecord> out) throws IOException {
+		out.clear();
+		aggregator.emit();
+		Map<String, JsonNode> documents = new HashMap<>();
+		ObjectMapper om = new ObjectMapper();
+		for (LogRecord record : out) {
+			JsonNode document = om.readTree(record.getMessage());
+			documents.put(document.get("Method").asText() + " " + document.get("Route").asText() + " "
+					+ document.get("Status").asText(), document);
+		}
+		return documents;
+	}
+
+	private static CloudwatchClient client(List<LogRecord> out) {
+		CloudwatchClient client = Mockito.mock(CloudwatchClient.class);
+		Mockito.doAnswer(invocation -> out.add(invocation.getArgumentAt(0, LogRecord.class))).when(client)
+				.publish(Mockito.any(LogRecord.class));
+		return client;
+	}
+
+	@Test
+	public void routes() {
+		Assert.assertEquals("/users/{id}/orders/{id}", RequestMetricsAggregator.route("/users/42/orders/7"));
+		Assert.assertEquals("/items/{id}",
+				RequestMetricsAggregator.route("/items/123e4567-e89b-12d3-a456-426614174000"));
+		Assert.assertEquals("/files/{id}/v2", RequestMetricsAggregator.route("/files/deadbeef01/v2"));
+		Assert.assertEquals("/{id}", RequestMetricsAggregator.route("/12;jsessionid=ABC"));
+		Assert.assertEquals("/static/app.css", RequestMetricsAggregator.route("/static/app.css"));
+		Assert.assertEquals("/a/", RequestMetricsAggregator.route("/a/;x"));
+		String url = "/api/v1/health";
+		Assert.assertSame(url, RequestMetricsAggregator.route(url));
+	}
+
+	@Test
+	public void oneDocumentPerKeyAndInterval() throws IOException {
+		List<LogRecord> out = new ArrayList<>();
+		CloudwatchClient client = client(out);
+		RequestMetricsAggregator aggregator = new RequestMetricsAggregator(client, "Test", 60000, 100);
+		for (int i = 1; i <= 100; i++) {
+			aggregator.record("GET", "/users/" + i, 200, i, 1000);
+		}
+		aggregator.record("GET", "/users/1", 503, 5, -1);
+		aggregator.record("POST", "/users", 201, 30, 10);
+
+		Map<String, JsonNode> documents = emit(aggregator, client, out);
+		Assert.assertEquals(3, documents.size());
+		JsonNode ok = documents.get("GET /users/{id} 200");
+		Assert.assertEquals("Test", ok.get("_aws").get("CloudWatchMetrics").get(0).get("Namespace").asText());
+		Assert.assertEquals(0, ok.get("_aws").get("Timestamp").asLong() % 60000);
+		Assert.assertEquals(100, ok.get("Requests").asLong());
+		Assert.assertEquals(0, ok.get("Errors").asLong());
+		Assert.assertEquals(100000, ok.get("Bytes").asLong());
+		JsonNode latency = ok.get("Latency");
+		Assert.assertEquals(1, latency.get("Min").asLong());
+		Assert.assertEquals(100, latency.get("Max").asLong());
+		Assert.assertEquals(5050, latency.get("Sum").asLong());
+		Assert.assertEquals(latency.get("Values").size(), latency.get("Counts").size());
+		long count = 0;
+		for (JsonNode c : latency.get("Counts")) {
+			count += c.asLong();
+		}
+		Assert.assertEquals(100, count);
+		for (JsonNode v : latency.get("Values")) {
+			Assert.assertTrue(v.asLong() >= 1 && v.asLong() <= 100);
+		}
+
+		JsonNode errors = documents.get("GET /users/{id} 503");
+		Assert.assertEquals(1, errors.get("Errors").asLong());
+		Assert.assertEquals(0, errors.get("Bytes").asLong());
+
+		// the next interval starts empty
+		Assert.assertTrue(emit(aggregator, client, out).isEmpty());
+	}
+
+	@Test
+	public void boundsTheKeys() throws IOException {
+		List<LogRecord> out = new ArrayList<>();
+		CloudwatchClient client = client(out);
+		RequestMetricsAggregator aggregator = new RequestMetricsAggregator(client, "Test", 60000, 10);
+		for (int i = 0; i < 100; i++) {
+			aggregator.record("GET", "/page" + i, 200, 1, 0);
+		}
+		Map<String, JsonNode> documents = emit(aggregator, client, out);
+		Assert.assertEquals(11, documents.size());
+		Assert.assertEquals(90, documents.get("GET {other} 200").get("Requests").asLong());
+		Assert.assertEquals(90, aggregator.getOverflow());
+	}
+
+	@Test
+	public void atMostOneHundredLatencyValues() throws IOException {
+		List<LogRecord> out = new ArrayList<>();
+		CloudwatchClient client = client(out);
+		RequestMetricsAggregator aggregator = new RequestMetricsAggregator(client, "Test", 60000, 10);
+		for (long latency = 1; latency < 1L << 40; latency += latency / 16 + 1) {
+			aggregator.record("GET", "/", 200, latency, 0);
+		}
+		JsonNode latency = emit(aggregator, client, out).get("GET / 200").get("Latency");
+		Assert.assertTrue(latency.get("Values").size() <= 100);
+		long count = 0;
+		for (JsonNode c : latency.get("Counts")) {
+			count += c.asLong();
+		}
+		Assert.assertEquals(latency.get("Count").asLong(), count);
+	}
+
+	@Test
+	public void noRequestLostToAConcurrentEmit() throws Exception {
+		List<LogRecord> out = new ArrayList<>();
+		CloudwatchClient client = client(out);
+		RequestMetricsAggregator aggregator = new RequestMetricsAggregator(client, "Test", 60000, 1000);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			int thread = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 1000000; i++) {
+					// a new key in every interval's map
+					aggregator.record("GET", "/t" + thread, 200 + i % 1000, 1, 0);
+				}
+			});
+			threads[t].start();
+		}
+		long requests = 0;
+		boolean running = true;
+		while (running) {
+			running = false;
+			for (Thread thread : threads) {
+				running |= thread.isAlive();
+			}
+			for (JsonNode document : emit(aggregator, client, out).values()) {
+				requests += document.get("Requests").asLong();
+			}
+		}
+		Assert.assertEquals(threads.length * 1000000L, requests);
+	}
+}
@@ -0,0 +1,373 @@
+package org.apache.plugins;
+
+import java.io.CharArrayWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpSession;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+
+/**
+ * Splits access log patterns into a cheap capture step and a rendering step.
+ *
+ * Each field pattern is compiled once into a {@link Field}. On the request
+ * thread, {@link #capture} copies status, bytes, elapsed and first byte
+ * times and the timestamp into a pooled {@link AccessLogEvent}, plus one
+ * reference per header, cookie, attribute or request property the patterns
+ * use. Date formatting, string building and '-' handling are left to
+ * {@link Field#render}, on whichever thread ships the entry.
+ *
+ * Codes supported: %a %A %b %B %D %F %h %H %I %l %m %p %q %r %s %S %t %T %u
+ * %U %v and %{x}t %{x}i %{x}o %{x}c %{x}r %{x}s. Anything else is rendered
+ * eagerly at capture time by the element the valve supplies. Values are
+ * copied as they are, without the escaping of Tomcat's own elements.
+ *
+ * Compile every field before the first capture.
+ */
+public class AccessLogCapture {
+
+	/**
+	 * Renders one field of a captured event, '-' when it has no value
+	 */
+	@FunctionalInterface
+	public interface Field {
+		void render(AccessLogEvent event, StringBuilder out);
+	}
+
+	/**
+	 * The valve's own rendering of a code this class does not know
+	 */
+	@FunctionalInterface
+	public interface Element {
+		void addElement(CharArrayWriter buf, Date date, Request request, Response response, long time);
+	}
+
+	@FunctionalInterface
+	private interface Capturer {
+		Object capture(AccessLogEvent event, Request request, Response response, long time);
+	}
+
+	private static final String LOCAL_ADDR;
+
+	static {
+		String addr;
+		try {
+			addr = InetAddress.getLocalHost().getHostAddress();
+		} catch (UnknownHostException e) {
+			addr = "127.0.0.1";
+		}
+		LOCAL_ADDR = addr;
+	}
+
+	private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+	private final List<Capturer> capturers = new ArrayList<>();
+
+	private final BoundedBuffer<AccessLogEvent> pool;
+
+	/**
+	 * @param poolSize
+	 *            events kept for reuse; more may be in flight at once
+	 */
+	public AccessLogCapture(int poolSize) {
+		this.pool = new BoundedBuffer<>(poolSize);
+	}
+
+	/**
+	 * @param pattern
+	 *            a Tomcat access log pattern, e.g. "%{Referer}i" or "%m %U"
+	 * @param fallback
+	 *            the element for a code this class does not know, given as a
+	 *            pattern of that one code
+	 */
+	public synchronized Field compile(String pattern, Function<String, Element> fallback) {
+		List<Field> parts = new ArrayList<>();
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c != '%' || i + 1 == pattern.length()) {
+				text.append(c);
+				continue;
+			}
+			int start = i;
+			String param = null;
+			if (pattern.charAt(i + 1) == '{') {
+				int end = pattern.indexOf('}', i + 2);
+				if (end < 0 || end + 1 == pattern.length()) {
+					text.append(pattern, i, pattern.length());
+					break;
+				}
+				param = pattern.substring(i + 2, end);
+				i = end;
+			}
+			char code = pattern.charAt(++i);
+			if (code == '%' && param == null) {
+				text.append('%');
+				continue;
+			}
+			if (text.length() > 0) {
+				parts.add(literal(text.toString()));
+				text.setLength(0);
+			}
+			Field field = param == null ? compile(code) : compile(param, code);
+			if (field == null) {
+				field = eager(fallback.apply(pattern.substring(start, i + 1)));
+			}
+			parts.add(field);
+		}
+		if (text.length() > 0) {
+			parts.add(literal(text.toString()));
+		}
+		if (parts.size() == 1) {
+			return parts.get(0);
+		}
+		Field[] fields = parts.toArray(new Field[0]);
+		return (event, out) -> {
+			for (Field field : fields) {
+				field.render(event, out);
+			}
+		};
+	}
+
+	/**
+	 * Copies the facts the compiled fields need. Runs on the request thread.
+	 */
+	public AccessLogEvent capture(Request request, Response response, long time) {
+		AccessLogEvent event = pool.poll();
+		if (event == null) {
+			event = new AccessLogEvent(capturers.size());
+		}
+		event.timestamp = System.currentTimeMillis();
+		event.elapsed = time;
+		event.status = response.getStatus();
+		event.bytes = response.getBytesWritten(false);
+		long commitTime = response.getCoyoteResponse().getCommitTime();
+		event.firstByte = commitTime == -1 ? -1 : commitTime - request.getCoyoteRequest().getStartTime();
+		for (int i = 0; i < event.values.length; i++) {
+			event.values[i] = capturers.get(i).capture(event, request, response, time);
+		}
+		return event;
+	}
+
+	/**
+	 * Returns a rendered event to the pool
+	 */
+	public void release(AccessLogEvent event) {
+		for (int i = 0; i < event.values.length; i++) {
+			// do not pin request objects until the next capture
+			event.values[i] = null;
+		}
+		pool.offer(event);
+	}
+
+	/**
+	 * @return the rendered field, or null for '-'
+	 */
+	public static String value(Field field, AccessLogEvent event) {
+		StringBuilder sb = buffers.get();
+		sb.setLength(0);
+		field.render(event, sb);
+		return sb.length() == 1 && sb.charAt(0) == '-' ? null : sb.toString();
+	}
+
+	private int slot(Capturer capturer) {
+		capturers.add(capturer);
+		return capturers.size() - 1;
+	}
+
+	private static Field literal(String text) {
+		return (event, out) -> out.append(text);
+	}
+
+	/**
+	 * Appends a captured reference, '-' for null
+	 */
+	private Field reference(Capturer capturer) {
+		int slot = slot(capturer);
+		return (event, out) -> {
+			Object value = event.values[slot];
+			out.append(value == null ? "-" : value.toString());
+		};
+	}
+
+	private Field eager(Element element) {
+		int slot = slot((event, request, response, time) -> {
+			CharArrayWriter buf = new CharArrayWriter(32);
+			element.addElement(buf, new Date(event.timestamp), request, response, time);
+			return buf.toString();
+		});
+		return (event, out) -> out.append((String) event.values[slot]);
+	}
+
+	private Field compile(char code) {
+		switch (code) {
+		case 'a':
+			return reference((event, request, response, time) -> request.getRemoteAddr());
+		case 'A':
+			return literal(LOCAL_ADDR);
+		case 'b':
+			return (event, out) -> {
+				if (event.bytes <= 0) {
+					out.append('-');
+				} else {
+					out.append(event.bytes);
+				}
+			};
+		case 'B':
+			return (event, out) -> out.append(event.bytes);
+		case 'D':
+			return (event, out) -> out.append(event.elapsed);
+		case 'F':
+			return (event, out) -> {
+				if (event.firstByte == -1) {
+					out.append('-');
+				} else {
+					out.append(event.firstByte);
+				}
+			};
+		case 'h':
+			return reference((event, request, response, time) -> request.getRemoteHost());
+		case 'H':
+			return reference((event, request, response, time) -> request.getProtocol());
+		case 'I':
+			return reference((event, request, response, time) -> Thread.currentThread().getName());
+		case 'l':
+			return literal("-");
+		case 'm':
+			return reference((event, request, response, time) -> request.getMethod());
+		case 'p':
+			return reference((event, request, response, time) -> request.getServerPort());
+		case 'q':
+			int query = slot((event, request, response, time) -> request.getQueryString());
+			return (event, out) -> {
+				if (event.values[query] != null) {
+					out.append('?').append((String) event.values[query]);
+				}
+			};
+		case 'r':
+			int method = slot((event, request, response, time) -> request.getMethod());
+			int uri = slot((event, request, response, time) -> request.getRequestURI());
+			int queryString = slot((event, request, response, time) -> request.getQueryString());
+			int protocol = slot((event, request, response, time) -> request.getProtocol());
+			return (event, out) -> {
+				Object[] values = event.values;
+				if (values[method] == null) {
+					out.append('-');
+					return;
+				}
+				out.append((String) values[method]).append(' ').append((String) values[uri]);
+				if (values[queryString] != null) {
+					out.append('?').append((String) values[queryString]);
+				}
+				out.append(' ').append((String) values[protocol]);
+			};
+		case 's':
+			return (event, out) -> out.append(event.status);
+		case 'S':
+			return reference((event, request, response, time) -> {
+				Session session = request.getSessionInternal(false);
+				return session == null ? null : session.getIdInternal();
+			});
+		case 't':
+			return date("[dd/MMM/yyyy:HH:mm:ss Z]", false);
+		case 'T':
+			return (event, out) -> {
+				long millis = event.elapsed % 1000;
+				out.append(event.elapsed / 1000).append('.');
+				if (millis < 100) {
+					out.append('0');
+				}
+				if (millis < 10) {
+					out.append('0');
+				}
+				out.append(millis);
+			};
+		case 'u':
+			return reference((event, request, response, time) -> request.getRemoteUser());
+		case 'U':
+			return reference((event, request, response, time) -> request.getRequestURI());
+		case 'v':
+			return reference((event, request, response, time) -> request.getServerName());
+		default:
+			return null;
+		}
+	}
+
+	private Field compile(String param, char code) {
+		switch (code) {
+		case 't':
+			boolean begin = param.startsWith("begin:");
+			String format = begin || param.startsWith("end:") ? param.substring(param.indexOf(':') + 1) : param;
+			return date(format.isEmpty() ? "[dd/MMM/yyyy:HH:mm:ss Z]" : format, begin);
+		case 'i':
+			return reference((event, request, response, time) -> request.getHeader(param));
+		case 'o':
+			return reference((event, request, response, time) -> response.getHeader(param));
+		case 'c':
+			return reference((event, request, response, time) -> {
+				Cookie[] cookies = request.getCookies();
+				if (cookies != null) {
+					for (Cookie cookie : cookies) {
+						if (param.equals(cookie.getName())) {
+							return cookie.getValue();
+						}
+					}
+				}
+				return null;
+			});
+		case 'r':
+			return reference((event, request, response, time) -> request.getAttribute(param));
+		case 's':
+			return reference((event, request, response, time) -> {
+				HttpSession session = request.getSession(false);
+				return session == null ? null : session.getAttribute(param);
+			});
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @param format
+	 *            "sec", "msec", "msec_frac" or a SimpleDateFormat pattern
+	 * @param begin
+	 *            the time the request started instead of when it was logged
+	 */
+	private static Field date(String format, boolean begin) {
+		switch (format) {
+		case "sec":
+			return (event, out) -> out.append(time(event, begin) / 1000);
+		case "msec":
+			return (event, out) -> out.append(time(event, begin));
+		case "msec_frac":
+			return (event, out) -> {
+				long millis = time(event, begin) % 1000;
+				if (millis < 100) {
+					out.append('0');
+				}
+				if (millis < 10) {
+					out.append('0');
+				}
+				out.append(millis);
+			};
+		default:
+			ThreadLocal<SimpleDateFormat> formats = ThreadLocal
+					.withInitial(() -> new SimpleDateFormat(format, Locale.getDefault()));
+			return (event, out) -> out.append(formats.get().format(new Date(time(event, begin))));
+		}
+	}
+
+	private static long time(AccessLogEvent event, boolean begin) {
+		return begin ? event.timestamp - event.elapsed : event.timestamp;
+	}
+}
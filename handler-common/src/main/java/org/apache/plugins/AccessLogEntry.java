@@ -0,0 +1,92 @@
+package org.apache.plugins;
+
+/**
+ * One request, shared by every sink of a {@link MultiSinkAccessLogValve}.
+ * The numeric facts are copied when the entry is created; the field values
+ * are rendered once, by the first sink thread that asks for them.
+ */
+public final class AccessLogEntry {
+
+	private final AccessLogCapture capture;
+
+	private final AccessLogCapture.Field[] fields;
+
+	private AccessLogEvent event;
+
+	private String[] values;
+
+	private final long timestamp;
+
+	private final long elapsed;
+
+	private final int status;
+
+	private final long bytes;
+
+	private final long firstByte;
+
+	private final long weight;
+
+	/**
+	 * @param weight
+	 *            the sample weight, 0 when not sampling
+	 */
+	public AccessLogEntry(AccessLogCapture capture, AccessLogCapture.Field[] fields, AccessLogEvent event,
+			long weight) {
+		this.capture = capture;
+		this.fields = fields;
+		this.event = event;
+		this.timestamp = event.getTimestamp();
+		this.elapsed = event.getElapsed();
+		this.status = event.getStatus();
+		this.bytes = event.getBytes();
+		this.firstByte = event.getFirstByte();
+		this.weight = weight;
+	}
+
+	/**
+	 * @return the rendered fields, null for '-'. Do not modify.
+	 */
+	public synchronized String[] getValues() {
+		if (values == null) {
+			String[] rendered = new String[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				rendered[i] = AccessLogCapture.value(fields[i], event);
+			}
+			values = rendered;
+			capture.release(event);
+			event = null;
+		}
+		return values;
+	}
+
+	/**
+	 * Milliseconds since the epoch, when the request was logged
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return -1 if the response was not committed
+	 */
+	public long getFirstByte() {
+		return firstByte;
+	}
+
+	public long getWeight() {
+		return weight;
+	}
+}
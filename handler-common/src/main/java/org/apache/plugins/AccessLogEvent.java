@@ -0,0 +1,67 @@
+package org.apache.plugins;
+
+import java.util.Arrays;
+
+/**
+ * The raw facts of one request, copied on the request thread by
+ * {@link AccessLogCapture#capture} and rendered later on a background thread.
+ * Events are pooled: once rendered, hand them back with
+ * {@link AccessLogCapture#release}.
+ */
+public final class AccessLogEvent {
+
+	/**
+	 * Milliseconds since the epoch, when the request was logged
+	 */
+	long timestamp;
+
+	/**
+	 * Milliseconds spent processing the request
+	 */
+	long elapsed;
+
+	int status;
+
+	long bytes;
+
+	/**
+	 * Milliseconds to the first byte sent, -1 if the response was not
+	 * committed
+	 */
+	long firstByte;
+
+	/**
+	 * One slot per captured request or response reference
+	 */
+	final Object[] values;
+
+	AccessLogEvent(int slots) {
+		values = new Object[slots];
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getFirstByte() {
+		return firstByte;
+	}
+
+	@Override
+	public String toString() {
+		return "AccessLogEvent [timestamp=" + timestamp + ", elapsed=" + elapsed + ", status=" + status + ", bytes="
+				+ bytes + ", firstByte=" + firstByte + ", values=" + Arrays.toString(values) + "]";
+	}
+}
@@ -0,0 +1,43 @@
+package org.apache.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the pattern of the access log valves: a comma separated list of
+ * column=pattern pairs, e.g. "server_ts=%t,url=%U,http_status=%s". A comma
+ * inside %{...} belongs to the pattern, e.g. to a %{...}t date format.
+ */
+public final class AccessLogPattern {
+
+	private AccessLogPattern() {
+	}
+
+	/**
+	 * @return each pair as {column, pattern}; the pattern may contain "="
+	 * @throws IllegalArgumentException
+	 *             naming the first pair without a column or a "="
+	 */
+	public static String[][] pairs(String pattern) {
+		List<String[]> pairs = new ArrayList<>();
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i <= pattern.length(); i++) {
+			char c = i < pattern.length() ? pattern.charAt(i) : ',';
+			if (c == '{' && i > 0 && pattern.charAt(i - 1) == '%') {
+				depth++;
+			} else if (c == '}' && depth > 0) {
+				depth--;
+			} else if (c == ',' && (depth == 0 || i == pattern.length())) {
+				String pair = pattern.substring(start, i);
+				String[] kv = pair.split("=", 2);
+				if (kv.length != 2 || kv[0].trim().isEmpty()) {
+					throw new IllegalArgumentException("Not a column=pattern pair: '" + pair + "' in " + pattern);
+				}
+				pairs.add(new String[] { kv[0].trim(), kv[1] });
+				start = i + 1;
+			}
+		}
+		return pairs.toArray(new String[0][]);
+	}
+}
@@ -0,0 +1,159 @@
+package org.apache.plugins;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides, before an access log entry is rendered, whether to keep it and
+ * what it stands for. Ordinary requests share a budget of targetRate entries
+ * per second, split evenly over one token bucket per key (URL or status) seen
+ * in the last second, so a hot key cannot starve the rare ones. Errors (4xx
+ * and 5xx), requests slower than slowThreshold and, optionally, every request
+ * of a session that was sampled once are always kept.
+ *
+ * A kept entry carries a weight: 1 if it was always kept, otherwise the
+ * number of entries of its key seen since the previous one kept, itself
+ * included. Summing the weights gives back the request counts.
+ */
+public class AccessLogSampler {
+
+	/**
+	 * Keys beyond this many share one bucket
+	 */
+	private static final int MAX_KEYS = 1024;
+
+	private static final String OVERFLOW_KEY = "";
+
+	private static final long REFRESH = TimeUnit.SECONDS.toNanos(1);
+
+	private static final long IDLE = TimeUnit.MINUTES.toNanos(1);
+
+	private static final int MAX_SESSIONS = 10000;
+
+	private final double targetRate;
+
+	private final long slowThreshold;
+
+	private final boolean keepSessions;
+
+	private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+	/**
+	 * Sampled session ids, with when they were last seen
+	 */
+	private final Map<String, Long> sessions = new ConcurrentHashMap<>();
+
+	private final AtomicLong nextRefresh = new AtomicLong(System.nanoTime() + REFRESH);
+
+	private volatile double keyRate;
+
+	private static class Bucket {
+
+		/**
+		 * The first entry of a new key is kept
+		 */
+		private double tokens = 1;
+
+		private long lastRefill;
+
+		private long seen;
+
+		private volatile long lastSeen;
+
+		Bucket(long now) {
+			lastRefill = now;
+			lastSeen = now;
+		}
+
+		/**
+		 * @return the weight if a token was available, otherwise 0
+		 */
+		synchronized long offer(long now, double rate) {
+			lastSeen = now;
+			++seen;
+			// a burst of up to one second worth of tokens
+			if (now - lastRefill > 0) {
+				tokens = Math.min(Math.max(rate, 1), tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+				lastRefill = now;
+			}
+			if (tokens < 1) {
+				return 0;
+			}
+			tokens -= 1;
+			long weight = seen;
+			seen = 0;
+			return weight;
+		}
+	}
+
+	/**
+	 * @param targetRate
+	 *            entries per second kept from ordinary requests, over all keys
+	 * @param slowThreshold
+	 *            milliseconds; slower requests are always kept
+	 * @param keepSessions
+	 *            keep every later request of a session once one of its
+	 *            requests was sampled
+	 */
+	public AccessLogSampler(double targetRate, long slowThreshold, boolean keepSessions) {
+		this.targetRate = targetRate;
+		this.slowThreshold = slowThreshold;
+		this.keepSessions = keepSessions;
+		this.keyRate = targetRate;
+	}
+
+	/**
+	 * @param key
+	 *            the URL or status the budget is split by
+	 * @param sessionId
+	 *            may be null
+	 * @return 0 to drop the entry, otherwise its weight
+	 */
+	public long sample(String key, int status, long elapsedMillis, String sessionId) {
+		if (status >= 400 || elapsedMillis >= slowThreshold) {
+			return 1;
+		}
+		long now = System.nanoTime();
+		if (keepSessions && sessionId != null && sessions.replace(sessionId, now) != null) {
+			return 1;
+		}
+		long next = nextRefresh.get();
+		if (now - next >= 0 && nextRefresh.compareAndSet(next, now + REFRESH)) {
+			refresh(now);
+		}
+
+		if (key == null || buckets.size() >= MAX_KEYS && !buckets.containsKey(key)) {
+			key = OVERFLOW_KEY;
+		}
+		Bucket bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = buckets.computeIfAbsent(key, k -> new Bucket(now));
+		}
+		long weight = bucket.offer(now, keyRate);
+		if (weight > 0 && keepSessions && sessionId != null && sessions.size() < MAX_SESSIONS) {
+			sessions.put(sessionId, now);
+		}
+		return weight;
+	}
+
+	/**
+	 * Splits the budget over the keys active in the last second, and forgets
+	 * idle keys and sessions
+	 */
+	private void refresh(long now) {
+		int active = 0;
+		for (Iterator<Bucket> i = buckets.values().iterator(); i.hasNext();) {
+			long idle = now - i.next().lastSeen;
+			if (idle > IDLE) {
+				i.remove();
+			} else if (idle <= REFRESH) {
+				++active;
+			}
+		}
+		keyRate = targetRate / Math.max(1, active);
+		sessions.values().removeIf(lastSeen -> now - lastSeen > IDLE);
+	}
+}
@@ -0,0 +1,33 @@
+package org.apache.plugins;
+
+/**
+ * A destination of {@link MultiSinkAccessLogValve}. Every sink gets the same
+ * {@link AccessLogEntry} instances and keeps its own queue and thread: offer
+ * is called on the request thread and must not block or touch the network.
+ *
+ * Sinks are created by class name with their no-argument constructor.
+ */
+public interface AccessLogSink {
+
+	/**
+	 * Called once before the first entry.
+	 *
+	 * @param fields
+	 *            the names of the values of every entry, in order
+	 * @param patterns
+	 *            the access log pattern of each field
+	 * @param sampled
+	 *            entries carry a sample weight
+	 */
+	void start(String[] fields, String[] patterns, boolean sampled) throws Exception;
+
+	/**
+	 * @return false if the entry was dropped
+	 */
+	boolean offer(AccessLogEntry entry);
+
+	/**
+	 * Ships what is queued and releases the sink's resources
+	 */
+	void stop();
+}
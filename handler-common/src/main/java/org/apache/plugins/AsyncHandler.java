@@ -0,0 +1,213 @@
+package org.apache.plugins;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * Decorator that makes any java.util.logging Handler non-blocking for the
+ * caller: records go into a bounded lock-free buffer and a dedicated thread
+ * publishes them to the wrapped handler.
+ *
+ * Configured in logging.properties, e.g.
+ *
+ * <pre>
+ * handlers = org.apache.plugins.AsyncHandler
+ * org.apache.plugins.AsyncHandler.target = org.apache.plugins.JdbcHandler
+ * org.apache.plugins.AsyncHandler.capacity = 8192
+ * org.apache.plugins.AsyncHandler.overflowPolicy = DROP_NEW
+ * org.apache.plugins.AsyncHandler.blockTimeout = 1000
+ * org.apache.plugins.AsyncHandler.sampleRate = 10
+ * org.apache.plugins.AsyncHandler.level = INFO
+ * </pre>
+ *
+ * java.util.logging creates one handler per class, so each further handler
+ * made asynchronous in the same JVM needs a subclass of its own, whose
+ * properties are read under its class name, e.g. AsyncJdbcHandler and
+ * AsyncCloudwatchHandler.
+ */
+public class AsyncHandler extends Handler {
+
+	/**
+	 * How long the consumer parks when the buffer is empty, and how long
+	 * flush() waits between checks
+	 */
+	private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private static final long FLUSH_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private final Handler target;
+
+	private final StripedBuffer<LogRecord> buffer;
+
+	private final AtomicLong published = new AtomicLong();
+
+	private final AtomicLong delivered = new AtomicLong();
+
+	private final Thread consumer;
+
+	private volatile boolean consumerParked;
+
+	private volatile boolean closed;
+
+	/**
+	 * Exposed over JMX as org.apache.plugins:type=AsyncHandler, or the
+	 * subclass name, and name=the target class
+	 */
+	private final Metrics metrics = new Metrics();
+
+	private final Meter enqueued = metrics.meter("Enqueued");
+
+	public AsyncHandler() {
+		this(AsyncHandler.class.getName(), null);
+	}
+
+	/**
+	 * For the subclasses wrapping one handler each
+	 *
+	 * @param prefix the logging.properties keys are prefix.target,
+	 *            prefix.capacity etc., normally the subclass name
+	 * @param defaultTarget class name of the handler wrapped when prefix.target
+	 *            is not set
+	 */
+	protected AsyncHandler(String prefix, String defaultTarget) {
+		this(createTarget(prefix, property(prefix, "target", defaultTarget)),
+				Integer.parseInt(property(prefix, "capacity", "8192")),
+				OverflowPolicy.valueOf(property(prefix, "overflowPolicy", OverflowPolicy.DROP_NEW.name())),
+				Long.parseLong(property(prefix, "blockTimeout", String.valueOf(Long.MAX_VALUE))),
+				Integer.parseInt(property(prefix, "sampleRate", "10")));
+		String level = property(prefix, "level", null);
+		if (level != null) {
+			setLevel(Level.parse(level));
+		}
+	}
+
+	public AsyncHandler(Handler target, int capacity, OverflowPolicy overflowPolicy) {
+		this(target, capacity, overflowPolicy, Long.MAX_VALUE, 10);
+	}
+
+	/**
+	 * @param blockTimeout milliseconds a caller waits for room under
+	 *            {@link OverflowPolicy#BLOCK}
+	 * @param sampleRate one in sampleRate records is kept under
+	 *            {@link OverflowPolicy#SAMPLE}
+	 */
+	public AsyncHandler(Handler target, int capacity, OverflowPolicy overflowPolicy, long blockTimeout,
+			int sampleRate) {
+		this.target = target;
+		// a single stripe keeps records in publication order
+		this.buffer = new StripedBuffer<>(capacity, 1, overflowPolicy, blockTimeout, sampleRate);
+		this.consumer = new Thread(this::consume, getClass().getSimpleName() + "-" + target.getClass().getSimpleName());
+		this.consumer.setDaemon(true);
+		this.consumer.start();
+		metrics.gauge("Dropped", buffer::getDropped);
+		metrics.gauge("QueueDepth", buffer::size);
+		metrics.register(getClass().getSimpleName(), target.getClass().getName());
+	}
+
+	private static String property(String prefix, String name, String defaultValue) {
+		String value = LogManager.getLogManager().getProperty(prefix + "." + name);
+		return value == null ? defaultValue : value.trim();
+	}
+
+	private static Handler createTarget(String prefix, String className) {
+		if (className == null) {
+			throw new IllegalArgumentException(prefix + ".target is not set");
+		}
+		try {
+			return (Handler) Class.forName(className, true, Thread.currentThread().getContextClassLoader())
+					.newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Cannot create handler " + className, e);
+		}
+	}
+
+	public Handler getTarget() {
+		return target;
+	}
+
+	public long getDropped() {
+		return buffer.getDropped();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record)) {
+			return;
+		}
+		// the caller is inferred lazily from the stack, so it has to happen
+		// here and not on the consumer thread
+		record.getSourceClassName();
+
+		published.incrementAndGet();
+		enqueued.mark();
+		buffer.offer(record);
+		if (consumerParked) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	private void consume() {
+		while (!closed || !buffer.isEmpty()) {
+			LogRecord record = buffer.poll();
+			if (record == null) {
+				consumerParked = true;
+				if (buffer.isEmpty() && !closed) {
+					LockSupport.parkNanos(this, PARK_NANOS);
+				}
+				consumerParked = false;
+				continue;
+			}
+			try {
+				target.publish(record);
+			} catch (RuntimeException e) {
+				reportError(null, e, ErrorManager.WRITE_FAILURE);
+			} finally {
+				delivered.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Waits until every record published so far has been handed to the
+	 * target, then flushes the target.
+	 */
+	@Override
+	public void flush() {
+		long goal = published.get();
+		// every record published is eventually either delivered or dropped
+		while (delivered.get() + buffer.getDropped() < goal && consumer.isAlive()) {
+			LockSupport.unpark(consumer);
+			LockSupport.parkNanos(this, FLUSH_NANOS);
+		}
+		target.flush();
+	}
+
+	/**
+	 * Stops accepting records, drains the buffer into the target and closes
+	 * it.
+	 */
+	@Override
+	public void close() throws SecurityException {
+		closed = true;
+		LockSupport.unpark(consumer);
+		try {
+			consumer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (buffer.getDropped() > 0) {
+			System.err.println(new Date() + " " + this.getClass().getName() + ": dropped " + buffer.getDropped()
+					+ " records for " + target.getClass().getName());
+		}
+		target.flush();
+		target.close();
+		metrics.unregister();
+	}
+}
@@ -0,0 +1,111 @@
+package org.apache.plugins;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the initialization of a log destination (connecting, creating remote
+ * resources) once, on a daemon thread, so that neither Tomcat startup nor the
+ * first log calls wait for it. A failed attempt is reported on stderr and
+ * retried after a delay that doubles from baseDelay up to maxDelay. The
+ * callers buffer their records until {@link #isReady()}.
+ */
+public class Bootstrap {
+
+	public interface Task {
+		void run() throws Exception;
+	}
+
+	private final String name;
+
+	private final Task task;
+
+	private final long baseDelay;
+
+	private final long maxDelay;
+
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private volatile boolean ready;
+
+	private volatile Thread thread;
+
+	/**
+	 * @param baseDelay
+	 *            milliseconds before the first retry
+	 * @param maxDelay
+	 *            upper bound (milliseconds) of the delay between retries
+	 */
+	public Bootstrap(String name, Task task, long baseDelay, long maxDelay) {
+		this.name = name;
+		this.task = task;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Starts the initialization, unless it was started before
+	 *
+	 * @return true if this call started it
+	 */
+	public boolean start() {
+		if (!started.compareAndSet(false, true)) {
+			return false;
+		}
+		Thread t = new Thread(this::run, name + "-bootstrap");
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+		return true;
+	}
+
+	private void run() {
+		try {
+			long delay = baseDelay;
+			for (;;) {
+				try {
+					task.run();
+					ready = true;
+					return;
+				} catch (Exception e) {
+					System.err.println(new Date() + " " + getClass().getName() + ": Failed to initialize " + name
+							+ ", retrying in " + delay + " ms. Error: " + e.toString());
+				}
+				Thread.sleep(delay);
+				delay = Math.min(delay * 2, maxDelay);
+			}
+		} catch (InterruptedException e) {
+			// cancelled
+		} finally {
+			thread = null;
+			done.countDown();
+		}
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return true if the initialization succeeded within the timeout
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		done.await(timeout, unit);
+		return ready;
+	}
+
+	/**
+	 * Stops retrying
+	 */
+	public void cancel() {
+		started.set(true);
+		Thread t = thread;
+		if (t != null) {
+			t.interrupt();
+		}
+	}
+}
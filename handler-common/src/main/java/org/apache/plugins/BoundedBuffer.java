@@ -0,0 +1,91 @@
+package org.apache.plugins;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer ring buffer (Vyukov's
+ * array queue). Each slot carries a sequence number that tells producers and
+ * consumers whether it is free to write or ready to read, so neither side
+ * ever takes a lock.
+ */
+public class BoundedBuffer<E> {
+
+	private final int mask;
+
+	private final AtomicReferenceArray<E> elements;
+
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong head = new AtomicLong();
+
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * @param capacity rounded up to the next power of two
+	 */
+	public BoundedBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.mask = size - 1;
+		this.elements = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(E e) {
+		while (true) {
+			long t = tail.get();
+			int slot = (int) t & mask;
+			long diff = sequences.get(slot) - t;
+			if (diff == 0) {
+				if (tail.compareAndSet(t, t + 1)) {
+					elements.lazySet(slot, e);
+					sequences.set(slot, t + 1);
+					return true;
+				}
+			} else if (diff < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return null if the buffer is empty
+	 */
+	public E poll() {
+		while (true) {
+			long h = head.get();
+			int slot = (int) h & mask;
+			long diff = sequences.get(slot) - (h + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(h, h + 1)) {
+					E e = elements.get(slot);
+					elements.lazySet(slot, null);
+					sequences.set(slot, h + mask + 1);
+					return e;
+				}
+			} else if (diff < 0) {
+				return null;
+			}
+		}
+	}
+
+	public int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, capacity()));
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+}
@@ -0,0 +1,215 @@
+package org.apache.plugins;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Protects the log handlers from storms of the same record. Records are keyed
+ * by logger, level and raw (unformatted) message; the first threshold records
+ * of a key in a window pass, the rest are counted and dropped. When the window
+ * closes, a single record saying how many times the last one was repeated is
+ * passed instead.
+ *
+ * Windows are closed by the next record of their key, or by {@link #expire}
+ * which the handlers call periodically and which offer also calls at most once
+ * per window. Beyond maxKeys keys, records of new keys always pass.
+ */
+public class BurstSuppressor {
+
+	private final int threshold;
+
+	private final long window;
+
+	private final int maxKeys;
+
+	private final Map<Key, Burst> bursts = new ConcurrentHashMap<>();
+
+	private final AtomicLong nextExpiry;
+
+	private final LongAdder suppressed = new LongAdder();
+
+	private static final class Key {
+
+		final String loggerName;
+
+		final Level level;
+
+		final String message;
+
+		final int hash;
+
+		Key(LogRecord record) {
+			loggerName = record.getLoggerName();
+			level = record.getLevel();
+			message = record.getMessage();
+			hash = Objects.hash(loggerName, level, message);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && Objects.equals(loggerName, other.loggerName)
+					&& Objects.equals(level, other.level) && Objects.equals(message, other.message);
+		}
+	}
+
+	private static final class Burst {
+
+		long start;
+
+		long count;
+
+		/**
+		 * The last record suppressed, for the summary
+		 */
+		LogRecord last;
+
+		/**
+		 * Set once expired: a record that finds it so retries with a new one
+		 */
+		boolean closed;
+
+		Burst(long start) {
+			this.start = start;
+		}
+
+		/**
+		 * @return the summary of the window, or null if nothing was suppressed
+		 */
+		LogRecord summary(int threshold) {
+			if (count <= threshold) {
+				return null;
+			}
+			LogRecord summary = new LogRecord(last.getLevel(),
+					new SimpleFormatter().formatMessage(last) + " (repeated " + (count - threshold) + " times)");
+			summary.setLoggerName(last.getLoggerName());
+			summary.setSourceClassName(last.getSourceClassName());
+			summary.setSourceMethodName(last.getSourceMethodName());
+			summary.setThreadID(last.getThreadID());
+			return summary;
+		}
+	}
+
+	/**
+	 * @param threshold
+	 *            records of a key passed per window
+	 * @param window
+	 *            milliseconds
+	 * @param maxKeys
+	 *            keys tracked at most
+	 */
+	public BurstSuppressor(int threshold, long window, int maxKeys) {
+		this.threshold = threshold;
+		this.window = TimeUnit.MILLISECONDS.toNanos(window);
+		this.maxKeys = maxKeys;
+		this.nextExpiry = new AtomicLong(System.nanoTime() + this.window);
+	}
+
+	/**
+	 * Passes the record to out unless it is suppressed, preceded by the
+	 * summary of its key's previous window, if that just closed
+	 */
+	public void offer(LogRecord record, Consumer<LogRecord> out) {
+		long now = System.nanoTime();
+		long next = nextExpiry.get();
+		if (now - next >= 0 && nextExpiry.compareAndSet(next, now + window)) {
+			expire(now, false, out);
+		}
+
+		Key key = new Key(record);
+		LogRecord summary = null;
+		boolean pass;
+		for (;;) {
+			Burst burst = bursts.get(key);
+			if (burst == null) {
+				if (bursts.size() >= maxKeys) {
+					out.accept(record);
+					return;
+				}
+				burst = bursts.computeIfAbsent(key, k -> new Burst(now));
+			}
+			synchronized (burst) {
+				if (burst.closed) {
+					continue;
+				}
+				if (now - burst.start >= window) {
+					summary = burst.summary(threshold);
+					burst.start = now;
+					burst.count = 0;
+					burst.last = null;
+				}
+				pass = ++burst.count <= threshold;
+				if (!pass) {
+					burst.last = record;
+				}
+			}
+			break;
+		}
+		if (summary != null) {
+			out.accept(summary);
+		}
+		if (pass) {
+			out.accept(record);
+		} else {
+			suppressed.increment();
+		}
+	}
+
+	/**
+	 * Closes the windows that are over, passing their summaries to out
+	 */
+	public void expire(Consumer<LogRecord> out) {
+		expire(System.nanoTime(), false, out);
+	}
+
+	/**
+	 * Closes every window, over or not, passing their summaries to out. For
+	 * when the handler closes.
+	 */
+	public void close(Consumer<LogRecord> out) {
+		expire(System.nanoTime(), true, out);
+	}
+
+	private void expire(long now, boolean all, Consumer<LogRecord> out) {
+		for (Iterator<Burst> i = bursts.values().iterator(); i.hasNext();) {
+			Burst burst = i.next();
+			LogRecord summary;
+			synchronized (burst) {
+				if (!all && now - burst.start < window) {
+					continue;
+				}
+				summary = burst.summary(threshold);
+				burst.closed = true;
+				burst.last = null;
+				i.remove();
+			}
+			if (summary != null) {
+				out.accept(summary);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of records suppressed
+	 */
+	public long getSuppressed() {
+		return suppressed.sum();
+	}
+}
@@ -0,0 +1,133 @@
+package org.apache.plugins;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker for a remote logging destination. After
+ * failureThreshold consecutive failures it opens and callers shed their
+ * records instead of retrying. Once the backoff delay has passed, a single
+ * caller is let through as a probe: its success closes the breaker, its
+ * failure opens it again with twice the delay (plus jitter, capped at
+ * maxDelay).
+ *
+ * Transitions are reported once on stderr, so an outage costs a handful of
+ * lines instead of a stack trace per record.
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String name;
+
+	private final int failureThreshold;
+
+	private final long baseDelay;
+
+	private final long maxDelay;
+
+	private volatile State state = State.CLOSED;
+
+	private volatile int consecutiveFailures;
+
+	private int consecutiveOpens;
+
+	private long openUntil;
+
+	private final AtomicLong shed = new AtomicLong();
+
+	private final AtomicLong shedSinceOpen = new AtomicLong();
+
+	/**
+	 * @param baseDelay milliseconds the breaker stays open the first time
+	 * @param maxDelay upper bound (milliseconds) of the exponential backoff
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long baseDelay, long maxDelay) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return true if the caller may attempt the remote call. While the
+	 *         breaker is half-open only the probe caller gets true.
+	 */
+	public boolean allowRequest() {
+		if (state == State.CLOSED) {
+			return true;
+		}
+		synchronized (this) {
+			if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+				state = State.HALF_OPEN;
+				return true;
+			}
+			return state == State.CLOSED;
+		}
+	}
+
+	public void recordSuccess() {
+		if (state == State.CLOSED && consecutiveFailures == 0) {
+			return;
+		}
+		synchronized (this) {
+			if (state != State.CLOSED) {
+				System.err.println(new Date() + " " + getClass().getName() + ": " + name
+						+ " recovered, closing circuit after shedding " + shedSinceOpen.getAndSet(0) + " records");
+			}
+			state = State.CLOSED;
+			consecutiveFailures = 0;
+			consecutiveOpens = 0;
+		}
+	}
+
+	public synchronized void recordFailure(Throwable cause) {
+		++consecutiveFailures;
+		if (state == State.HALF_OPEN || state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+			long delay = Math.min(maxDelay, baseDelay << Math.min(consecutiveOpens, 30));
+			delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+			++consecutiveOpens;
+			openUntil = System.currentTimeMillis() + delay;
+			if (state == State.CLOSED) {
+				System.err.println(new Date() + " " + getClass().getName() + ": " + name + " failed "
+						+ consecutiveFailures + " times, opening circuit for " + delay + "ms");
+				cause.printStackTrace(System.err);
+			} else {
+				System.err.println(new Date() + " " + getClass().getName() + ": " + name
+						+ " probe failed, reopening circuit for " + delay + "ms. Error: " + cause);
+			}
+			state = State.OPEN;
+		}
+	}
+
+	/**
+	 * For a caller let through that gave up before reaching the remote
+	 * service, e.g. waiting for a pooled connection: its probe, if it was
+	 * one, goes to the next caller, without counting a failure.
+	 */
+	public synchronized void cancelProbe() {
+		if (state == State.HALF_OPEN) {
+			state = State.OPEN;
+			openUntil = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Counts records dropped because the breaker did not allow the call.
+	 */
+	public void shed(int records) {
+		shed.addAndGet(records);
+		shedSinceOpen.addAndGet(records);
+	}
+
+	public long getShed() {
+		return shed.get();
+	}
+}
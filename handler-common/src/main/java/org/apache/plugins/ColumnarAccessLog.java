@@ -0,0 +1,472 @@
+package org.apache.plugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary columnar file format of {@link ColumnarAccessLogSink}, read by
+ * {@link ColumnarAccessLogReader}.
+ *
+ * A file is a header, then blocks of up to a few thousand entries. The
+ * header holds the magic "ALC1" and the name and type of each field. A block
+ * is a 32 byte header (payload length, inflated length, rows, min and max
+ * timestamp, CRC32 of the payload) followed by its deflated payload: the
+ * columns one after the other. Timestamps are stored as zigzag varint deltas
+ * from the previous one; elapsed, status, bytes, first byte and sample weight
+ * as varints; each string field as a dictionary of the block's distinct
+ * values followed by one varint index per row, 0 for null. Fields with a
+ * %t, %s, %b, %B, %D or %F pattern are not stored as strings but rendered
+ * from the numeric columns when read.
+ *
+ * A reader skips a block outside its time range by the block header alone,
+ * and evaluates a string predicate once per dictionary value rather than per
+ * row.
+ */
+public final class ColumnarAccessLog {
+
+	static final int MAGIC = 0x414c4331;
+
+	static final int BLOCK_HEADER = 32;
+
+	public static final String SUFFIX = ".alc";
+
+	/**
+	 * How a field is stored, from its access log pattern
+	 */
+	public enum Type {
+		STRING, STATUS, BYTES, BYTES_OR_NULL, ELAPSED, FIRST_BYTE, TIMESTAMP
+	}
+
+	private ColumnarAccessLog() {
+	}
+
+	public static Type type(String pattern) {
+		if (pattern.equals("%s")) {
+			return Type.STATUS;
+		} else if (pattern.equals("%B")) {
+			return Type.BYTES;
+		} else if (pattern.equals("%b")) {
+			return Type.BYTES_OR_NULL;
+		} else if (pattern.equals("%D")) {
+			return Type.ELAPSED;
+		} else if (pattern.equals("%F")) {
+			return Type.FIRST_BYTE;
+		} else if (pattern.equals("%t")
+				|| pattern.startsWith("%{") && pattern.endsWith("}t") && !pattern.contains("begin:")) {
+			return Type.TIMESTAMP;
+		}
+		return Type.STRING;
+	}
+
+	/**
+	 * The entries of one block, column by column, until it is written
+	 */
+	public static final class BlockBuilder {
+
+		private final Type[] types;
+
+		private final int capacity;
+
+		private final long[] timestamps;
+
+		private final long[] elapsed;
+
+		private final int[] status;
+
+		private final long[] bytes;
+
+		private final long[] firstByte;
+
+		private final long[] weight;
+
+		/**
+		 * Per string field: the index of each distinct value + 1, and the
+		 * values in order
+		 */
+		private final Map<String, Integer>[] dictionaries;
+
+		private final List<String>[] values;
+
+		private final int[][] indexes;
+
+		private int rows;
+
+		private long minTime = Long.MAX_VALUE;
+
+		private long maxTime = Long.MIN_VALUE;
+
+		private final Output out = new Output();
+
+		@SuppressWarnings("unchecked")
+		public BlockBuilder(Type[] types, int capacity) {
+			this.types = types;
+			this.capacity = capacity;
+			timestamps = new long[capacity];
+			elapsed = new long[capacity];
+			status = new int[capacity];
+			bytes = new long[capacity];
+			firstByte = new long[capacity];
+			weight = new long[capacity];
+			dictionaries = new Map[types.length];
+			values = new List[types.length];
+			indexes = new int[types.length][];
+			for (int f = 0; f < types.length; f++) {
+				if (types[f] == Type.STRING) {
+					dictionaries[f] = new HashMap<>();
+					values[f] = new ArrayList<>();
+					indexes[f] = new int[capacity];
+				}
+			}
+		}
+
+		/**
+		 * @param fields
+		 *            the rendered fields, null for '-'; only read for string
+		 *            fields, may be null if there are none
+		 */
+		public void add(long timestamp, long elapsed, int status, long bytes, long firstByte, long weight,
+				String[] fields) {
+			int row = rows++;
+			this.timestamps[row] = timestamp;
+			this.elapsed[row] = elapsed;
+			this.status[row] = status;
+			this.bytes[row] = bytes;
+			this.firstByte[row] = firstByte;
+			this.weight[row] = weight;
+			minTime = Math.min(minTime, timestamp);
+			maxTime = Math.max(maxTime, timestamp);
+			for (int f = 0; f < types.length; f++) {
+				if (indexes[f] != null) {
+					String value = fields[f];
+					Integer index = 0;
+					if (value != null) {
+						index = dictionaries[f].get(value);
+						if (index == null) {
+							values[f].add(value);
+							index = values[f].size();
+							dictionaries[f].put(value, index);
+						}
+					}
+					indexes[f][row] = index;
+				}
+			}
+		}
+
+		public boolean hasStrings() {
+			for (int[] index : indexes) {
+				if (index != null) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public int getRows() {
+			return rows;
+		}
+
+		public boolean isFull() {
+			return rows == capacity;
+		}
+
+		public void clear() {
+			rows = 0;
+			minTime = Long.MAX_VALUE;
+			maxTime = Long.MIN_VALUE;
+			for (int f = 0; f < types.length; f++) {
+				if (indexes[f] != null) {
+					dictionaries[f].clear();
+					values[f].clear();
+				}
+			}
+		}
+
+		/**
+		 * @return the block, header and deflated payload, ready to write
+		 */
+		ByteBuffer encode(Deflater deflater) {
+			out.size = 0;
+			long previous = 0;
+			for (int i = 0; i < rows; i++) {
+				out.zigzag(timestamps[i] - previous);
+				previous = timestamps[i];
+			}
+			for (int i = 0; i < rows; i++) {
+				out.zigzag(elapsed[i]);
+			}
+			for (int i = 0; i < rows; i++) {
+				out.zigzag(status[i]);
+			}
+			for (int i = 0; i < rows; i++) {
+				out.zigzag(bytes[i]);
+			}
+			for (int i = 0; i < rows; i++) {
+				out.zigzag(firstByte[i]);
+			}
+			for (int i = 0; i < rows; i++) {
+				out.zigzag(weight[i]);
+			}
+			for (int f = 0; f < types.length; f++) {
+				if (indexes[f] == null) {
+					continue;
+				}
+				out.varint(values[f].size());
+				for (String value : values[f]) {
+					byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+					out.varint(utf8.length);
+					out.bytes(utf8, utf8.length);
+				}
+				for (int i = 0; i < rows; i++) {
+					out.varint(indexes[f][i]);
+				}
+			}
+
+			deflater.reset();
+			deflater.setInput(out.buffer, 0, out.size);
+			deflater.finish();
+			byte[] compressed = new byte[Math.max(64, out.size + out.size / 100 + 64)];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == compressed.length) {
+					compressed = Arrays.copyOf(compressed, compressed.length * 2);
+				}
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(compressed, 0, length);
+
+			ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER + length);
+			block.putInt(length).putInt(out.size).putInt(rows).putLong(minTime).putLong(maxTime)
+					.putInt((int) crc.getValue());
+			block.put(compressed, 0, length);
+			block.flip();
+			return block;
+		}
+	}
+
+	/**
+	 * Growable byte array with varint writes
+	 */
+	private static final class Output {
+
+		byte[] buffer = new byte[64 * 1024];
+
+		int size;
+
+		void zigzag(long value) {
+			varint(value << 1 ^ value >> 63);
+		}
+
+		void varint(long value) {
+			if (size + 10 > buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			while ((value & ~0x7fL) != 0) {
+				buffer[size++] = (byte) (value & 0x7f | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+		void bytes(byte[] bytes, int length) {
+			if (size + length > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+			}
+			System.arraycopy(bytes, 0, buffer, size, length);
+			size += length;
+		}
+	}
+
+	/**
+	 * Appends blocks to one file through its FileChannel
+	 */
+	public static final class Writer implements Closeable {
+
+		private final FileChannel channel;
+
+		private final Deflater deflater;
+
+		private long size;
+
+		/**
+		 * Creates the file, which must not exist, and writes its header
+		 *
+		 * @param level
+		 *            the Deflater compression level, 1 (fastest) to 9
+		 */
+		public Writer(Path file, String[] fields, Type[] types, int level) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			deflater = new Deflater(level);
+			Output header = new Output();
+			header.varint(fields.length);
+			for (int f = 0; f < fields.length; f++) {
+				byte[] name = fields[f].getBytes(StandardCharsets.UTF_8);
+				header.varint(name.length);
+				header.bytes(name, name.length);
+				header.varint(types[f].ordinal());
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(8 + header.size);
+			buffer.putInt(MAGIC).putInt(header.size).put(header.buffer, 0, header.size).flip();
+			write(buffer);
+		}
+
+		/**
+		 * Writes the block's entries; the caller clears the builder
+		 */
+		public void write(BlockBuilder block) throws IOException {
+			if (block.getRows() > 0) {
+				write(block.encode(deflater));
+			}
+		}
+
+		private void write(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				size += channel.write(buffer);
+			}
+		}
+
+		/**
+		 * Bytes written so far
+		 */
+		public long size() {
+			return size;
+		}
+
+		@Override
+		public void close() throws IOException {
+			deflater.end();
+			channel.close();
+		}
+	}
+
+	/**
+	 * The columns of one block, inflated
+	 */
+	static final class Block {
+
+		int rows;
+
+		long[] timestamps;
+
+		long[] elapsed;
+
+		int[] status;
+
+		long[] bytes;
+
+		long[] firstByte;
+
+		long[] weight;
+
+		/**
+		 * Per string field, null for the others
+		 */
+		String[][] dictionaries;
+
+		int[][] indexes;
+
+		static Block decode(byte[] payload, int rows, Type[] types) {
+			ByteBuffer in = ByteBuffer.wrap(payload);
+			Block block = new Block();
+			block.rows = rows;
+			block.timestamps = new long[rows];
+			long previous = 0;
+			for (int i = 0; i < rows; i++) {
+				previous += zigzag(in);
+				block.timestamps[i] = previous;
+			}
+			block.elapsed = longs(in, rows);
+			block.status = new int[rows];
+			for (int i = 0; i < rows; i++) {
+				block.status[i] = (int) zigzag(in);
+			}
+			block.bytes = longs(in, rows);
+			block.firstByte = longs(in, rows);
+			block.weight = longs(in, rows);
+			block.dictionaries = new String[types.length][];
+			block.indexes = new int[types.length][];
+			for (int f = 0; f < types.length; f++) {
+				if (types[f] != Type.STRING) {
+					continue;
+				}
+				String[] dictionary = new String[(int) varint(in)];
+				for (int d = 0; d < dictionary.length; d++) {
+					int length = (int) varint(in);
+					dictionary[d] = new String(payload, in.position(), length, StandardCharsets.UTF_8);
+					in.position(in.position() + length);
+				}
+				int[] index = new int[rows];
+				for (int i = 0; i < rows; i++) {
+					index[i] = (int) varint(in);
+				}
+				block.dictionaries[f] = dictionary;
+				block.indexes[f] = index;
+			}
+			return block;
+		}
+
+		/**
+		 * @return the string field of a row, or null
+		 */
+		String value(int field, int row) {
+			int index = indexes[field][row];
+			return index == 0 ? null : dictionaries[field][index - 1];
+		}
+
+		private static long[] longs(ByteBuffer in, int rows) {
+			long[] values = new long[rows];
+			for (int i = 0; i < rows; i++) {
+				values[i] = zigzag(in);
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * @return the payload of a block, inflated
+	 */
+	static byte[] inflate(byte[] compressed, int length, Inflater inflater) throws DataFormatException {
+		inflater.reset();
+		inflater.setInput(compressed);
+		byte[] payload = new byte[length];
+		int n = 0;
+		while (n < length && !inflater.finished()) {
+			int inflated = inflater.inflate(payload, n, length - n);
+			if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+				throw new DataFormatException("truncated block");
+			}
+			n += inflated;
+		}
+		return payload;
+	}
+
+	static long varint(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	static long zigzag(ByteBuffer in) {
+		long value = varint(in);
+		return value >>> 1 ^ -(value & 1);
+	}
+}
@@ -0,0 +1,417 @@
+package org.apache.plugins;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the files of {@link ColumnarAccessLogSink}, memory-mapped, and scans
+ * them with a {@link Query}: blocks outside the time range are skipped by
+ * their header, status is checked on its column, and the URL substring once
+ * per distinct URL of a block. A file being written can be read; its last,
+ * incomplete block is ignored.
+ *
+ * Also a command line tool:
+ *
+ * <pre>
+ * java -cp handler-common.jar org.apache.plugins.ColumnarAccessLogReader \
+ *     [--from TIME] [--to TIME] [--status 500|5xx|400-499] [--url TEXT] [--count] FILE|DIRECTORY...
+ * </pre>
+ *
+ * TIME is ISO-8601, e.g. 2024-05-01T10:00 (local time) or
+ * 2024-05-01T08:00:00Z, or milliseconds since the epoch. Entries are printed
+ * one per line as field=value pairs; %t fields as ISO-8601 instants.
+ */
+public class ColumnarAccessLogReader implements Closeable {
+
+	private final Path file;
+
+	private final FileChannel channel;
+
+	private final MappedByteBuffer buffer;
+
+	private final String[] fields;
+
+	private final ColumnarAccessLog.Type[] types;
+
+	/**
+	 * The string field holding the URL path, -1 if none
+	 */
+	private final int urlField;
+
+	private final Inflater inflater = new Inflater();
+
+	private long blocksRead;
+
+	private long blocksSkipped;
+
+	/**
+	 * What a scan returns; unset criteria match every entry
+	 */
+	public static final class Query {
+
+		private long from = Long.MIN_VALUE;
+
+		private long to = Long.MAX_VALUE;
+
+		private int minStatus = Integer.MIN_VALUE;
+
+		private int maxStatus = Integer.MAX_VALUE;
+
+		private String url;
+
+		/**
+		 * @param from
+		 *            milliseconds since the epoch, inclusive
+		 * @param to
+		 *            exclusive
+		 */
+		public Query time(long from, long to) {
+			this.from = from;
+			this.to = to;
+			return this;
+		}
+
+		/**
+		 * @param max
+		 *            inclusive
+		 */
+		public Query status(int min, int max) {
+			this.minStatus = min;
+			this.maxStatus = max;
+			return this;
+		}
+
+		/**
+		 * @param url
+		 *            a substring of the URL
+		 */
+		public Query url(String url) {
+			this.url = url;
+			return this;
+		}
+	}
+
+	/**
+	 * One entry
+	 */
+	public static final class Row {
+
+		private final String[] fields;
+
+		private final String[] values;
+
+		private final long timestamp;
+
+		private final int status;
+
+		private final long weight;
+
+		Row(String[] fields, String[] values, long timestamp, int status, long weight) {
+			this.fields = fields;
+			this.values = values;
+			this.timestamp = timestamp;
+			this.status = status;
+			this.weight = weight;
+		}
+
+		/**
+		 * @return the fields in order, null for '-'
+		 */
+		public String[] getValues() {
+			return values;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return the sample weight, 0 when not sampling
+		 */
+		public long getWeight() {
+			return weight;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(256);
+			for (int i = 0; i < fields.length; i++) {
+				if (i > 0) {
+					sb.append(' ');
+				}
+				sb.append(fields[i]).append('=').append(values[i] == null ? "-" : values[i]);
+			}
+			if (weight > 0) {
+				sb.append(fields.length == 0 ? "" : " ").append("sample_weight=").append(weight);
+			}
+			return sb.toString();
+		}
+	}
+
+	public ColumnarAccessLogReader(Path file) throws IOException {
+		this.file = file;
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		if (buffer.remaining() < 8 || buffer.getInt() != ColumnarAccessLog.MAGIC) {
+			channel.close();
+			throw new IOException(file + " is not a columnar access log");
+		}
+		int headerLength = buffer.getInt();
+		ByteBuffer header = buffer.slice();
+		header.limit(headerLength);
+		buffer.position(buffer.position() + headerLength);
+		fields = new String[(int) ColumnarAccessLog.varint(header)];
+		types = new ColumnarAccessLog.Type[fields.length];
+		int url = -1;
+		for (int f = 0; f < fields.length; f++) {
+			byte[] name = new byte[(int) ColumnarAccessLog.varint(header)];
+			header.get(name);
+			fields[f] = new String(name, StandardCharsets.UTF_8);
+			types[f] = ColumnarAccessLog.Type.values()[(int) ColumnarAccessLog.varint(header)];
+			if (types[f] == ColumnarAccessLog.Type.STRING
+					&& (fields[f].equals("url") || url == -1 && fields[f].equals("uri"))) {
+				url = f;
+			}
+		}
+		urlField = url;
+	}
+
+	public String[] getFields() {
+		return fields;
+	}
+
+	/**
+	 * Hands every entry matching the query to the consumer, in file order
+	 *
+	 * @throws IOException
+	 *             if a block is corrupt
+	 */
+	public void scan(Query query, Consumer<Row> consumer) throws IOException {
+		if (query.url != null && urlField == -1) {
+			throw new IOException(file + " has no url field");
+		}
+		ByteBuffer in = buffer.duplicate();
+		while (in.remaining() >= ColumnarAccessLog.BLOCK_HEADER) {
+			int offset = in.position();
+			int length = in.getInt();
+			int rawLength = in.getInt();
+			int rows = in.getInt();
+			long minTime = in.getLong();
+			long maxTime = in.getLong();
+			int crc = in.getInt();
+			if (length > in.remaining()) {
+				// being written
+				return;
+			}
+			if (maxTime < query.from || minTime >= query.to) {
+				in.position(in.position() + length);
+				++blocksSkipped;
+				continue;
+			}
+			byte[] compressed = new byte[length];
+			in.get(compressed);
+			++blocksRead;
+			scan(block(offset, compressed, rawLength, rows, crc), query, consumer);
+		}
+	}
+
+	private ColumnarAccessLog.Block block(int offset, byte[] compressed, int rawLength, int rows, int crc)
+			throws IOException {
+		CRC32 check = new CRC32();
+		check.update(compressed, 0, compressed.length);
+		if ((int) check.getValue() != crc) {
+			throw new IOException(file + ": corrupt block at " + offset);
+		}
+		try {
+			return ColumnarAccessLog.Block.decode(ColumnarAccessLog.inflate(compressed, rawLength, inflater), rows,
+					types);
+		} catch (DataFormatException e) {
+			throw new IOException(file + ": corrupt block at " + offset, e);
+		}
+	}
+
+	private void scan(ColumnarAccessLog.Block block, Query query, Consumer<Row> consumer) {
+		boolean[] urlMatches = null;
+		if (query.url != null) {
+			String[] urls = block.dictionaries[urlField];
+			urlMatches = new boolean[urls.length + 1];
+			for (int d = 0; d < urls.length; d++) {
+				urlMatches[d + 1] = urls[d].contains(query.url);
+			}
+		}
+		for (int i = 0; i < block.rows; i++) {
+			long timestamp = block.timestamps[i];
+			int status = block.status[i];
+			if (timestamp < query.from || timestamp >= query.to || status < query.minStatus
+					|| status > query.maxStatus || urlMatches != null && !urlMatches[block.indexes[urlField][i]]) {
+				continue;
+			}
+			String[] values = new String[fields.length];
+			for (int f = 0; f < fields.length; f++) {
+				values[f] = value(block, f, i);
+			}
+			consumer.accept(new Row(fields, values, timestamp, status, block.weight[i]));
+		}
+	}
+
+	private String value(ColumnarAccessLog.Block block, int field, int row) {
+		switch (types[field]) {
+		case STATUS:
+			return String.valueOf(block.status[row]);
+		case BYTES:
+			return String.valueOf(block.bytes[row]);
+		case BYTES_OR_NULL:
+			return block.bytes[row] <= 0 ? null : String.valueOf(block.bytes[row]);
+		case ELAPSED:
+			return String.valueOf(block.elapsed[row]);
+		case FIRST_BYTE:
+			return block.firstByte[row] == -1 ? null : String.valueOf(block.firstByte[row]);
+		case TIMESTAMP:
+			return Instant.ofEpochMilli(block.timestamps[row]).toString();
+		default:
+			return block.value(field, row);
+		}
+	}
+
+	public long getBlocksRead() {
+		return blocksRead;
+	}
+
+	/**
+	 * Blocks skipped by their time range, without inflating them
+	 */
+	public long getBlocksSkipped() {
+		return blocksSkipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		channel.close();
+	}
+
+	/**
+	 * @return milliseconds since the epoch
+	 */
+	static long parseTime(String time) {
+		try {
+			return Long.parseLong(time);
+		} catch (NumberFormatException e) {
+			// not millis
+		}
+		try {
+			return Instant.parse(time).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return LocalDateTime.parse(time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		}
+	}
+
+	/**
+	 * @return the files, and the log files in the directories, in name
+	 *         (and so time) order
+	 */
+	static List<File> files(List<String> paths) {
+		List<File> files = new ArrayList<>();
+		for (String path : paths) {
+			File file = new File(path);
+			File[] logs = file.isDirectory() ? file.listFiles((dir, name) -> name.endsWith(ColumnarAccessLog.SUFFIX))
+					: null;
+			if (logs != null) {
+				Arrays.sort(logs);
+				files.addAll(Arrays.asList(logs));
+			} else {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Query query = new Query();
+		long from = Long.MIN_VALUE;
+		long to = Long.MAX_VALUE;
+		boolean count = false;
+		List<String> paths = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--from":
+				from = parseTime(args[++i]);
+				break;
+			case "--to":
+				to = parseTime(args[++i]);
+				break;
+			case "--status":
+				String status = args[++i];
+				if (status.endsWith("xx")) {
+					int hundreds = Integer.parseInt(status.substring(0, 1)) * 100;
+					query.status(hundreds, hundreds + 99);
+				} else if (status.contains("-")) {
+					query.status(Integer.parseInt(status.substring(0, status.indexOf('-'))),
+							Integer.parseInt(status.substring(status.indexOf('-') + 1)));
+				} else {
+					query.status(Integer.parseInt(status), Integer.parseInt(status));
+				}
+				break;
+			case "--url":
+				query.url(args[++i]);
+				break;
+			case "--count":
+				count = true;
+				break;
+			default:
+				paths.add(args[i]);
+			}
+		}
+		if (paths.isEmpty()) {
+			System.err.println("Usage: ColumnarAccessLogReader [--from TIME] [--to TIME] [--status 500|5xx|400-499]"
+					+ " [--url TEXT] [--count] FILE|DIRECTORY...");
+			System.exit(2);
+		}
+		query.time(from, to);
+
+		boolean print = !count;
+		long[] matched = new long[1];
+		long blocksRead = 0;
+		long blocksSkipped = 0;
+		for (File file : files(paths)) {
+			try (ColumnarAccessLogReader reader = new ColumnarAccessLogReader(file.toPath())) {
+				reader.scan(query, row -> {
+					++matched[0];
+					if (print) {
+						System.out.println(row);
+					}
+				});
+				blocksRead += reader.getBlocksRead();
+				blocksSkipped += reader.getBlocksSkipped();
+			} catch (IOException e) {
+				System.err.println(file + ": " + e.getMessage());
+			}
+		}
+		if (count) {
+			System.out.println(matched[0]);
+		}
+		System.err.println(matched[0] + " entries, " + blocksRead + " blocks read, " + blocksSkipped + " skipped");
+	}
+}
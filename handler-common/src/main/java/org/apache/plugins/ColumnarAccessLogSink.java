@@ -0,0 +1,261 @@
+package org.apache.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.LogManager;
+
+/**
+ * {@link AccessLogSink} that keeps the access log on local disk, in the
+ * compact binary columnar format of {@link ColumnarAccessLog}: entries are
+ * collected into blocks of blockRows on the sink's own thread, and each block
+ * is compressed and appended to the current file through its FileChannel.
+ * A block is also written once its first entry is flushInterval
+ * milliseconds old. Files roll daily and at rollSize bytes; only the newest
+ * maxFiles are kept. Query them with {@link ColumnarAccessLogReader}.
+ *
+ * Configured in logging.properties, e.g.
+ *
+ * <pre>
+ * org.apache.plugins.ColumnarAccessLogSink.directory = ${catalina.base}/logs
+ * org.apache.plugins.ColumnarAccessLogSink.prefix = access
+ * org.apache.plugins.ColumnarAccessLogSink.blockRows = 4096
+ * org.apache.plugins.ColumnarAccessLogSink.flushInterval = 5000
+ * org.apache.plugins.ColumnarAccessLogSink.rollSize = 67108864
+ * org.apache.plugins.ColumnarAccessLogSink.maxFiles = 30
+ * org.apache.plugins.ColumnarAccessLogSink.capacity = 8192
+ * org.apache.plugins.ColumnarAccessLogSink.compression = 6
+ * </pre>
+ */
+public class ColumnarAccessLogSink implements AccessLogSink, Runnable {
+
+	private final File directory = new File(property("directory",
+			System.getProperty("catalina.base", ".") + File.separator + "logs"));
+
+	private final String prefix = property("prefix", "access");
+
+	private final int blockRows = Integer.parseInt(property("blockRows", "4096"));
+
+	/**
+	 * Milliseconds
+	 */
+	private final long flushInterval = Long.parseLong(property("flushInterval", "5000"));
+
+	private final long rollSize = Long.parseLong(property("rollSize", String.valueOf(64L << 20)));
+
+	private final int maxFiles = Integer.parseInt(property("maxFiles", "30"));
+
+	private final int compression = Integer.parseInt(property("compression", "6"));
+
+	private final BoundedBuffer<AccessLogEntry> buffer = new BoundedBuffer<>(
+			Integer.parseInt(property("capacity", "8192")));
+
+	/**
+	 * Entries queued that wake the thread before its flushInterval is up
+	 */
+	private final int wakeAt = Math.min(blockRows, buffer.capacity() / 2);
+
+	/**
+	 * Exposed over JMX as org.apache.plugins:type=ColumnarAccessLogSink
+	 */
+	private final Metrics metrics = new Metrics();
+
+	private final LongAdder dropped = metrics.counter("Dropped");
+
+	private final LongAdder blocks = metrics.counter("Blocks");
+
+	private final LongAdder rows = metrics.counter("Rows");
+
+	private final LongAdder failures = metrics.counter("Failures");
+
+	private String[] fields;
+
+	private ColumnarAccessLog.Type[] types;
+
+	private ColumnarAccessLog.BlockBuilder block;
+
+	/**
+	 * When the block's first entry was taken
+	 */
+	private long blockStarted;
+
+	private ColumnarAccessLog.Writer writer;
+
+	/**
+	 * yyyyMMdd of the current file
+	 */
+	private String day;
+
+	private volatile boolean running;
+
+	/**
+	 * Set while the thread parks, for offer() to unpark it once wakeAt
+	 * entries are queued
+	 */
+	private volatile boolean waiting;
+
+	private volatile Thread thread;
+
+	private static String property(String name, String defaultValue) {
+		String value = LogManager.getLogManager().getProperty(ColumnarAccessLogSink.class.getName() + "." + name);
+		return value == null ? defaultValue : value.trim();
+	}
+
+	@Override
+	public void start(String[] fields, String[] patterns, boolean sampled) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		this.fields = fields;
+		this.types = Arrays.stream(patterns).map(ColumnarAccessLog::type).toArray(ColumnarAccessLog.Type[]::new);
+		block = new ColumnarAccessLog.BlockBuilder(types, blockRows);
+		metrics.gauge("QueueDepth", buffer::size);
+		metrics.register(getClass().getSimpleName(), new File(directory, prefix).getPath());
+		running = true;
+		thread = new Thread(this, getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+		System.out.println(new Date() + " " + getClass().getName() + " Logging to " + directory + File.separator
+				+ prefix + ".*" + ColumnarAccessLog.SUFFIX);
+	}
+
+	@Override
+	public boolean offer(AccessLogEntry entry) {
+		if (buffer.offer(entry)) {
+			if (waiting && buffer.size() >= wakeAt) {
+				LockSupport.unpark(thread);
+			}
+			return true;
+		}
+		dropped.increment();
+		return false;
+	}
+
+	@Override
+	public void run() {
+		boolean strings = block.hasStrings();
+		// when the thread last parked with an empty block: entries taken since
+		// arrived after it
+		long parked = 0;
+		for (;;) {
+			AccessLogEntry entry = buffer.poll();
+			if (entry == null) {
+				if (!running) {
+					break;
+				}
+				long now = System.currentTimeMillis();
+				long wait = flushInterval;
+				if (block.getRows() > 0) {
+					wait = blockStarted + flushInterval - now;
+					if (wait <= 0) {
+						flush();
+						continue;
+					}
+				} else {
+					parked = now;
+				}
+				waiting = true;
+				// offer() sees waiting, or this sees what it queued
+				if (running && buffer.size() < wakeAt) {
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+				}
+				waiting = false;
+				continue;
+			}
+			if (block.getRows() == 0) {
+				blockStarted = parked > 0 ? parked : System.currentTimeMillis();
+				parked = 0;
+			}
+			block.add(entry.getTimestamp(), entry.getElapsed(), entry.getStatus(), entry.getBytes(),
+					entry.getFirstByte(), entry.getWeight(), strings ? entry.getValues() : null);
+			if (block.isFull()) {
+				flush();
+			}
+		}
+		flush();
+		close();
+	}
+
+	/**
+	 * Writes the block, to a new file if the current one is full or of
+	 * another day
+	 */
+	private void flush() {
+		if (block.getRows() == 0) {
+			return;
+		}
+		try {
+			String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
+			if (writer != null && (writer.size() >= rollSize || !today.equals(day))) {
+				close();
+			}
+			if (writer == null) {
+				File file = new File(directory, prefix + "."
+						+ new SimpleDateFormat("yyyyMMdd-HHmmss.SSS").format(new Date()) + ColumnarAccessLog.SUFFIX);
+				writer = new ColumnarAccessLog.Writer(file.toPath(), fields, types, compression);
+				day = today;
+				deleteOldFiles();
+			}
+			writer.write(block);
+			blocks.increment();
+			rows.add(block.getRows());
+		} catch (IOException e) {
+			failures.increment();
+			System.err.println(new Date() + " " + getClass().getName() + ": Failed to write " + block.getRows()
+					+ " entries. Error: " + e.toString());
+			close();
+		} finally {
+			block.clear();
+		}
+	}
+
+	private void close() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.close();
+		} catch (IOException e) {
+			System.err.println(new Date() + " " + getClass().getName() + ": Failed to close file. Error: " + e.toString());
+		}
+		writer = null;
+	}
+
+	/**
+	 * Keeps the newest maxFiles files of the prefix, the current one included
+	 */
+	private void deleteOldFiles() {
+		File[] files = directory.listFiles(
+				(dir, name) -> name.startsWith(prefix + ".") && name.endsWith(ColumnarAccessLog.SUFFIX));
+		if (files == null || files.length <= maxFiles) {
+			return;
+		}
+		// the names sort by time
+		Arrays.sort(files);
+		for (int i = 0; i < files.length - maxFiles; i++) {
+			if (!files[i].delete()) {
+				System.err.println(new Date() + " " + getClass().getName() + ": Failed to delete " + files[i]);
+			}
+		}
+	}
+
+	/**
+	 * Writes what is queued and closes the file
+	 */
+	@Override
+	public void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		metrics.unregister();
+	}
+}
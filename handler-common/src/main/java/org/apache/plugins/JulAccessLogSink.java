@@ -0,0 +1,117 @@
+package org.apache.plugins;
+
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * {@link AccessLogSink} that logs each entry as one "field=value ..." line
+ * to a java.util.logging Logger, through an {@link AsyncHandler} so the
+ * logger's handlers run on their own thread.
+ *
+ * Configured in logging.properties, e.g.
+ *
+ * <pre>
+ * org.apache.plugins.JulAccessLogSink.logger = org.apache.plugins.AccessLog
+ * org.apache.plugins.JulAccessLogSink.level = INFO
+ * org.apache.plugins.JulAccessLogSink.capacity = 8192
+ * </pre>
+ */
+public class JulAccessLogSink implements AccessLogSink {
+
+	private final Logger logger = Logger.getLogger(property("logger", "org.apache.plugins.AccessLog"));
+
+	private final Level level = Level.parse(property("level", "INFO"));
+
+	private final int capacity = Integer.parseInt(property("capacity", "8192"));
+
+	private String[] fields;
+
+	private AsyncHandler handler;
+
+	/**
+	 * Renders the entry when the logger's handlers format it
+	 */
+	@SuppressWarnings("serial")
+	private class EntryRecord extends LogRecord {
+
+		private final AccessLogEntry entry;
+
+		EntryRecord(AccessLogEntry entry) {
+			super(level, null);
+			this.entry = entry;
+			setLoggerName(logger.getName());
+			setMillis(entry.getTimestamp());
+			// there is no caller to find on the stack
+			setSourceClassName(JulAccessLogSink.class.getName());
+			setSourceMethodName("offer");
+		}
+
+		@Override
+		public String getMessage() {
+			String[] values = entry.getValues();
+			StringBuilder sb = new StringBuilder(256);
+			for (int i = 0; i < fields.length; i++) {
+				if (i > 0) {
+					sb.append(' ');
+				}
+				sb.append(fields[i]).append('=').append(values[i] == null ? "-" : values[i]);
+			}
+			if (entry.getWeight() > 0) {
+				sb.append(fields.length == 0 ? "" : " ").append("sample_weight=").append(entry.getWeight());
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Hands the records to the logger, on the AsyncHandler's thread
+	 */
+	private static class LoggerHandler extends Handler {
+
+		private final Logger logger;
+
+		LoggerHandler(Logger logger) {
+			this.logger = logger;
+		}
+
+		@Override
+		public void publish(LogRecord record) {
+			logger.log(record);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static String property(String name, String defaultValue) {
+		String value = LogManager.getLogManager().getProperty(JulAccessLogSink.class.getName() + "." + name);
+		return value == null ? defaultValue : value.trim();
+	}
+
+	@Override
+	public void start(String[] fields, String[] patterns, boolean sampled) {
+		this.fields = fields;
+		this.handler = new AsyncHandler(new LoggerHandler(logger), capacity, OverflowPolicy.DROP_NEW);
+	}
+
+	@Override
+	public boolean offer(AccessLogEntry entry) {
+		if (logger.isLoggable(level)) {
+			handler.publish(new EntryRecord(entry));
+		}
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		handler.close();
+	}
+}
@@ -0,0 +1,91 @@
+package org.apache.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded map that evicts the least recently used entries, made of several
+ * access-ordered {@link LinkedHashMap} stripes, each with its own lock, so
+ * that concurrent readers of different keys mostly do not contend. Recency is
+ * tracked per stripe: an entry is evicted when its stripe is full, which
+ * approximates a global LRU of the same capacity.
+ */
+public class LruCache<K, V> {
+
+	private final Map<K, V>[] stripes;
+
+	private final int mask;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            total capacity, split evenly over the stripes
+	 * @param stripes
+	 *            rounded up to the next power of two
+	 */
+	@SuppressWarnings({ "unchecked", "serial" })
+	public LruCache(int capacity, int stripes) {
+		int n = 1;
+		while (n < stripes) {
+			n <<= 1;
+		}
+		int stripeCapacity = Math.max(1, capacity / n);
+		this.stripes = new Map[n];
+		for (int i = 0; i < n; i++) {
+			this.stripes[i] = new LinkedHashMap<K, V>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+					return size() > stripeCapacity;
+				}
+			};
+		}
+		this.mask = n - 1;
+	}
+
+	private Map<K, V> stripe(Object key) {
+		int h = key.hashCode();
+		return stripes[(h ^ h >>> 16) & mask];
+	}
+
+	/**
+	 * @return the value, now the most recently used of its stripe, or null
+	 */
+	public V get(K key) {
+		Map<K, V> stripe = stripe(key);
+		V value;
+		synchronized (stripe) {
+			value = stripe.get(key);
+		}
+		(value == null ? misses : hits).increment();
+		return value;
+	}
+
+	public void put(K key, V value) {
+		Map<K, V> stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.put(key, value);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Map<K, V> stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+}
@@ -0,0 +1,87 @@
+package org.apache.plugins;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and reports their rate as a one minute exponentially
+ * weighted moving average, like the Unix load average. Marking is lock-free;
+ * the average is brought up to date when it is read.
+ */
+public class Meter {
+
+	private static final long TICK = TimeUnit.SECONDS.toNanos(5);
+
+	private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+
+	private final LongAdder count = new LongAdder();
+
+	private long lastTick;
+
+	/**
+	 * When lastCount was taken
+	 */
+	private long lastRead;
+
+	private long lastCount;
+
+	private double rate;
+
+	private boolean initialized;
+
+	public Meter() {
+		this(System.nanoTime());
+	}
+
+	/**
+	 * @param start
+	 *            nanoTime the meter starts at
+	 */
+	Meter(long start) {
+		lastTick = start;
+		lastRead = start;
+	}
+
+	public void mark() {
+		count.increment();
+	}
+
+	public void mark(long n) {
+		count.add(n);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return events per second
+	 */
+	public double getRate() {
+		return getRate(System.nanoTime());
+	}
+
+	/**
+	 * Spreads the events since the last read evenly over the time since, and
+	 * applies one update per tick elapsed, so that the rate does not depend on
+	 * how often it is read
+	 */
+	synchronized double getRate(long now) {
+		long ticks = (now - lastTick) / TICK;
+		if (ticks > 0) {
+			long current = count.sum();
+			double instant = (current - lastCount) * (double) TimeUnit.SECONDS.toNanos(1) / (now - lastRead);
+			if (!initialized) {
+				rate = instant;
+				initialized = true;
+			}
+			for (long i = 0; i < ticks; i++) {
+				rate += ALPHA * (instant - rate);
+			}
+			lastCount = current;
+			lastRead = now;
+			lastTick += ticks * TICK;
+		}
+		return rate;
+	}
+}
@@ -0,0 +1,184 @@
+package org.apache.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The JMX view of one logging component: meters, counters, gauges and
+ * histograms, registered as attributes of a single MBean named
+ * org.apache.plugins:type=&lt;type&gt;,name=&lt;name&gt;.
+ *
+ * Create the metrics up front, then call register. A histogram named X shows
+ * as XCount, XMean, XP50, XP90, XP99 and XMax; a meter as XCount and XRate
+ * (per second). Asking again for a meter, counter or histogram of the same
+ * name returns the one already created, so a restarted component keeps its
+ * counts.
+ */
+public class Metrics implements DynamicMBean {
+
+	public static final String DOMAIN = "org.apache.plugins";
+
+	private final Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+
+	private final Map<String, String> types = new LinkedHashMap<>();
+
+	/**
+	 * The meters, counters and histograms, by name
+	 */
+	private final Map<String, Object> instruments = new LinkedHashMap<>();
+
+	private ObjectName objectName;
+
+	public synchronized Meter meter(String name) {
+		Object existing = instruments.get(name);
+		if (existing instanceof Meter) {
+			return (Meter) existing;
+		}
+		Meter meter = new Meter();
+		instruments.put(name, meter);
+		gauge(name + "Count", meter::getCount);
+		doubleGauge(name + "Rate", meter::getRate);
+		return meter;
+	}
+
+	public synchronized LongAdder counter(String name) {
+		Object existing = instruments.get(name);
+		if (existing instanceof LongAdder) {
+			return (LongAdder) existing;
+		}
+		LongAdder counter = new LongAdder();
+		instruments.put(name, counter);
+		gauge(name, counter::sum);
+		return counter;
+	}
+
+	public synchronized Histogram histogram(String name) {
+		Object existing = instruments.get(name);
+		if (existing instanceof Histogram) {
+			return (Histogram) existing;
+		}
+		Histogram histogram = new Histogram();
+		instruments.put(name, histogram);
+		gauge(name + "Count", histogram::getCount);
+		doubleGauge(name + "Mean", histogram::getMean);
+		gauge(name + "P50", () -> histogram.getPercentile(0.5));
+		gauge(name + "P90", () -> histogram.getPercentile(0.9));
+		gauge(name + "P99", () -> histogram.getPercentile(0.99));
+		gauge(name + "Max", histogram::getMax);
+		return histogram;
+	}
+
+	public synchronized void gauge(String name, LongSupplier value) {
+		attributes.put(name, value::getAsLong);
+		types.put(name, long.class.getName());
+	}
+
+	public synchronized void doubleGauge(String name, DoubleSupplier value) {
+		attributes.put(name, value::getAsDouble);
+		types.put(name, double.class.getName());
+	}
+
+	/**
+	 * Registers with the platform MBean server. If another component holds the
+	 * name, this one is registered as name#2, name#3 and so on. Failures are
+	 * reported, not thrown: the component works the same without JMX.
+	 */
+	public synchronized void register(String type, String name) {
+		unregister();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (int n = 1; objectName == null; n++) {
+				ObjectName on = new ObjectName(DOMAIN + ":type=" + ObjectName.quote(type)
+						+ ",name=" + ObjectName.quote(n == 1 ? name : name + "#" + n));
+				try {
+					server.registerMBean(this, on);
+					objectName = on;
+				} catch (InstanceAlreadyExistsException e) {
+					// taken, try the next
+				}
+			}
+		} catch (JMException e) {
+			System.err.println(new Date() + " " + getClass().getName() + ": Failed to register " + type + " "
+					+ name + ". Error: " + e.toString());
+		}
+	}
+
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			// already gone
+		}
+		objectName = null;
+	}
+
+	public synchronized ObjectName getObjectName() {
+		return objectName;
+	}
+
+	@Override
+	public synchronized Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Supplier<Object> value = attributes.get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value.get();
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	@Override
+	public synchronized AttributeList getAttributes(String[] names) {
+		AttributeList list = new AttributeList();
+		for (String name : names) {
+			Supplier<Object> value = attributes.get(name);
+			if (value != null) {
+				list.add(new Attribute(name, value.get()));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public synchronized MBeanInfo getMBeanInfo() {
+		MBeanAttributeInfo[] infos = new MBeanAttributeInfo[types.size()];
+		int i = 0;
+		for (Map.Entry<String, String> type : types.entrySet()) {
+			infos[i++] = new MBeanAttributeInfo(type.getKey(), type.getValue(), type.getKey(), true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "Logging pipeline metrics", infos, null, null, null);
+	}
+}
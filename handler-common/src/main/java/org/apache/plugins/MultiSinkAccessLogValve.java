@@ -0,0 +1,257 @@
+package org.apache.plugins;
+
+import java.io.CharArrayWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.AccessLogValve;
+
+/**
+ * Evaluates the access log pattern once per request and hands the entry to
+ * several sinks, e.g.
+ *
+ * <pre>
+ * &lt;Valve className="org.apache.plugins.MultiSinkAccessLogValve" pattern="default"
+ *     sinks="org.apache.plugins.CloudwatchAccessLogSink,org.apache.plugins.JdbcAccessLogSink"/&gt;
+ * </pre>
+ *
+ * The pattern is a comma separated list of field=pattern pairs, or
+ * "default". The request thread only captures the request facts (see
+ * {@link AccessLogCapture}); the fields are rendered once, by the first sink
+ * that needs them. Each sink queues and ships on its own: one that fails to
+ * start, throws or falls behind does not hold up the others.
+ *
+ * Sampling works as in the other valves, with the weight passed along in
+ * {@link AccessLogEntry#getWeight()}.
+ */
+public class MultiSinkAccessLogValve extends AccessLogValve {
+
+	private static final String DEFAULT_PATTERN = "server_ts=%{y-MM-dd HH:mm:ss.SSS z}t,remote_ip=%a,local_ip=%A,method=%m,url=%U,query_string=%q,protocol=%H,http_status=%s,bytes_sent=%B,referer=%{Referer}i,user_agent=%{User-Agent}i,time_elapsed=%D,session_id=%S,user_id=%{user_id}s,agent_proxy=%{agent_proxy}s,agent_id=%{agent_device_id}c,time_to_first_byte=%F,thread_name=%I,host=%{Host}i";
+
+	/**
+	 * Comma separated class names of {@link AccessLogSink}s
+	 */
+	private String sinks = "";
+
+	private String[] fields;
+
+	private String[] fieldPatterns;
+
+	private AccessLogCapture capture;
+
+	private AccessLogCapture.Field[] captureFields;
+
+	private AccessLogSink[] sinkInstances = new AccessLogSink[0];
+
+	private LongAdder[] sinkDropped;
+
+	private LongAdder[] sinkFailures;
+
+	/**
+	 * Exposed over JMX as org.apache.plugins:type=AccessLogValve
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * The time (in nanoseconds) log() adds to each request
+	 */
+	private final Histogram logTime = metrics.histogram("LogNanos");
+
+	/**
+	 * Entries dropped by the sampler
+	 */
+	private final LongAdder sampledOut = metrics.counter("SampledOut");
+
+	/**
+	 * Entries per second kept from ordinary requests; 0 keeps everything
+	 */
+	private double sampleRate = 0;
+
+	/**
+	 * "url" or "status": what the sampling budget is split by
+	 */
+	private String sampleBy = "url";
+
+	/**
+	 * Milliseconds; slower requests are always kept
+	 */
+	private long slowThreshold = 1000;
+
+	/**
+	 * Keep every later request of a session once one was sampled
+	 */
+	private boolean sampleSessions = false;
+
+	private AccessLogSampler sampler;
+
+	@Override
+	public void log(CharArrayWriter nothing) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void log(Request request, Response response, long time) {
+		if (!getState().isAvailable() || !getEnabled() || capture == null
+				|| condition != null && null != request.getRequest().getAttribute(condition)) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		long weight = 0;
+		if (sampler != null) {
+			weight = sampler.sample("status".equals(sampleBy) ? String.valueOf(response.getStatus())
+					: request.getRequestURI(), response.getStatus(), time, sampleSessions ? sessionId(request) : null);
+			if (weight == 0) {
+				sampledOut.increment();
+				return;
+			}
+		}
+		AccessLogEntry entry = new AccessLogEntry(capture, captureFields,
+				capture.capture(request, response, time), weight);
+		AccessLogSink[] sinks = sinkInstances;
+		for (int i = 0; i < sinks.length; i++) {
+			try {
+				if (!sinks[i].offer(entry)) {
+					sinkDropped[i].increment();
+				}
+			} catch (RuntimeException e) {
+				sinkFailures[i].increment();
+			}
+		}
+		logTime.record(System.nanoTime() - start);
+	}
+
+	private static String sessionId(Request request) {
+		Session session = request.getSessionInternal(false);
+		return session == null ? null : session.getIdInternal();
+	}
+
+	/**
+	 * Tomcat's element for a code AccessLogCapture does not know
+	 */
+	private AccessLogCapture.Element element(String code) {
+		char c = code.charAt(code.length() - 1);
+		AccessLogElement element = code.charAt(1) == '{'
+				? createAccessLogElement(code.substring(2, code.length() - 2), c) : createAccessLogElement(c);
+		return element::addElement;
+	}
+
+	@Override
+	protected synchronized void open() {
+		// do nothing
+	}
+
+	@Override
+	protected synchronized void startInternal() throws LifecycleException {
+		if (fields == null) {
+			setPattern("default");
+		}
+		sampler = sampleRate > 0 ? new AccessLogSampler(sampleRate, slowThreshold, sampleSessions) : null;
+		capture = new AccessLogCapture(1024);
+		captureFields = new AccessLogCapture.Field[fieldPatterns.length];
+		for (int i = 0; i < fieldPatterns.length; i++) {
+			captureFields[i] = capture.compile(fieldPatterns[i], this::element);
+		}
+
+		List<AccessLogSink> started = new ArrayList<>();
+		for (String className : sinks.split(",")) {
+			if (className.trim().isEmpty()) {
+				continue;
+			}
+			try {
+				AccessLogSink sink = (AccessLogSink) Class.forName(className.trim(), true,
+						getClass().getClassLoader()).newInstance();
+				sink.start(fields, fieldPatterns, sampler != null);
+				started.add(sink);
+			} catch (Exception | LinkageError e) {
+				System.err.println(new Date() + " " + getClass().getName() + ": Failed to start sink " + className
+						+ ". Error: " + e.toString());
+			}
+		}
+		if (started.isEmpty()) {
+			System.err.println(new Date() + " " + getClass().getName() + ": no sinks, nothing will be logged");
+		}
+		sinkDropped = new LongAdder[started.size()];
+		sinkFailures = new LongAdder[started.size()];
+		for (int i = 0; i < started.size(); i++) {
+			String name = started.get(i).getClass().getSimpleName();
+			sinkDropped[i] = metrics.counter(name + "Dropped");
+			sinkFailures[i] = metrics.counter(name + "Failures");
+		}
+		sinkInstances = started.toArray(new AccessLogSink[0]);
+
+		metrics.register("AccessLogValve", ValveNames.of(this));
+		super.startInternal();
+	}
+
+	@Override
+	protected synchronized void stopInternal() throws LifecycleException {
+		super.stopInternal();
+		AccessLogSink[] sinks = sinkInstances;
+		sinkInstances = new AccessLogSink[0];
+		for (AccessLogSink sink : sinks) {
+			try {
+				sink.stop();
+			} catch (RuntimeException e) {
+				System.err.println(new Date() + " " + getClass().getName() + ": Failed to stop sink "
+						+ sink.getClass().getName() + ". Error: " + e.toString());
+			}
+		}
+		metrics.unregister();
+	}
+
+	public String getSinks() {
+		return sinks;
+	}
+
+	public void setSinks(String sinks) {
+		this.sinks = sinks;
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	public String getSampleBy() {
+		return sampleBy;
+	}
+
+	public void setSampleBy(String sampleBy) {
+		this.sampleBy = sampleBy;
+	}
+
+	public long getSlowThreshold() {
+		return slowThreshold;
+	}
+
+	public void setSlowThreshold(long slowThreshold) {
+		this.slowThreshold = slowThreshold;
+	}
+
+	public boolean getSampleSessions() {
+		return sampleSessions;
+	}
+
+	public void setSampleSessions(boolean sampleSessions) {
+		this.sampleSessions = sampleSessions;
+	}
+
+	@Override
+	public void setPattern(String patternParm) {
+		String[][] pairs = AccessLogPattern.pairs(patternParm.equals("default") ? DEFAULT_PATTERN : patternParm);
+		fields = Arrays.stream(pairs).map(pair -> pair[0]).toArray(String[]::new);
+		fieldPatterns = Arrays.stream(pairs).map(pair -> pair[1]).toArray(String[]::new);
+		super.setPattern(String.join("", fieldPatterns));
+	}
+}
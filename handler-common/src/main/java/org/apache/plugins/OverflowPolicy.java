@@ -0,0 +1,28 @@
+package org.apache.plugins;
+
+/**
+ * What a producer does when the buffer it publishes to is full.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Wait until the consumer has made room, or until a timeout
+	 */
+	BLOCK,
+
+	/**
+	 * Discard the oldest buffered entry to make room for the new one
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discard the new entry
+	 */
+	DROP_NEW,
+
+	/**
+	 * Keep a random sample of the new entries, each sampled one displacing
+	 * the oldest buffered entry, and discard the rest
+	 */
+	SAMPLE;
+}
@@ -0,0 +1,183 @@
+package org.apache.plugins;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.LogRecord;
+
+/**
+ * Collapses repeated stack traces. A throwable is identified by a 64 bit
+ * fingerprint of its class and frames, and of its causes', computed from the
+ * StackTraceElements without rendering any text. The full trace is rendered
+ * once, kept in an LRU cache, and sent once per interval per fingerprint; in
+ * between, a one-line reference with the fingerprint and a count is sent
+ * instead.
+ *
+ * The message of an exception is not part of its fingerprint: the cached
+ * full trace shows the message of the occurrence that was rendered.
+ */
+public class StackTraceFingerprinter {
+
+	/**
+	 * Causes followed at most, also guarding against cycles
+	 */
+	private static final int MAX_CAUSES = 32;
+
+	private final int cacheSize;
+
+	private final long interval;
+
+	private final Map<Long, Entry> cache;
+
+	private static final class Entry {
+
+		volatile String text;
+
+		/**
+		 * When the full trace was last sent
+		 */
+		long fullAt;
+
+		/**
+		 * Occurrences since then
+		 */
+		long count;
+	}
+
+	/**
+	 * What to log for one occurrence
+	 */
+	public static final class Trace {
+
+		private final long fingerprint;
+
+		private final String text;
+
+		private final boolean full;
+
+		private final boolean first;
+
+		Trace(long fingerprint, String text, boolean full, boolean first) {
+			this.fingerprint = fingerprint;
+			this.text = text;
+			this.full = full;
+			this.first = first;
+		}
+
+		public long getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * @return the full trace, or a reference to it
+		 */
+		public String getText() {
+			return text;
+		}
+
+		public boolean isFull() {
+			return full;
+		}
+
+		/**
+		 * @return true if the fingerprint was not in the cache
+		 */
+		public boolean isFirst() {
+			return first;
+		}
+	}
+
+	/**
+	 * @param interval
+	 *            milliseconds between two full traces of the same fingerprint
+	 */
+	@SuppressWarnings("serial")
+	public StackTraceFingerprinter(int cacheSize, long interval) {
+		this.cacheSize = cacheSize;
+		this.interval = interval;
+		this.cache = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+				return size() > StackTraceFingerprinter.this.cacheSize;
+			}
+		};
+	}
+
+	public static long fingerprint(Throwable thrown) {
+		long h = 0xcbf29ce484222325L;
+		Throwable t = thrown;
+		for (int depth = 0; t != null && depth < MAX_CAUSES; depth++, t = t.getCause()) {
+			h = mix(h, t.getClass().getName().hashCode());
+			for (StackTraceElement frame : t.getStackTrace()) {
+				h = mix(h, frame.getClassName().hashCode());
+				h = mix(h, frame.getMethodName().hashCode());
+				h = mix(h, frame.getLineNumber());
+			}
+		}
+		// spread the bits (the finalizer of MurmurHash3)
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long mix(long h, int value) {
+		return (h ^ value) * 0x100000001b3L;
+	}
+
+	public static String toHex(long fingerprint) {
+		String hex = Long.toHexString(fingerprint);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	public Trace trace(Throwable thrown) {
+		long fingerprint = fingerprint(thrown);
+		long now = System.currentTimeMillis();
+		boolean first = false;
+		Entry entry;
+		long count;
+		synchronized (cache) {
+			entry = cache.get(fingerprint);
+			if (entry == null) {
+				entry = new Entry();
+				cache.put(fingerprint, entry);
+				first = true;
+			}
+			if (entry.text != null && now - entry.fullAt < interval) {
+				count = ++entry.count;
+				return new Trace(fingerprint, "[" + toHex(fingerprint) + "] " + thrown
+						+ " (trace omitted, " + count + " times since the full trace)", false, false);
+			}
+			entry.fullAt = now;
+			entry.count = 0;
+		}
+		String text = entry.text;
+		if (text == null) {
+			StringWriter sw = new StringWriter();
+			thrown.printStackTrace(new PrintWriter(sw));
+			text = "[" + toHex(fingerprint) + "] " + sw.toString();
+			entry.text = text;
+		}
+		return new Trace(fingerprint, text, true, first);
+	}
+
+	/**
+	 * @return a copy of the record without its throwable, to format the rest
+	 */
+	public static LogRecord withoutThrown(LogRecord record) {
+		LogRecord copy = new LogRecord(record.getLevel(), record.getMessage());
+		copy.setLoggerName(record.getLoggerName());
+		copy.setMillis(record.getMillis());
+		copy.setParameters(record.getParameters());
+		copy.setResourceBundle(record.getResourceBundle());
+		copy.setResourceBundleName(record.getResourceBundleName());
+		copy.setSequenceNumber(record.getSequenceNumber());
+		copy.setSourceClassName(record.getSourceClassName());
+		copy.setSourceMethodName(record.getSourceMethodName());
+		copy.setThreadID(record.getThreadID());
+		return copy;
+	}
+}
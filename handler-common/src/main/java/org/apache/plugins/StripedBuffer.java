@@ -0,0 +1,154 @@
+package org.apache.plugins;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Multi-producer buffer made of several {@link BoundedBuffer} stripes. Each
+ * producer thread offers to the stripe picked by its thread id, so producers
+ * mostly contend on different cache lines and the cost of an offer stays
+ * flat as the number of threads grows. The consumer drains the stripes round
+ * robin; ordering is only preserved per stripe.
+ *
+ * What happens when a stripe is full is decided by the {@link OverflowPolicy}
+ * and every discarded entry is counted.
+ */
+public class StripedBuffer<E> {
+
+	private static final long BLOCK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final BoundedBuffer<E>[] stripes;
+
+	private final int mask;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final long blockTimeoutNanos;
+
+	private final int sampleRate;
+
+	private final LongAdder droppedNew = new LongAdder();
+
+	private final LongAdder droppedOldest = new LongAdder();
+
+	private int drainIndex;
+
+	/**
+	 * @param capacity total capacity, split evenly over the stripes
+	 * @param stripes rounded up to the next power of two
+	 * @param blockTimeout milliseconds a producer waits under
+	 *            {@link OverflowPolicy#BLOCK} before dropping its entry
+	 * @param sampleRate under {@link OverflowPolicy#SAMPLE}, one in sampleRate
+	 *            new entries replaces the oldest one, the others are dropped
+	 */
+	@SuppressWarnings("unchecked")
+	public StripedBuffer(int capacity, int stripes, OverflowPolicy overflowPolicy, long blockTimeout,
+			int sampleRate) {
+		int n = 1;
+		while (n < stripes) {
+			n <<= 1;
+		}
+		this.stripes = new BoundedBuffer[n];
+		for (int i = 0; i < n; i++) {
+			this.stripes[i] = new BoundedBuffer<>(Math.max(16, capacity / n));
+		}
+		this.mask = n - 1;
+		this.overflowPolicy = overflowPolicy;
+		this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+		this.sampleRate = Math.max(1, sampleRate);
+	}
+
+	/**
+	 * @return false if the entry was dropped
+	 */
+	public boolean offer(E e) {
+		BoundedBuffer<E> stripe = stripes[(int) Thread.currentThread().getId() & mask];
+		if (stripe.offer(e)) {
+			return true;
+		}
+		switch (overflowPolicy) {
+		case BLOCK:
+			long start = System.nanoTime();
+			while (!stripe.offer(e)) {
+				if (System.nanoTime() - start >= blockTimeoutNanos) {
+					droppedNew.increment();
+					return false;
+				}
+				LockSupport.parkNanos(this, BLOCK_NANOS);
+			}
+			return true;
+		case SAMPLE:
+			if (ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+				droppedNew.increment();
+				return false;
+			}
+			// fall through: the sampled entry displaces the oldest one
+		case DROP_OLDEST:
+			while (!stripe.offer(e)) {
+				if (stripe.poll() != null) {
+					droppedOldest.increment();
+				}
+			}
+			return true;
+		default:
+			droppedNew.increment();
+			return false;
+		}
+	}
+
+	/**
+	 * Takes the next entry, visiting the stripes round robin. Meant for a
+	 * single consumer thread.
+	 *
+	 * @return null if every stripe is empty
+	 */
+	public E poll() {
+		for (int i = 0; i <= mask; i++) {
+			int index = drainIndex++ & mask;
+			E e = stripes[index].poll();
+			if (e != null) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	public boolean isEmpty() {
+		for (BoundedBuffer<E> stripe : stripes) {
+			if (!stripe.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int size() {
+		int size = 0;
+		for (BoundedBuffer<E> stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	public int capacity() {
+		return stripes.length * stripes[0].capacity();
+	}
+
+	/**
+	 * @return the number of entries dropped, both new ones and the oldest ones
+	 *         they displaced
+	 */
+	public long getDropped() {
+		return droppedNew.sum() + droppedOldest.sum();
+	}
+
+	public long getDroppedNew() {
+		return droppedNew.sum();
+	}
+
+	public long getDroppedOldest() {
+		return droppedOldest.sum();
+	}
+}
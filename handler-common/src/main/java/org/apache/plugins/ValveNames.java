@@ -0,0 +1,26 @@
+package org.apache.plugins;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.valves.ValveBase;
+
+/**
+ * MBean names of valves
+ */
+public final class ValveNames {
+
+	private ValveNames() {
+	}
+
+	/**
+	 * @return the class of the valve and the path of its container, e.g.
+	 *         MultiSinkAccessLogValve/Catalina/localhost, so that valves on
+	 *         different containers get different names
+	 */
+	public static String of(ValveBase valve) {
+		StringBuilder name = new StringBuilder();
+		for (Container c = valve.getContainer(); c != null; c = c.getParent()) {
+			name.insert(0, "/" + c.getName());
+		}
+		return name.insert(0, valve.getClass().getSimpleName()).toString();
+	}
+}
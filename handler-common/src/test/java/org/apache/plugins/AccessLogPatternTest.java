@@ -0,0 +1,29 @@
+package org.apache.plugins;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AccessLogPatternTest {
+
+	@Test
+	public void splitsPairs() {
+		String[][] pairs = AccessLogPattern.pairs("server_ts=%{yyyy-MM-dd, HH:mm}t, url=%U,q=%{a=b}i");
+		Assert.assertEquals(3, pairs.length);
+		Assert.assertArrayEquals(new String[] { "server_ts", "%{yyyy-MM-dd, HH:mm}t" }, pairs[0]);
+		Assert.assertArrayEquals(new String[] { "url", "%U" }, pairs[1]);
+		Assert.assertArrayEquals(new String[] { "q", "%{a=b}i" }, pairs[2]);
+	}
+
+	@Test
+	public void namesTheBadPair() {
+		for (String pattern : new String[] { "url=%U,%s", "url=%U,=%s", "" }) {
+			try {
+				AccessLogPattern.pairs(pattern);
+				Assert.fail(pattern);
+			} catch (IllegalArgumentException e) {
+				String pair = pattern.substring(pattern.indexOf(',') + 1);
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains("'" + pair + "'"));
+			}
+		}
+	}
+}
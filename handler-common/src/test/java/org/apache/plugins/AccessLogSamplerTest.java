@@ -0,0 +1,48 @@
+package org.apache.plugins;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AccessLogSamplerTest {
+
+	@Test
+	public void weightsAddUpToTheRequests() {
+		AccessLogSampler sampler = new AccessLogSampler(10, 1000, false);
+		long kept = 0;
+		long weights = 0;
+		for (int i = 0; i < 100000; i++) {
+			long weight = sampler.sample("/hot", 200, 5, null);
+			if (weight > 0) {
+				++kept;
+				weights += weight;
+			}
+		}
+		// a tight loop is well under a second: the first request and a few
+		// refilled tokens at most
+		Assert.assertTrue("kept " + kept, kept >= 1 && kept < 100);
+		// the requests after the last kept one are not accounted for yet
+		Assert.assertTrue(weights <= 100000);
+		Assert.assertEquals(1, sampler.sample("/cold", 200, 5, null));
+	}
+
+	@Test
+	public void alwaysKeepsErrorsAndSlowRequests() {
+		AccessLogSampler sampler = new AccessLogSampler(1, 1000, false);
+		sampler.sample("/", 200, 5, null);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(1, sampler.sample("/", 500, 5, null));
+			Assert.assertEquals(1, sampler.sample("/", 404, 5, null));
+			Assert.assertEquals(1, sampler.sample("/", 200, 1500, null));
+		}
+	}
+
+	@Test
+	public void keepsTheRestOfASampledSession() {
+		AccessLogSampler sampler = new AccessLogSampler(1, 1000, true);
+		Assert.assertEquals(1, sampler.sample("/", 200, 5, "A"));
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(1, sampler.sample("/", 200, 5, "A"));
+		}
+		Assert.assertEquals(0, sampler.sample("/", 200, 5, "B"));
+	}
+}
@@ -0,0 +1,123 @@
+package org.apache.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncHandlerTest {
+
+	static class CollectingHandler extends Handler {
+
+		final List<LogRecord> records = new CopyOnWriteArrayList<>();
+
+		final CountDownLatch gate;
+
+		boolean closed;
+
+		CollectingHandler(CountDownLatch gate) {
+			this.gate = gate;
+		}
+
+		@Override
+		public void publish(LogRecord record) {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			records.add(record);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() throws SecurityException {
+			closed = true;
+		}
+	}
+
+	static class OpenHandler extends CollectingHandler {
+
+		public OpenHandler() {
+			super(new CountDownLatch(0));
+		}
+	}
+
+	@Test
+	public void flushDrainsInOrder() {
+		CollectingHandler target = new CollectingHandler(new CountDownLatch(0));
+		AsyncHandler handler = new AsyncHandler(target, 16, OverflowPolicy.BLOCK);
+
+		for (int i = 0; i < 1000; i++) {
+			handler.publish(new LogRecord(Level.INFO, "m" + i));
+		}
+		handler.flush();
+
+		Assert.assertEquals(1000, target.records.size());
+		Assert.assertEquals("m0", target.records.get(0).getMessage());
+		Assert.assertEquals("m999", target.records.get(999).getMessage());
+		Assert.assertEquals(0, handler.getDropped());
+
+		handler.close();
+		Assert.assertTrue(target.closed);
+	}
+
+	@Test
+	public void dropNewWhenFull() {
+		CountDownLatch gate = new CountDownLatch(1);
+		CollectingHandler target = new CollectingHandler(gate);
+		AsyncHandler handler = new AsyncHandler(target, 4, OverflowPolicy.DROP_NEW);
+
+		for (int i = 0; i < 100; i++) {
+			handler.publish(new LogRecord(Level.INFO, "m" + i));
+		}
+		gate.countDown();
+		handler.flush();
+
+		Assert.assertEquals(100, target.records.size() + handler.getDropped());
+		Assert.assertTrue(handler.getDropped() > 0);
+		Assert.assertEquals("m0", target.records.get(0).getMessage());
+		handler.close();
+	}
+
+	/**
+	 * Two handlers in one JVM, each configured under its own prefix
+	 */
+	@Test
+	public void subclassesReadTheirOwnProperties() throws IOException {
+		String config = "test.a.level = FINE\n" + "test.b.target = " + OpenHandler.class.getName() + "\n"
+				+ "test.b.level = WARNING\n";
+		LogManager.getLogManager().readConfiguration(new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8)));
+		try {
+			AsyncHandler a = new AsyncHandler("test.a", OpenHandler.class.getName()) {
+			};
+			AsyncHandler b = new AsyncHandler("test.b", null) {
+			};
+			Assert.assertEquals(Level.FINE, a.getLevel());
+			Assert.assertEquals(Level.WARNING, b.getLevel());
+			Assert.assertTrue(a.getTarget() instanceof OpenHandler);
+			Assert.assertNotSame(a.getTarget(), b.getTarget());
+
+			a.publish(new LogRecord(Level.FINE, "fine"));
+			b.publish(new LogRecord(Level.FINE, "fine"));
+			a.close();
+			b.close();
+			Assert.assertEquals(1, ((OpenHandler) a.getTarget()).records.size());
+			Assert.assertEquals(0, ((OpenHandler) b.getTarget()).records.size());
+		} finally {
+			LogManager.getLogManager().readConfiguration();
+		}
+	}
+}
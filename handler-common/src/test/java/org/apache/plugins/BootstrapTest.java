@@ -0,0 +1,43 @@
+package org.apache.plugins;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BootstrapTest {
+
+	@Test
+	public void retriesUntilItSucceeds() throws InterruptedException {
+		AtomicInteger attempts = new AtomicInteger();
+		Bootstrap bootstrap = new Bootstrap("test", () -> {
+			if (attempts.incrementAndGet() < 3) {
+				throw new IllegalStateException("not yet");
+			}
+		}, 10, 20);
+		Assert.assertFalse(bootstrap.isReady());
+		Assert.assertTrue(bootstrap.start());
+		Assert.assertFalse(bootstrap.start());
+		Assert.assertTrue(bootstrap.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(bootstrap.isReady());
+		Assert.assertEquals(3, attempts.get());
+	}
+
+	@Test
+	public void cancelStopsRetrying() throws InterruptedException {
+		AtomicInteger attempts = new AtomicInteger();
+		Bootstrap bootstrap = new Bootstrap("test", () -> {
+			attempts.incrementAndGet();
+			throw new IllegalStateException("never");
+		}, 10000, 10000);
+		bootstrap.start();
+		while (attempts.get() == 0) {
+			Thread.sleep(1);
+		}
+		bootstrap.cancel();
+		Assert.assertFalse(bootstrap.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, attempts.get());
+		Assert.assertFalse(bootstrap.start());
+	}
+}
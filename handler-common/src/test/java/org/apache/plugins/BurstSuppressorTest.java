@@ -0,0 +1,88 @@
+package org.apache.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BurstSuppressorTest {
+
+	private static LogRecord record(String logger, Level level, String message, Object... parameters) {
+		LogRecord record = new LogRecord(level, message);
+		record.setLoggerName(logger);
+		record.setParameters(parameters);
+		return record;
+	}
+
+	@Test
+	public void passesTheFirstRecordsOfAWindow() {
+		BurstSuppressor suppressor = new BurstSuppressor(3, 60000, 16);
+		List<LogRecord> out = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			suppressor.offer(record("a", Level.WARNING, "failed {0}", i), out::add);
+		}
+		Assert.assertEquals(3, out.size());
+		Assert.assertEquals(97, suppressor.getSuppressed());
+
+		// other loggers, levels and messages have their own windows
+		suppressor.offer(record("b", Level.WARNING, "failed {0}", 0), out::add);
+		suppressor.offer(record("a", Level.SEVERE, "failed {0}", 0), out::add);
+		suppressor.offer(record("a", Level.WARNING, "done"), out::add);
+		Assert.assertEquals(6, out.size());
+
+		// the window is still open
+		suppressor.expire(out::add);
+		Assert.assertEquals(6, out.size());
+	}
+
+	@Test
+	public void summarizesWhenTheWindowCloses() throws InterruptedException {
+		BurstSuppressor suppressor = new BurstSuppressor(2, 50, 16);
+		List<LogRecord> out = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			suppressor.offer(record("a", Level.WARNING, "failed {0}", i), out::add);
+		}
+		suppressor.offer(record("b", Level.INFO, "once"), out::add);
+		Thread.sleep(100);
+		suppressor.expire(out::add);
+
+		Assert.assertEquals(4, out.size());
+		LogRecord summary = out.get(3);
+		Assert.assertEquals("failed 9 (repeated 8 times)", summary.getMessage());
+		Assert.assertEquals("a", summary.getLoggerName());
+		Assert.assertEquals(Level.WARNING, summary.getLevel());
+
+		// a new window
+		suppressor.offer(record("a", Level.WARNING, "failed {0}", 10), out::add);
+		Assert.assertEquals(5, out.size());
+		Assert.assertEquals("failed {0}", out.get(4).getMessage());
+	}
+
+	@Test
+	public void newKeysPassBeyondTheLimit() {
+		BurstSuppressor suppressor = new BurstSuppressor(1, 60000, 2);
+		List<LogRecord> out = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			suppressor.offer(record("a", Level.INFO, "x"), out::add);
+			suppressor.offer(record("b", Level.INFO, "x"), out::add);
+			suppressor.offer(record("c", Level.INFO, "x"), out::add);
+		}
+		Assert.assertEquals(1 + 1 + 5, out.size());
+	}
+
+	@Test
+	public void closeSummarizesOpenWindows() {
+		BurstSuppressor suppressor = new BurstSuppressor(2, 60000, 16);
+		List<LogRecord> out = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			suppressor.offer(record("a", Level.WARNING, "failed {0}", i), out::add);
+		}
+		suppressor.offer(record("b", Level.INFO, "once"), out::add);
+		suppressor.close(out::add);
+		Assert.assertEquals(4, out.size());
+		Assert.assertEquals("failed 4 (repeated 3 times)", out.get(3).getMessage());
+	}
+}
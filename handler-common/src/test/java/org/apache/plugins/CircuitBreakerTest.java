@@ -0,0 +1,45 @@
+package org.apache.plugins;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	@Test
+	public void opensAfterThresholdAndProbesOnce() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 200, 200);
+		Exception down = new Exception("down");
+
+		breaker.recordFailure(down);
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.recordFailure(down);
+		Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		Assert.assertFalse(breaker.allowRequest());
+
+		Thread.sleep(250);
+		Assert.assertTrue(breaker.allowRequest());
+		Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		Assert.assertFalse(breaker.allowRequest());
+
+		breaker.recordFailure(down);
+		Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		Thread.sleep(250);
+		Assert.assertTrue(breaker.allowRequest());
+		breaker.recordSuccess();
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		Assert.assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void cancelledProbeGoesToTheNextCaller() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 1, 0, 0);
+		breaker.recordFailure(new Exception("down"));
+		Assert.assertTrue(breaker.allowRequest());
+		Assert.assertFalse(breaker.allowRequest());
+
+		breaker.cancelProbe();
+		Assert.assertTrue(breaker.allowRequest());
+		Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+	}
+}
@@ -0,0 +1,107 @@
+package org.apache.plugins;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ColumnarAccessLogTest {
+
+	private static final String[] FIELDS = { "server_ts", "url", "http_status", "bytes_sent", "user_agent",
+			"time_to_first_byte" };
+
+	private static final String[] PATTERNS = { "%t", "%U", "%s", "%b", "%{User-Agent}i", "%F" };
+
+	private static final long START = 1700000000000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Three blocks of 100 entries, a second apart
+	 */
+	private Path write() throws IOException {
+		ColumnarAccessLog.Type[] types = new ColumnarAccessLog.Type[PATTERNS.length];
+		for (int f = 0; f < PATTERNS.length; f++) {
+			types[f] = ColumnarAccessLog.type(PATTERNS[f]);
+		}
+		Path file = folder.getRoot().toPath().resolve("access" + ColumnarAccessLog.SUFFIX);
+		ColumnarAccessLog.BlockBuilder block = new ColumnarAccessLog.BlockBuilder(types, 100);
+		try (ColumnarAccessLog.Writer writer = new ColumnarAccessLog.Writer(file, FIELDS, types, 6)) {
+			for (int i = 0; i < 300; i++) {
+				block.add(START + i * 1000, i, i % 10 == 0 ? 500 : 200, i % 3, i % 7 == 0 ? -1 : 5, 0,
+						new String[] { null, "/items/" + i % 20, null, null, i % 2 == 0 ? "curl/8.0" : null, null });
+				if (block.isFull()) {
+					writer.write(block);
+					block.clear();
+				}
+			}
+		}
+		return file;
+	}
+
+	private static List<ColumnarAccessLogReader.Row> scan(ColumnarAccessLogReader reader,
+			ColumnarAccessLogReader.Query query) throws IOException {
+		List<ColumnarAccessLogReader.Row> rows = new ArrayList<>();
+		reader.scan(query, rows::add);
+		return rows;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		try (ColumnarAccessLogReader reader = new ColumnarAccessLogReader(write())) {
+			Assert.assertArrayEquals(FIELDS, reader.getFields());
+			List<ColumnarAccessLogReader.Row> rows = scan(reader, new ColumnarAccessLogReader.Query());
+			Assert.assertEquals(300, rows.size());
+			Assert.assertEquals(3, reader.getBlocksRead());
+			for (int i = 0; i < 300; i++) {
+				ColumnarAccessLogReader.Row row = rows.get(i);
+				Assert.assertEquals(START + i * 1000, row.getTimestamp());
+				Assert.assertArrayEquals(new String[] { Instant.ofEpochMilli(START + i * 1000).toString(),
+						"/items/" + i % 20, i % 10 == 0 ? "500" : "200", i % 3 == 0 ? null : String.valueOf(i % 3),
+						i % 2 == 0 ? "curl/8.0" : null, i % 7 == 0 ? null : "5" }, row.getValues());
+			}
+		}
+	}
+
+	@Test
+	public void filters() throws IOException {
+		try (ColumnarAccessLogReader reader = new ColumnarAccessLogReader(write())) {
+			// the middle block only
+			List<ColumnarAccessLogReader.Row> rows = scan(reader,
+					new ColumnarAccessLogReader.Query().time(START + 100000, START + 150000));
+			Assert.assertEquals(50, rows.size());
+			Assert.assertEquals(1, reader.getBlocksRead());
+			Assert.assertEquals(2, reader.getBlocksSkipped());
+
+			rows = scan(reader, new ColumnarAccessLogReader.Query().status(500, 599));
+			Assert.assertEquals(30, rows.size());
+
+			rows = scan(reader, new ColumnarAccessLogReader.Query().status(500, 599).url("/items/1"));
+			// /items/1 and /items/10 to /items/19, of which only the ones ending in 0 fail
+			Assert.assertEquals(15, rows.size());
+			for (ColumnarAccessLogReader.Row row : rows) {
+				Assert.assertEquals(500, row.getStatus());
+				Assert.assertTrue(row.getValues()[1].startsWith("/items/1"));
+			}
+		}
+	}
+
+	@Test
+	public void ignoresTheBlockBeingWritten() throws IOException {
+		Path file = write();
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(raf.length() - 10);
+		}
+		try (ColumnarAccessLogReader reader = new ColumnarAccessLogReader(file)) {
+			Assert.assertEquals(200, scan(reader, new ColumnarAccessLogReader.Query()).size());
+		}
+	}
+}
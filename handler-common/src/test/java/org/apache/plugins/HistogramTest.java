@@ -0,0 +1,79 @@
+package org.apache.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void percentilesWithinBucketPrecision() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 10000; i++) {
+			histogram.record(i);
+		}
+		Assert.assertEquals(10000, histogram.getCount());
+		Assert.assertEquals(5000.5, histogram.getMean(), 0.001);
+		Assert.assertEquals(10000, histogram.getMax());
+		Assert.assertEquals(5000, histogram.getPercentile(0.5), 5000 / 8);
+		Assert.assertEquals(9900, histogram.getPercentile(0.99), 9900 / 8);
+		Assert.assertEquals(10000, histogram.getPercentile(1));
+	}
+
+	@Test
+	public void bucketsCoverEveryValue() {
+		for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 1000, 1L << 40, Long.MAX_VALUE }) {
+			int index = Histogram.index(value);
+			Assert.assertTrue(value + " below its bucket", Histogram.lowerBound(index) <= value);
+			if (value < Long.MAX_VALUE) {
+				Assert.assertTrue(value + " above its bucket", Histogram.lowerBound(index + 1) > value);
+			}
+		}
+	}
+
+	@Test
+	public void countsConcurrentRecords() throws InterruptedException {
+		Histogram histogram = new Histogram();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					histogram.record(i % 100);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(80000, histogram.getCount());
+		Assert.assertEquals(99, histogram.getMax());
+	}
+
+	@Test
+	public void exposedOverJmx() throws JMException {
+		Metrics metrics = new Metrics();
+		Histogram latency = metrics.histogram("Latency");
+		metrics.meter("Enqueued").mark(3);
+		latency.record(42);
+		metrics.register("Test", "histogram");
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("org.apache.plugins:type=\"Test\",name=\"histogram\"");
+			Assert.assertEquals(1L, server.getAttribute(name, "LatencyCount"));
+			Assert.assertEquals(42L, server.getAttribute(name, "LatencyMax"));
+			Assert.assertEquals(3L, server.getAttribute(name, "EnqueuedCount"));
+		} finally {
+			metrics.unregister();
+		}
+		Assert.assertNull(metrics.getObjectName());
+	}
+}
@@ -0,0 +1,52 @@
+package org.apache.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LruCacheTest {
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		LruCache<String, Integer> cache = new LruCache<>(3, 1);
+		cache.put("a", 1);
+		cache.put("b", 2);
+		cache.put("c", 3);
+		Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+		cache.put("d", 4);
+
+		Assert.assertNull(cache.get("b"));
+		Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+		Assert.assertEquals(Integer.valueOf(3), cache.get("c"));
+		Assert.assertEquals(Integer.valueOf(4), cache.get("d"));
+		Assert.assertEquals(3, cache.size());
+		Assert.assertEquals(4, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void staysBoundedUnderConcurrency() throws InterruptedException {
+		LruCache<Integer, Integer> cache = new LruCache<>(256, 8);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			int offset = t * 10000;
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					Integer key = offset + i % 500;
+					if (cache.get(key) == null) {
+						cache.put(key, key);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertTrue(cache.size() <= 256);
+		Assert.assertEquals(80000, cache.getHits() + cache.getMisses());
+	}
+}
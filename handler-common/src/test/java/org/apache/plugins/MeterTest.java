@@ -0,0 +1,52 @@
+package org.apache.plugins;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MeterTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Marks 100 events a second for five minutes, reading the rate every
+	 * pollSeconds
+	 */
+	private static double constantRate(long pollSeconds) {
+		Meter meter = new Meter(0);
+		double rate = 0;
+		for (long second = 1; second <= 300; second++) {
+			meter.mark(100);
+			if (second % pollSeconds == 0) {
+				rate = meter.getRate(second * SECOND);
+			}
+		}
+		return rate;
+	}
+
+	@Test
+	public void rateIndependentOfPollInterval() {
+		for (long poll : new long[] { 1, 5, 7, 17, 60, 300 }) {
+			Assert.assertEquals("polled every " + poll + " s", 100, constantRate(poll), 1);
+		}
+	}
+
+	@Test
+	public void decaysOverIdleTime() {
+		Meter often = new Meter(0);
+		Meter once = new Meter(0);
+		for (long second = 1; second <= 300; second++) {
+			often.mark(100);
+			once.mark(100);
+			often.getRate(second * SECOND);
+		}
+		once.getRate(300 * SECOND);
+		// a minute without events: e^-1 of the rate left
+		for (long second = 301; second <= 360; second++) {
+			often.getRate(second * SECOND);
+		}
+		Assert.assertEquals(100 / Math.E, often.getRate(360 * SECOND), 1);
+		Assert.assertEquals(100 / Math.E, once.getRate(360 * SECOND), 1);
+	}
+}
@@ -0,0 +1,54 @@
+package org.apache.plugins;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void createsEachMetricOnce() throws Exception {
+		Metrics metrics = new Metrics();
+		metrics.counter("Dropped").add(3);
+		metrics.histogram("LogNanos").record(10);
+		metrics.meter("Enqueued").mark();
+		Assert.assertSame(metrics.counter("Dropped"), metrics.counter("Dropped"));
+		Assert.assertSame(metrics.histogram("LogNanos"), metrics.histogram("LogNanos"));
+		Assert.assertSame(metrics.meter("Enqueued"), metrics.meter("Enqueued"));
+		Assert.assertEquals(3L, metrics.getAttribute("Dropped"));
+		Assert.assertEquals(1L, metrics.getAttribute("LogNanosCount"));
+		Assert.assertEquals(1L, metrics.getAttribute("EnqueuedCount"));
+	}
+
+	@Test
+	public void doesNotReplaceAnotherComponent() throws Exception {
+		Metrics first = new Metrics();
+		first.counter("Dropped").add(1);
+		Metrics second = new Metrics();
+		second.counter("Dropped").add(2);
+		first.register("MetricsTest", "valve");
+		second.register("MetricsTest", "valve");
+		try {
+			Assert.assertEquals("valve", ObjectName.unquote(first.getObjectName().getKeyProperty("name")));
+			Assert.assertEquals("valve#2", ObjectName.unquote(second.getObjectName().getKeyProperty("name")));
+			Assert.assertEquals(1L,
+					ManagementFactory.getPlatformMBeanServer().getAttribute(first.getObjectName(), "Dropped"));
+			Assert.assertEquals(2L,
+					ManagementFactory.getPlatformMBeanServer().getAttribute(second.getObjectName(), "Dropped"));
+
+			// registering again frees the old name first
+			second.register("MetricsTest", "valve");
+			Assert.assertEquals("valve#2", ObjectName.unquote(second.getObjectName().getKeyProperty("name")));
+		} finally {
+			first.unregister();
+			second.unregister();
+		}
+		Assert.assertNull(first.getObjectName());
+		Assert.assertTrue(ManagementFactory.getPlatformMBeanServer()
+				.queryNames(new ObjectName(Metrics.DOMAIN + ":type=" + ObjectName.quote("MetricsTest") + ",*"), null)
+				.isEmpty());
+	}
+}
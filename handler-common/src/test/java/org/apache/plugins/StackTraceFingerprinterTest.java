@@ -0,0 +1,57 @@
+package org.apache.plugins;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StackTraceFingerprinterTest {
+
+	private static Exception thrownHere(String message) {
+		return new IllegalStateException(message, new java.io.IOException("cause"));
+	}
+
+	private static Exception thrownThere(String message) {
+		return new IllegalStateException(message, new java.io.IOException("cause"));
+	}
+
+	/**
+	 * The same throw site, and the same calling frames
+	 */
+	private static Exception[] thrownHere(String... messages) {
+		Exception[] thrown = new Exception[messages.length];
+		for (int i = 0; i < messages.length; i++) {
+			thrown[i] = thrownHere(messages[i]);
+		}
+		return thrown;
+	}
+
+	@Test
+	public void sameFramesSameFingerprint() {
+		Exception[] thrown = thrownHere("a", "b");
+		long first = StackTraceFingerprinter.fingerprint(thrown[0]);
+		Assert.assertEquals(first, StackTraceFingerprinter.fingerprint(thrown[1]));
+		Assert.assertNotEquals(first, StackTraceFingerprinter.fingerprint(thrownThere("a")));
+		Assert.assertEquals(16, StackTraceFingerprinter.toHex(1).length());
+	}
+
+	@Test
+	public void fullTraceOncePerInterval() throws InterruptedException {
+		StackTraceFingerprinter fingerprinter = new StackTraceFingerprinter(16, 200);
+		Exception[] thrown = thrownHere(new String[102]);
+		StackTraceFingerprinter.Trace trace = fingerprinter.trace(thrown[0]);
+		Assert.assertTrue(trace.isFull());
+		Assert.assertTrue(trace.isFirst());
+		Assert.assertTrue(trace.getText().contains("Caused by: java.io.IOException: cause"));
+
+		for (int i = 1; i <= 100; i++) {
+			trace = fingerprinter.trace(thrown[i]);
+			Assert.assertFalse(trace.isFull());
+		}
+		Assert.assertTrue(trace.getText().endsWith("(trace omitted, 100 times since the full trace)"));
+		Assert.assertFalse(trace.getText().contains("\n"));
+
+		Thread.sleep(250);
+		trace = fingerprinter.trace(thrown[101]);
+		Assert.assertTrue(trace.isFull());
+		Assert.assertFalse(trace.isFirst());
+	}
+}
@@ -0,0 +1,47 @@
+package org.apache.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StripedBufferTest {
+
+	@Test
+	public void countsEveryDrop() throws InterruptedException {
+		StripedBuffer<Integer> buffer = new StripedBuffer<>(256, 4, OverflowPolicy.DROP_NEW, 0, 1);
+
+		List<Thread> producers = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			Thread producer = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					buffer.offer(i);
+				}
+			});
+			producers.add(producer);
+			producer.start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		int drained = 0;
+		while (buffer.poll() != null) {
+			++drained;
+		}
+		Assert.assertTrue(buffer.isEmpty());
+		Assert.assertEquals(8000, drained + buffer.getDropped());
+		Assert.assertEquals(buffer.getDropped(), buffer.getDroppedNew());
+	}
+
+	@Test
+	public void dropOldestKeepsNewest() {
+		StripedBuffer<Integer> buffer = new StripedBuffer<>(16, 1, OverflowPolicy.DROP_OLDEST, 0, 1);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertTrue(buffer.offer(i));
+		}
+		Assert.assertEquals(84, buffer.getDroppedOldest());
+		Assert.assertEquals(Integer.valueOf(84), buffer.poll());
+	}
+}
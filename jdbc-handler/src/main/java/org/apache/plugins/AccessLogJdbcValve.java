@@ -2,15 +2,26 @@ package org.apache.plugins;
 
 import java.io.CharArrayWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Properties;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
 
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.valves.AccessLogValve;
@@ -19,46 +30,192 @@ import org.apache.catalina.valves.AccessLogValve;
  * Minimalistic JDBC log handler plugin (Valve) for Tomcat Access Logs. 
  * Serves same purpose as org.apache.catalina.valves.JDBCAccessLogValve.
  * 
+ * The pattern is a comma separated list of column=pattern pairs, e.g.
+ * "server_ts=%t,url=%U,http_status=%s", or "default" for the log_access
+ * layout in log.ddl. Each pair is compiled once into a {@link ColumnBinder};
+ * %t, %s, %b, %B, %D and %F are bound as native SQL types read straight from
+ * the request and response, everything else as a string.
+ *
+ * With sampleRate set, an {@link AccessLogSampler} decides before any column
+ * is captured; kept rows get their weight in the sample_weight column.
+ *
+ * With deferred (and async) set, log() only copies the request facts into a
+ * pooled {@link AccessLogEvent}; string columns are rendered and every
+ * column is bound on the writer thread.
+ *
+ * With async, workers writer threads insert in parallel, each with its own
+ * connection; partitionBy ("thread", "remote" address or "time") decides
+ * which rows go to which worker, in order.
+ *
+ * The database is first connected to in the background when the valve
+ * starts; without async, rows logged until then wait in a buffer of
+ * queueSize rows.
+ *
+ * With dimensions set to some string columns, e.g.
+ * "user_agent,referer,url,host", each of those is written as an integer
+ * column_id referencing a {@link JdbcDimension} table named dimensionPrefix
+ * followed by the column, e.g. log_user_agent (see log.ddl). The ids of a
+ * batch's values that are not cached are looked up and inserted together, on
+ * the writer thread with async.
  */
 public class AccessLogJdbcValve extends AccessLogValve {
 
 	private final boolean DEBUG = false;
 
-	private String dbUrl = null;
-	private String driver;
-	private String user;
-	private String password;
+	private static final String DEFAULT_PATTERN = "server_ts=%{y-M-d H:m:s.S}t,remote_ip=%a,local_ip=%A,method=%m,url=%U,query_string=%q,protocol=%H,http_status=%s,bytes_sent=%B,referer=%{Referer}i,user_agent=%{User-Agent}i,time_elapsed=%D,session_id=%S,user_id=%{user_id}s,agent_proxy=%{agent_proxy}s,agent_id=%{agent_device_id}c,time_to_first_byte=%F,thread_name=%I,host=%{Host}i";
+
+	private static final ThreadLocal<CharArrayWriter> buffers = ThreadLocal.withInitial(() -> new CharArrayWriter(128));
+
+	private JdbcConnectionPool pool;
+
+	private String table = "log_access";
+
+	private String sqlStatement;
+
+	private ColumnBinder[] binders;
+
+	private String[] columnPatterns;
+
+	/**
+	 * When true, rows are handed to a background {@link JdbcBatchWriter}
+	 * instead of being inserted on the request thread
+	 */
+	private boolean async = false;
+
+	private int queueSize = 10000;
+
+	private int batchSize = 100;
+
+	/**
+	 * Milliseconds
+	 */
+	private long maxFlushDelay = 1000;
+
+	private JdbcWriterPool writer;
+
+	private int workers = 1;
+
+	private String partitionBy = "thread";
+
+	private final Bootstrap bootstrap = new Bootstrap(getClass().getSimpleName(), this::connect, 1000, 60000);
+
+	/**
+	 * Rows logged before the first connection, without async
+	 */
+	private BoundedBuffer<Object[]> pending;
+
+	/**
+	 * Exposed over JMX as org.apache.plugins:type=AccessLogValve
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * The time (in nanoseconds) log() adds to each request
+	 */
+	private final Histogram logTime = metrics.histogram("LogNanos");
+
+	private final Meter enqueued = metrics.meter("Enqueued");
+
+	private final Histogram jdbcLatency = metrics.histogram("JdbcMicros");
+
+	private final LongAdder retries = metrics.counter("Retries");
+
+	/**
+	 * Rows not inserted after all retries
+	 */
+	private final LongAdder failures = metrics.counter("Failures");
+
+	/**
+	 * Rows dropped by the sampler
+	 */
+	private final LongAdder sampledOut = metrics.counter("SampledOut");
+
+	/**
+	 * Rows per second kept from ordinary requests; 0 keeps everything
+	 */
+	private double sampleRate = 0;
+
+	/**
+	 * "url" or "status": what the sampling budget is split by
+	 */
+	private String sampleBy = "url";
+
+	/**
+	 * Milliseconds; slower requests are always kept
+	 */
+	private long slowThreshold = 1000;
+
+	/**
+	 * Keep every later request of a session once one was sampled
+	 */
+	private boolean sampleSessions = false;
+
+	private AccessLogSampler sampler;
+
+	/**
+	 * Render rows on the writer thread instead of the request thread; needs
+	 * async
+	 */
+	private boolean deferred = false;
+
+	private AccessLogCapture capture;
+
+	private AccessLogCapture.Field[] captureFields;
+
+	/**
+	 * Comma separated string columns written as ids of dimension tables
+	 */
+	private String dimensions;
+
+	private String dimensionPrefix = "log_";
+
+	/**
+	 * Ids cached per dimension
+	 */
+	private int dimensionCacheSize = 10000;
+
+	/**
+	 * The dimension of each column, null if none has one
+	 */
+	private JdbcDimension[] dimensionOf;
 
-	private String sqlStatement = "insert into log_access (server_ts,remote_ip,local_ip,method,url,query_string,protocol,http_status,bytes_sent,referer,user_agent,time_elapsed,session_id,user_id,agent_proxy,agent_id,time_to_first_byte,thread_name,host) values (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
-	private String pattern = "%{y-M-d H:m:s.S}t%a%A%m%U%q%H%s%B%{Referer}i%{User-Agent}i%D%S%{user_id}s%{agent_proxy}s%{agent_device_id}c%F%I%{Host}i";
-	
 	public AccessLogJdbcValve() {
 		try {
 
-			Properties p = new Properties();
-			String path = System.getProperty("ctc.config.path");
-			URL propertiesUrl = new URL(path + "/tomcat_db_logging.properties");
-			InputStream is = propertiesUrl.openStream();
-			p.load(is);
-			is.close();
+			pool = JdbcConnectionPool.getInstance();
 
-			this.dbUrl = p.getProperty("database.url");
-			this.driver = p.getProperty("database.driver.classname");
-			this.user = p.getProperty("database.username");
-			this.password = p.getProperty("database.password");
-
-			Class.forName(driver);
+		} catch (IOException | ClassNotFoundException e) {
+			System.err.println(new Date() + " " + this.getClass().getName() + " FAILED TO CONNECT TO DATABASE " + (pool == null ? null : pool.getUrl()));
+			e.printStackTrace(System.err);
+		}
+		metrics.gauge("DimensionHits", () -> sum(dimensionOf, JdbcDimension::getHits));
+		metrics.gauge("DimensionMisses", () -> sum(dimensionOf, JdbcDimension::getMisses));
+		metrics.gauge("DimensionUnresolved", () -> sum(dimensionOf, d -> d.getUnresolved() + d.getCollisions()));
+	}
 
-			try(Connection test = DriverManager.getConnection(dbUrl, user, password)) {
-				//empty;
-			}
+	/**
+	 * Runs once in the background. A failed test is not retried: the pool
+	 * reconnects on demand and its circuit breaker sheds rows meanwhile.
+	 */
+	private void connect() {
+		try {
+			pool.test();
 
-			System.out.println(new Date() + " " + this.getClass().getName() + " Connected to database " + dbUrl);
+			System.out.println(new Date() + " " + this.getClass().getName() + " Connected to database " + pool.getUrl());
 
-		} catch (IOException | SQLException | ClassNotFoundException e) {
-			System.err.println(new Date() + " " + this.getClass().getName() + " FAILED TO CONNECT TO DATABASE " + dbUrl);
+		} catch (SQLException e) {
+			System.err.println(new Date() + " " + this.getClass().getName() + " FAILED TO CONNECT TO DATABASE " + pool.getUrl());
 			e.printStackTrace(System.err);
 		}
+		insertPending();
+	}
+
+	private void insertPending() {
+		BoundedBuffer<Object[]> rows = pending;
+		Object[] row;
+		while (rows != null && (row = rows.poll()) != null) {
+			insert(row);
+		}
 	}
 
 	@Override
@@ -68,58 +225,291 @@ public class AccessLogJdbcValve extends AccessLogValve {
 
 	@Override
 	public void log(Request request, Response response, long time) {
-		if (!getState().isAvailable() || !getEnabled() || logElements == null
+		if (!getState().isAvailable() || !getEnabled() || logElements == null || pool == null
 				|| condition != null && null != request.getRequest().getAttribute(condition)) {
 			return;
 		}
 
+		long start = System.nanoTime();
+		long weight = 1;
+		if (sampler != null) {
+			weight = sampler.sample("status".equals(sampleBy) ? String.valueOf(response.getStatus())
+					: request.getRequestURI(), response.getStatus(), time, sampleSessions ? sessionId(request) : null);
+			if (weight == 0) {
+				sampledOut.increment();
+				return;
+			}
+		}
+		if (capture != null) {
+			AccessLogEvent event = capture.capture(request, response, time);
+			enqueued.mark();
+			if (!writer.offer(partitionKey(request), event.getTimestamp(),
+					sampler == null ? new Object[] { event } : new Object[] { event, weight })) {
+				capture.release(event);
+			}
+			logTime.record(System.nanoTime() - start);
+			return;
+		}
 		Date date = new Date();
 
+		Object[] row = new Object[sampler == null ? binders.length : binders.length + 1];
+		for (int i = 0; i < binders.length; i++) {
+			row[i] = binders[i].capture(date, request, response, time);
+		}
+		if (sampler != null) {
+			row[binders.length] = weight;
+		}
+		enqueued.mark();
+
+		if (writer != null) {
+			writer.offer(partitionKey(request), date.getTime(), row);
+		} else if (!bootstrap.isReady()) {
+			if (!pending.offer(row)) {
+				failures.increment();
+			}
+		} else {
+			if (!pending.isEmpty()) {
+				// logged while connect() was finishing
+				insertPending();
+			}
+			insert(row);
+		}
+		logTime.record(System.nanoTime() - start);
+	}
+
+	private void insert(Object[] row) {
 		int retries = 3;
 
 		while (--retries >= 0) {
 
-			StringBuilder debug = new StringBuilder();
-			int n = 0;
+			long start = System.nanoTime();
+			try {
+				pool.execute(sqlStatement, (connection, statement) -> {
+					if (dimensionOf != null) {
+						List<Object[]> rows = new ArrayList<>(1);
+						rows.add(row);
+						prepare(connection, rows);
+					}
+					bind(statement, row);
+					if (statement.executeUpdate() != 1) {
+						throw new SQLException("not inserted 1 row");
+					}
+				});
+				return;
 
-			try(Connection connection = DriverManager.getConnection(dbUrl, user, password);
-				PreparedStatement statement = connection.prepareStatement(sqlStatement)) {
-				
-				for (int i = 0; i < logElements.length; i++) {
+			} catch (CircuitOpenException e) {
+				pool.getCircuitBreaker().shed(1);
+				return;
 
-					if (logElements[i] instanceof StringElement)
-						// ignore extraneous elements introduced by the pattern
-						// parser
-						continue;
+			} catch (SQLException e) {
 
-					CharArrayWriter result = new CharArrayWriter(128);
-					logElements[i].addElement(result, date, request, response, time);
+				System.err.println(new Date() + " " + this.getClass().getName()
+						+ ": Failed to log to database! Will retry another " + retries + " times. Error: "
+						+ e.toString() + " row=" + Arrays.toString(row));
+				if (retries > 0) {
+					this.retries.increment();
+				}
+			} finally {
+				jdbcLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			}
+		}
+		failures.increment();
+	}
 
-					String value = result.toString();
-					if ("-".equals(value)) {
-						value = null;
-					}
-					
-					++n;
+	private void bind(PreparedStatement statement, Object[] row) throws SQLException {
+		if (row.length > 0 && row[0] instanceof AccessLogEvent) {
+			bindCaptured(statement, row);
+			return;
+		}
+		for (int i = 0; i < binders.length; i++) {
+			binders[i].bind(statement, i + 1, row[i]);
+		}
+		if (row.length > binders.length) {
+			statement.setLong(binders.length + 1, (Long) row[binders.length]);
+		}
+	}
 
-					statement.setString(n, value);
-					debug.append("Called setString(" + n + ", [" + value + "])\n");					
+	/**
+	 * Renders and binds a row captured in deferred mode, then recycles its
+	 * event
+	 */
+	private void bindCaptured(PreparedStatement statement, Object[] row) throws SQLException {
+		AccessLogEvent event = (AccessLogEvent) row[0];
+		for (int i = 0; i < binders.length; i++) {
+			binders[i].bind(statement, i + 1, binders[i].value(event, captureFields[i]));
+		}
+		if (row.length > 1) {
+			statement.setLong(binders.length + 1, (Long) row[1]);
+		}
+		capture.release(event);
+	}
+
+	/**
+	 * Replaces the values of the dimension columns with their ids, resolving
+	 * the ones not cached in one go per dimension. Rows captured in deferred
+	 * mode are rendered first.
+	 */
+	private void prepare(Connection connection, List<Object[]> batch) throws SQLException {
+		for (int r = 0; r < batch.size(); r++) {
+			Object[] row = batch.get(r);
+			if (row.length > 0 && row[0] instanceof AccessLogEvent) {
+				batch.set(r, render(row));
+			}
+		}
+		for (int i = 0; i < dimensionOf.length; i++) {
+			JdbcDimension dimension = dimensionOf[i];
+			if (dimension == null) {
+				continue;
+			}
+			Set<String> missing = null;
+			for (Object[] row : batch) {
+				if (row[i] instanceof String) {
+					Integer id = dimension.get((String) row[i]);
+					if (id != null) {
+						row[i] = id;
+					} else {
+						if (missing == null) {
+							missing = new HashSet<>();
+						}
+						missing.add((String) row[i]);
+					}
 				}
-				if (statement.executeUpdate() != 1) {
-					throw new SQLException("not inserted 1 row");
+			}
+			if (missing != null) {
+				Map<String, Integer> ids = dimension.resolve(connection, missing);
+				for (Object[] row : batch) {
+					if (row[i] instanceof String) {
+						// null if the value could not be resolved
+						row[i] = ids.get(row[i]);
+					}
 				}
-				return;
+			}
+		}
+	}
 
-			} catch (SQLException e) {
+	/**
+	 * @return the row of the values a deferred row's event renders to; the
+	 *         event is recycled
+	 */
+	private Object[] render(Object[] row) {
+		AccessLogEvent event = (AccessLogEvent) row[0];
+		Object[] values = new Object[row.length > 1 ? binders.length + 1 : binders.length];
+		for (int i = 0; i < binders.length; i++) {
+			values[i] = binders[i].value(event, captureFields[i]);
+		}
+		if (row.length > 1) {
+			values[binders.length] = row[1];
+		}
+		capture.release(event);
+		return values;
+	}
 
-				System.err.println(new Date() + " " + this.getClass().getName()
-						+ ": Failed to log to database! Will retry another " + retries + " times. Error: "
-						+ e.toString() + " debug={" + debug.toString() + "}");
-				
-				e.printStackTrace(System.err);
+	private static long sum(JdbcDimension[] dimensions, ToLongFunction<JdbcDimension> counter) {
+		return dimensions == null ? 0 : Arrays.stream(dimensions).filter(Objects::nonNull).mapToLong(counter).sum();
+	}
+
+	/**
+	 * Tomcat's element for a code AccessLogCapture does not know
+	 */
+	private AccessLogCapture.Element element(String code) {
+		char c = code.charAt(code.length() - 1);
+		AccessLogElement element = code.charAt(1) == '{'
+				? createAccessLogElement(code.substring(2, code.length() - 2), c) : createAccessLogElement(c);
+		return element::addElement;
+	}
+
+	private static String sessionId(Request request) {
+		Session session = request.getSessionInternal(false);
+		return session == null ? null : session.getIdInternal();
+	}
+
+	private int partitionKey(Request request) {
+		return writer.getPartition() == JdbcWriterPool.Partition.KEY ? Objects.hashCode(request.getRemoteAddr()) : 0;
+	}
+
+	@Override
+	protected synchronized void startInternal() throws LifecycleException {
+		if (binders == null) {
+			setPattern("default");
+		}
+		sampler = sampleRate > 0 ? new AccessLogSampler(sampleRate, slowThreshold, sampleSessions) : null;
+		dimensionOf = null;
+		for (int i = 0; i < binders.length; i++) {
+			if (binders[i] instanceof DimensionBinder) {
+				binders[i] = ((DimensionBinder) binders[i]).values;
+			}
+		}
+		if (dimensions != null && !dimensions.trim().isEmpty()) {
+			dimensionOf = new JdbcDimension[binders.length];
+			for (String column : dimensions.split(",")) {
+				int i = 0;
+				while (i < binders.length && !binders[i].column.equals(column.trim())) {
+					++i;
+				}
+				if (i == binders.length || !(binders[i] instanceof StringBinder)) {
+					System.err.println(new Date() + " " + this.getClass().getName() + ": dimension " + column.trim()
+							+ " is not a string column of the pattern, written as is");
+					continue;
+				}
+				dimensionOf[i] = new JdbcDimension(dimensionPrefix + binders[i].column, dimensionCacheSize);
+				binders[i] = new DimensionBinder(binders[i]);
+			}
+		}
+		sqlStatement = "insert into " + table + " ("
+				+ Arrays.stream(binders).map(b -> b.column).collect(Collectors.joining(","))
+				+ (sampler == null ? "" : ",sample_weight")
+				+ ") values (" + Arrays.stream(binders).map(b -> "?").collect(Collectors.joining(","))
+				+ (sampler == null ? "" : ",?") + ")";
+		if (DEBUG)
+			System.err.println(new Date() + ": SQL = " + sqlStatement);
+		capture = null;
+		if (deferred && !async) {
+			System.err.println(new Date() + " " + this.getClass().getName()
+					+ ": deferred needs async=\"true\", rows will be rendered on the request thread");
+		} else if (deferred) {
+			capture = new AccessLogCapture(Math.min(queueSize, 1024));
+			captureFields = new AccessLogCapture.Field[binders.length];
+			for (int i = 0; i < binders.length; i++) {
+				captureFields[i] = capture.compile(columnPatterns[i], this::element);
 			}
 		}
+		if (async) {
+			JdbcBatchWriter.RowBinder rowBinder = dimensionOf == null ? this::bind : new JdbcBatchWriter.RowBinder() {
+				@Override
+				public void bind(PreparedStatement statement, Object[] row) throws SQLException {
+					AccessLogJdbcValve.this.bind(statement, row);
+				}
 
+				@Override
+				public void prepare(Connection connection, List<Object[]> batch) throws SQLException {
+					AccessLogJdbcValve.this.prepare(connection, batch);
+				}
+			};
+			writer = new JdbcWriterPool(pool, sqlStatement, rowBinder, workers, JdbcWriterPool.partition(partitionBy),
+					queueSize, batchSize, maxFlushDelay, metrics);
+			writer.start();
+		} else if (pending == null) {
+			pending = new BoundedBuffer<>(queueSize);
+		}
+		if (pool != null) {
+			bootstrap.start();
+		}
+		metrics.register("AccessLogValve", ValveNames.of(this));
+		super.startInternal();
+	}
+
+	@Override
+	protected synchronized void stopInternal() throws LifecycleException {
+		super.stopInternal();
+		if (pending != null && !bootstrap.isReady() && !pending.isEmpty()) {
+			System.err.println(new Date() + " " + this.getClass().getName() + ": Stopped before connecting, "
+					+ pending.size() + " rows not inserted");
+		}
+		metrics.unregister();
+		if (writer != null) {
+			writer.stop();
+			writer = null;
+		}
 	}
 
 	@Override
@@ -128,14 +518,370 @@ public class AccessLogJdbcValve extends AccessLogValve {
 	}
 
 	@Override
-	public void setPattern(String ignore) {
-		assert (ignore.equals("default"));
+	public void setPattern(String patternParm) {
+		String columns = patternParm.equals("default") ? DEFAULT_PATTERN : patternParm;
 		if (DEBUG)
-			System.err.println(new Date() + ": Pattern = " + pattern);
-		super.setPattern(pattern);
+			System.err.println(new Date() + ": Pattern = " + columns);
+
+		List<ColumnBinder> compiled = new ArrayList<>();
+		List<String> patterns = new ArrayList<>();
+		StringBuilder pattern = new StringBuilder();
+		for (String[] pair : AccessLogPattern.pairs(columns)) {
+			String column = pair[0];
+			String columnPattern = pair[1];
+			pattern.append(columnPattern);
+			patterns.add(columnPattern);
+
+			// let the superclass parse this column on its own
+			super.setPattern(columnPattern);
+			compiled.add(compile(column, columnPattern, logElements));
+		}
+		binders = compiled.toArray(new ColumnBinder[0]);
+		columnPatterns = patterns.toArray(new String[0]);
+
+		super.setPattern(pattern.toString());
 		if (DEBUG)
-			for (int i = 0; i < logElements.length; i++) {
-				System.err.printf("[%d] = %s\n", i, logElements[i].getClass().getName());
+			for (int i = 0; i < binders.length; i++) {
+				System.err.printf("[%d] = %s %s\n", i, binders[i].column, binders[i].getClass().getSimpleName());
+			}
+	}
+
+	protected ColumnBinder compile(String column, String columnPattern, AccessLogElement[] elements) {
+		if (columnPattern.equals("%s")) {
+			return new StatusBinder(column);
+		} else if (columnPattern.equals("%B") || columnPattern.equals("%b")) {
+			return new BytesBinder(column, columnPattern.equals("%b"));
+		} else if (columnPattern.equals("%D")) {
+			return new ElapsedBinder(column);
+		} else if (columnPattern.equals("%F")) {
+			return new FirstByteBinder(column);
+		} else if (columnPattern.equals("%t") || columnPattern.startsWith("%{") && columnPattern.endsWith("}t")
+				&& !columnPattern.contains("begin:")) {
+			return new TimestampBinder(column);
+		}
+		return new StringBinder(column, elements);
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public void setTable(String table) {
+		this.table = table;
+	}
+
+	public boolean getAsync() {
+		return async;
+	}
+
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	public boolean getDeferred() {
+		return deferred;
+	}
+
+	public void setDeferred(boolean deferred) {
+		this.deferred = deferred;
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	public String getPartitionBy() {
+		return partitionBy;
+	}
+
+	public void setPartitionBy(String partitionBy) {
+		this.partitionBy = partitionBy;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	public String getSampleBy() {
+		return sampleBy;
+	}
+
+	public void setSampleBy(String sampleBy) {
+		this.sampleBy = sampleBy;
+	}
+
+	public long getSlowThreshold() {
+		return slowThreshold;
+	}
+
+	public void setSlowThreshold(long slowThreshold) {
+		this.slowThreshold = slowThreshold;
+	}
+
+	public boolean getSampleSessions() {
+		return sampleSessions;
+	}
+
+	public void setSampleSessions(boolean sampleSessions) {
+		this.sampleSessions = sampleSessions;
+	}
+
+	public String getDimensions() {
+		return dimensions;
+	}
+
+	public void setDimensions(String dimensions) {
+		this.dimensions = dimensions;
+	}
+
+	public String getDimensionPrefix() {
+		return dimensionPrefix;
+	}
+
+	public void setDimensionPrefix(String dimensionPrefix) {
+		this.dimensionPrefix = dimensionPrefix;
+	}
+
+	public int getDimensionCacheSize() {
+		return dimensionCacheSize;
+	}
+
+	public void setDimensionCacheSize(int dimensionCacheSize) {
+		this.dimensionCacheSize = dimensionCacheSize;
+	}
+
+	public long getMaxFlushDelay() {
+		return maxFlushDelay;
+	}
+
+	public void setMaxFlushDelay(long maxFlushDelay) {
+		this.maxFlushDelay = maxFlushDelay;
+	}
+
+	/**
+	 * Captures one column on the request thread and binds it to the insert
+	 * statement, possibly later on the writer thread.
+	 */
+	protected abstract static class ColumnBinder {
+
+		protected final String column;
+
+		protected ColumnBinder(String column) {
+			this.column = column;
+		}
+
+		protected abstract Object capture(Date date, Request request, Response response, long time);
+
+		/**
+		 * The value capture would have returned, read from an event captured
+		 * in deferred mode
+		 */
+		protected Object value(AccessLogEvent event, AccessLogCapture.Field field) {
+			return AccessLogCapture.value(field, event);
+		}
+
+		protected abstract void bind(PreparedStatement statement, int index, Object value) throws SQLException;
+	}
+
+	protected static class StringBinder extends ColumnBinder {
+
+		private final AccessLogElement[] elements;
+
+		protected StringBinder(String column, AccessLogElement[] elements) {
+			super(column);
+			this.elements = elements;
+		}
+
+		@Override
+		protected Object capture(Date date, Request request, Response response, long time) {
+			CharArrayWriter buffer = buffers.get();
+			buffer.reset();
+			for (AccessLogElement element : elements) {
+				element.addElement(buffer, date, request, response, time);
 			}
+			String value = buffer.toString();
+			return "-".equals(value) ? null : value;
+		}
+
+		@Override
+		protected void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+			statement.setString(index, (String) value);
+		}
+	}
+
+	/**
+	 * Captures the string of a column whose id is written to column_id,
+	 * prepare() having replaced the string with the id
+	 */
+	protected static class DimensionBinder extends ColumnBinder {
+
+		private final ColumnBinder values;
+
+		protected DimensionBinder(ColumnBinder values) {
+			super(values.column + "_id");
+			this.values = values;
+		}
+
+		@Override
+		protected Object capture(Date date, Request request, Response response, long time) {
+			return values.capture(date, request, response, time);
+		}
+
+		@Override
+		protected Object value(AccessLogEvent event, AccessLogCapture.Field field) {
+			return values.value(event, field);
+		}
+
+		@Override
+		protected void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+			if (value instanceof Integer) {
+				statement.setInt(index, (Integer) value);
+			} else {
+				statement.setNull(index, Types.INTEGER);
+			}
+		}
+	}
+
+	protected abstract static class LongBinder extends ColumnBinder {
+
+		protected LongBinder(String column) {
+			super(column);
+		}
+
+		@Override
+		protected void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+			if (value == null) {
+				statement.setNull(index, Types.BIGINT);
+			} else {
+				statement.setLong(index, (Long) value);
+			}
+		}
+	}
+
+	protected static class StatusBinder extends ColumnBinder {
+
+		protected StatusBinder(String column) {
+			super(column);
+		}
+
+		@Override
+		protected Object capture(Date date, Request request, Response response, long time) {
+			return response.getStatus();
+		}
+
+		@Override
+		protected Object value(AccessLogEvent event, AccessLogCapture.Field field) {
+			return event.getStatus();
+		}
+
+		@Override
+		protected void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+			statement.setInt(index, (Integer) value);
+		}
+	}
+
+	protected static class BytesBinder extends LongBinder {
+
+		/**
+		 * %b logs '-' instead of 0
+		 */
+		private final boolean zeroIsNull;
+
+		protected BytesBinder(String column, boolean zeroIsNull) {
+			super(column);
+			this.zeroIsNull = zeroIsNull;
+		}
+
+		@Override
+		protected Object capture(Date date, Request request, Response response, long time) {
+			long length = response.getBytesWritten(false);
+			return zeroIsNull && length <= 0 ? null : length;
+		}
+
+		@Override
+		protected Object value(AccessLogEvent event, AccessLogCapture.Field field) {
+			return zeroIsNull && event.getBytes() <= 0 ? null : event.getBytes();
+		}
+	}
+
+	protected static class ElapsedBinder extends LongBinder {
+
+		protected ElapsedBinder(String column) {
+			super(column);
+		}
+
+		@Override
+		protected Object capture(Date date, Request request, Response response, long time) {
+			return time;
+		}
+
+		@Override
+		protected Object value(AccessLogEvent event, AccessLogCapture.Field field) {
+			return event.getElapsed();
+		}
+	}
+
+	protected static class FirstByteBinder extends LongBinder {
+
+		protected FirstByteBinder(String column) {
+			super(column);
+		}
+
+		@Override
+		protected Object capture(Date date, Request request, Response response, long time) {
+			long commitTime = response.getCoyoteResponse().getCommitTime();
+			return commitTime == -1 ? null : commitTime - request.getCoyoteRequest().getStartTime();
+		}
+
+		@Override
+		protected Object value(AccessLogEvent event, AccessLogCapture.Field field) {
+			return event.getFirstByte() == -1 ? null : event.getFirstByte();
+		}
+	}
+
+	protected static class TimestampBinder extends ColumnBinder {
+
+		protected TimestampBinder(String column) {
+			super(column);
+		}
+
+		@Override
+		protected Object capture(Date date, Request request, Response response, long time) {
+			return new Timestamp(date.getTime());
+		}
+
+		@Override
+		protected Object value(AccessLogEvent event, AccessLogCapture.Field field) {
+			return new Timestamp(event.getTimestamp());
+		}
+
+		@Override
+		protected void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+			statement.setTimestamp(index, (Timestamp) value);
+		}
 	}
 }
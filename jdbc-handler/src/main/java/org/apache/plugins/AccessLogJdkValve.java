@@ -3,12 +3,32 @@ package org.apache.plugins;
 import java.io.CharArrayWriter;
 import java.util.logging.Logger;
 
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
 import org.apache.catalina.valves.AccessLogValve;
 
 public class AccessLogJdkValve extends AccessLogValve {
 
 	private static Logger jdkLogger = Logger.getLogger(AccessLogJdkValve.class.getName());
+
+	/**
+	 * Exposed over JMX as org.apache.plugins:type=AccessLogValve
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * The time (in nanoseconds) log() adds to each request
+	 */
+	private final Histogram logTime = metrics.histogram("LogNanos");
 	
+	@Override
+	public void log(Request request, Response response, long time) {
+		long start = System.nanoTime();
+		super.log(request, response, time);
+		logTime.record(System.nanoTime() - start);
+	}
+
 	@Override
 	public void log(CharArrayWriter msg) {
 		jdkLogger.info(msg.toString());
@@ -18,4 +38,16 @@ public class AccessLogJdkValve extends AccessLogValve {
 	protected synchronized void open() {
 		// do nothing
 	}
+
+	@Override
+	protected synchronized void startInternal() throws LifecycleException {
+		metrics.register("AccessLogValve", ValveNames.of(this));
+		super.startInternal();
+	}
+
+	@Override
+	protected synchronized void stopInternal() throws LifecycleException {
+		super.stopInternal();
+		metrics.unregister();
+	}
 }
@@ -0,0 +1,19 @@
+package org.apache.plugins;
+
+/**
+ * {@link JdbcHandler} behind an {@link AsyncHandler}, configured under
+ * org.apache.plugins.AsyncJdbcHandler so that other handlers can be made
+ * asynchronous next to it, e.g.
+ *
+ * <pre>
+ * handlers = org.apache.plugins.AsyncJdbcHandler
+ * org.apache.plugins.AsyncJdbcHandler.capacity = 8192
+ * org.apache.plugins.AsyncJdbcHandler.overflowPolicy = DROP_NEW
+ * </pre>
+ */
+public class AsyncJdbcHandler extends AsyncHandler {
+
+	public AsyncJdbcHandler() {
+		super(AsyncJdbcHandler.class.getName(), JdbcHandler.class.getName());
+	}
+}
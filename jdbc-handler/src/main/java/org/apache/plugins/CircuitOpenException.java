@@ -0,0 +1,15 @@
+package org.apache.plugins;
+
+import java.sql.SQLTransientException;
+
+/**
+ * Thrown by {@link JdbcConnectionPool#execute} instead of connecting while the
+ * database circuit breaker is open.
+ */
+@SuppressWarnings("serial")
+public class CircuitOpenException extends SQLTransientException {
+
+	public CircuitOpenException(String dbUrl) {
+		super("Circuit open for " + dbUrl);
+	}
+}
@@ -0,0 +1,165 @@
+package org.apache.plugins;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.logging.LogManager;
+import java.util.stream.Collectors;
+
+/**
+ * {@link AccessLogSink} that inserts each entry as a row, in batches, on its
+ * own {@link JdbcWriterPool} threads. Field names are the column names; %t,
+ * %s, %b, %B, %D and %F are bound as native SQL types, as in
+ * {@link AccessLogJdbcValve}, everything else as a string.
+ *
+ * Configured in logging.properties, e.g.
+ *
+ * <pre>
+ * org.apache.plugins.JdbcAccessLogSink.table = log_access
+ * org.apache.plugins.JdbcAccessLogSink.queueSize = 10000
+ * org.apache.plugins.JdbcAccessLogSink.batchSize = 100
+ * org.apache.plugins.JdbcAccessLogSink.maxFlushDelay = 1000
+ * org.apache.plugins.JdbcAccessLogSink.workers = 1
+ * org.apache.plugins.JdbcAccessLogSink.partitionBy = thread
+ * </pre>
+ */
+public class JdbcAccessLogSink implements AccessLogSink {
+
+	private enum Type {
+		STRING, STATUS, BYTES, BYTES_OR_NULL, ELAPSED, FIRST_BYTE, TIMESTAMP
+	}
+
+	private final String table = property("table", "log_access");
+
+	private final int queueSize = Integer.parseInt(property("queueSize", "10000"));
+
+	private final int batchSize = Integer.parseInt(property("batchSize", "100"));
+
+	/**
+	 * Milliseconds
+	 */
+	private final long maxFlushDelay = Long.parseLong(property("maxFlushDelay", "1000"));
+
+	private final int workers = Integer.parseInt(property("workers", "1"));
+
+	/**
+	 * "thread" or "time"
+	 */
+	private final String partitionBy = property("partitionBy", "thread");
+
+	/**
+	 * Exposed over JMX as org.apache.plugins:type=JdbcAccessLogSink
+	 */
+	private final Metrics metrics = new Metrics();
+
+	private Type[] types;
+
+	/**
+	 * No column needs the rendered values
+	 */
+	private boolean typedOnly;
+
+	private boolean sampled;
+
+	private JdbcWriterPool writer;
+
+	private static String property(String name, String defaultValue) {
+		String value = LogManager.getLogManager().getProperty(JdbcAccessLogSink.class.getName() + "." + name);
+		return value == null ? defaultValue : value.trim();
+	}
+
+	private static Type type(String pattern) {
+		if (pattern.equals("%s")) {
+			return Type.STATUS;
+		} else if (pattern.equals("%B")) {
+			return Type.BYTES;
+		} else if (pattern.equals("%b")) {
+			return Type.BYTES_OR_NULL;
+		} else if (pattern.equals("%D")) {
+			return Type.ELAPSED;
+		} else if (pattern.equals("%F")) {
+			return Type.FIRST_BYTE;
+		} else if (pattern.equals("%t")
+				|| pattern.startsWith("%{") && pattern.endsWith("}t") && !pattern.contains("begin:")) {
+			return Type.TIMESTAMP;
+		}
+		return Type.STRING;
+	}
+
+	@Override
+	public void start(String[] fields, String[] patterns, boolean sampled)
+			throws IOException, ClassNotFoundException {
+		JdbcConnectionPool pool = JdbcConnectionPool.getInstance();
+		this.sampled = sampled;
+		types = Arrays.stream(patterns).map(JdbcAccessLogSink::type).toArray(Type[]::new);
+		typedOnly = Arrays.stream(types).noneMatch(t -> t == Type.STRING);
+		String sql = "insert into " + table + " (" + String.join(",", fields)
+				+ (sampled ? ",sample_weight" : "") + ") values ("
+				+ Arrays.stream(fields).map(f -> "?").collect(Collectors.joining(","))
+				+ (sampled ? ",?" : "") + ")";
+		writer = new JdbcWriterPool(pool, sql, this::bind, workers, JdbcWriterPool.partition(partitionBy), queueSize,
+				batchSize, maxFlushDelay, metrics);
+		writer.start();
+		metrics.register(getClass().getSimpleName(), table);
+		System.out.println(new Date() + " " + getClass().getName() + " Logging to " + table + " on " + pool.getUrl());
+	}
+
+	@Override
+	public boolean offer(AccessLogEntry entry) {
+		return writer.offer(0, entry.getTimestamp(), new Object[] { entry });
+	}
+
+	private void bind(PreparedStatement statement, Object[] row) throws SQLException {
+		AccessLogEntry entry = (AccessLogEntry) row[0];
+		String[] values = typedOnly ? null : entry.getValues();
+		for (int i = 0; i < types.length; i++) {
+			int index = i + 1;
+			switch (types[i]) {
+			case STATUS:
+				statement.setInt(index, entry.getStatus());
+				break;
+			case BYTES:
+				statement.setLong(index, entry.getBytes());
+				break;
+			case BYTES_OR_NULL:
+				setLongOrNull(statement, index, entry.getBytes() <= 0 ? -1 : entry.getBytes());
+				break;
+			case ELAPSED:
+				statement.setLong(index, entry.getElapsed());
+				break;
+			case FIRST_BYTE:
+				setLongOrNull(statement, index, entry.getFirstByte());
+				break;
+			case TIMESTAMP:
+				statement.setTimestamp(index, new Timestamp(entry.getTimestamp()));
+				break;
+			default:
+				statement.setString(index, values[i]);
+			}
+		}
+		if (sampled) {
+			statement.setLong(types.length + 1, entry.getWeight());
+		}
+	}
+
+	/**
+	 * Binds -1 as NULL
+	 */
+	private static void setLongOrNull(PreparedStatement statement, int index, long value) throws SQLException {
+		if (value == -1) {
+			statement.setNull(index, Types.BIGINT);
+		} else {
+			statement.setLong(index, value);
+		}
+	}
+
+	@Override
+	public void stop() {
+		writer.stop();
+		metrics.unregister();
+	}
+}
@@ -0,0 +1,214 @@
+package org.apache.plugins;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background writer that drains captured rows from a bounded queue and
+ * inserts them with JDBC batches, one transaction per batch, so that the
+ * thread producing the rows never touches the database. The writer thread
+ * borrows a pooled connection per batch, and leaves it to other callers
+ * between batches.
+ */
+public class JdbcBatchWriter implements Runnable {
+
+	/**
+	 * Sets the parameters of the statement from one queued row.
+	 */
+	public interface RowBinder {
+		void bind(PreparedStatement statement, Object[] row) throws SQLException;
+
+		/**
+		 * Called once per batch before its rows are bound, with the
+		 * connection's auto-commit on, e.g. to resolve the ids the rows refer
+		 * to in one go. May change the rows, or replace them in the batch.
+		 */
+		default void prepare(Connection connection, List<Object[]> batch) throws SQLException {
+		}
+	}
+
+	private final JdbcConnectionPool pool;
+	private final String sql;
+	private final RowBinder binder;
+
+	/**
+	 * The maximum number of rows sent in one executeBatch()
+	 */
+	private final int batchSize;
+
+	/**
+	 * The maximum time (in milliseconds) a row waits in the queue before the
+	 * batch holding it is written
+	 */
+	private final long maxFlushDelay;
+
+	private final ArrayBlockingQueue<Object[]> queue;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final Histogram batchRows;
+
+	private final Histogram batchLatency;
+
+	private final LongAdder failures;
+
+	private volatile boolean running;
+
+	private final String name;
+
+	private Thread thread;
+
+	/**
+	 * @param metrics
+	 *            gets the writer's BatchSize, BatchJdbcMicros, WriterFailures,
+	 *            QueueDepth and WriterDropped
+	 */
+	public JdbcBatchWriter(JdbcConnectionPool pool, String sql, RowBinder binder,
+			int queueSize, int batchSize, long maxFlushDelay, Metrics metrics) {
+		this(pool, sql, binder, queueSize, batchSize, maxFlushDelay, metrics.histogram("BatchSize"),
+				metrics.histogram("BatchJdbcMicros"), metrics.counter("WriterFailures"), JdbcBatchWriter.class.getSimpleName());
+		metrics.gauge("QueueDepth", queue::size);
+		metrics.gauge("WriterDropped", dropped::get);
+	}
+
+	/**
+	 * For the workers of a {@link JdbcWriterPool}, which share their metrics
+	 */
+	JdbcBatchWriter(JdbcConnectionPool pool, String sql, RowBinder binder, int queueSize, int batchSize,
+			long maxFlushDelay, Histogram batchRows, Histogram batchLatency, LongAdder failures, String name) {
+		this.pool = pool;
+		this.sql = sql;
+		this.binder = binder;
+		this.batchSize = batchSize;
+		this.maxFlushDelay = maxFlushDelay;
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.batchRows = batchRows;
+		this.batchLatency = batchLatency;
+		this.failures = failures;
+		this.name = name;
+	}
+
+	/**
+	 * Queues a row for insertion without blocking. Rows that do not fit are
+	 * counted and discarded.
+	 */
+	public boolean offer(Object[] row) {
+		if (queue.offer(row)) {
+			return true;
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the writer thread after it has written everything still queued.
+	 * The thread is not interrupted, since an interrupt during a write would
+	 * lose the batch; it notices within maxFlushDelay.
+	 */
+	public synchronized void stop() {
+		if (thread == null) {
+			return;
+		}
+		running = false;
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	@Override
+	public void run() {
+		List<Object[]> batch = new ArrayList<>(batchSize);
+		while (running) {
+			try {
+				Object[] first = queue.poll(maxFlushDelay, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxFlushDelay);
+				while (running && batch.size() < batchSize) {
+					long wait = deadline - System.nanoTime();
+					Object[] row = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+					if (row == null) {
+						break;
+					}
+					batch.add(row);
+				}
+			} catch (InterruptedException e) {
+				// not from stop(): write what was collected and carry on
+			}
+			write(batch);
+		}
+		// drain what is left after stop()
+		while (queue.drainTo(batch, batchSize) > 0) {
+			write(batch);
+		}
+	}
+
+	private void write(List<Object[]> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		batchRows.record(batch.size());
+		long start = System.nanoTime();
+		try {
+			pool.execute(sql, (connection, statement) -> {
+				binder.prepare(connection, batch);
+				connection.setAutoCommit(false);
+				try {
+					for (Object[] row : batch) {
+						binder.bind(statement, row);
+						statement.addBatch();
+					}
+					statement.executeBatch();
+					connection.commit();
+				} catch (SQLException | RuntimeException e) {
+					statement.clearBatch();
+					connection.rollback();
+					throw e;
+				} finally {
+					connection.setAutoCommit(true);
+				}
+			});
+		} catch (CircuitOpenException e) {
+			pool.getCircuitBreaker().shed(batch.size());
+		} catch (SQLException | RuntimeException e) {
+			// a RuntimeException, e.g. from a binder, must not end the thread
+			failures.increment();
+			System.err.println(new Date() + " " + this.getClass().getName()
+					+ ": Failed to log " + batch.size() + " rows to database! Error: " + e.toString());
+		} finally {
+			batchLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			batch.clear();
+		}
+	}
+}
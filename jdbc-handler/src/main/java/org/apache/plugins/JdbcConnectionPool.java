@@ -0,0 +1,297 @@
+package org.apache.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small connection pool shared by {@link JdbcHandler} and
+ * {@link AccessLogJdbcValve}. Connections are long-lived and keep their
+ * prepared statements cached, so logging a record costs one statement
+ * execution instead of a connect, an authentication and a prepare.
+ *
+ * Configured from ${ctc.config.path}/tomcat_db_logging.properties:
+ * <ul>
+ * <li>database.url, database.driver.classname, database.username,
+ * database.password</li>
+ * <li>database.pool.size - maximum number of open connections (default 4)</li>
+ * <li>database.pool.borrowTimeout - milliseconds to wait for a free
+ * connection (default 5000)</li>
+ * <li>database.pool.validationTimeout - seconds allowed for the validation
+ * query (default 2)</li>
+ * <li>database.pool.validationInterval - connections idle for less than this
+ * many milliseconds are not validated again on borrow (default 30000)</li>
+ * <li>database.breaker.failureThreshold - consecutive connection failures
+ * that open the circuit breaker (default 3)</li>
+ * <li>database.breaker.baseDelay, database.breaker.maxDelay - bounds
+ * (milliseconds) of the exponential backoff while the breaker is open
+ * (default 1000 and 60000)</li>
+ * </ul>
+ */
+public class JdbcConnectionPool {
+
+	private static JdbcConnectionPool instance;
+
+	public static synchronized JdbcConnectionPool getInstance() throws IOException, ClassNotFoundException {
+		if (instance == null) {
+			Properties p = new Properties();
+			String path = System.getProperty("ctc.config.path");
+			URL propertiesUrl = new URL(path + "/tomcat_db_logging.properties");
+			try (InputStream is = propertiesUrl.openStream()) {
+				p.load(is);
+			}
+			instance = new JdbcConnectionPool(p);
+		}
+		return instance;
+	}
+
+	/**
+	 * Work done with a borrowed connection and the cached statement for one
+	 * SQL string.
+	 */
+	public interface Work {
+		void execute(Connection connection, PreparedStatement statement) throws SQLException;
+	}
+
+	private final String dbUrl;
+	private final String user;
+	private final String password;
+
+	private final int size;
+	private final long borrowTimeout;
+	private final int validationTimeout;
+	private final long validationInterval;
+
+	private final Semaphore permits;
+
+	private final CircuitBreaker breaker;
+
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+
+	public JdbcConnectionPool(Properties p) throws ClassNotFoundException {
+		this.dbUrl = p.getProperty("database.url");
+		this.user = p.getProperty("database.username");
+		this.password = p.getProperty("database.password");
+		this.size = Integer.parseInt(p.getProperty("database.pool.size", "4"));
+		this.borrowTimeout = Long.parseLong(p.getProperty("database.pool.borrowTimeout", "5000"));
+		this.validationTimeout = Integer.parseInt(p.getProperty("database.pool.validationTimeout", "2"));
+		this.validationInterval = Long.parseLong(p.getProperty("database.pool.validationInterval", "30000"));
+		this.permits = new Semaphore(size, true);
+		this.breaker = new CircuitBreaker(dbUrl,
+				Integer.parseInt(p.getProperty("database.breaker.failureThreshold", "3")),
+				Long.parseLong(p.getProperty("database.breaker.baseDelay", "1000")),
+				Long.parseLong(p.getProperty("database.breaker.maxDelay", "60000")));
+
+		Class.forName(p.getProperty("database.driver.classname"));
+	}
+
+	public String getUrl() {
+		return dbUrl;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Runs the work with a pooled connection and its cached statement for the
+	 * given SQL. A connection that fails is discarded rather than returned to
+	 * the pool, so the next borrower reconnects; one that only had a statement
+	 * rejected, e.g. for a duplicate key, is kept.
+	 *
+	 * @throws CircuitOpenException without touching the database while the
+	 *         circuit breaker is open
+	 */
+	public void execute(String sql, Work work) throws SQLException {
+		if (!breaker.allowRequest()) {
+			throw new CircuitOpenException(dbUrl);
+		}
+		PooledConnection pc = borrowOrTrip();
+		boolean broken = true;
+		try {
+			run(pc, sql, work);
+			broken = false;
+		} catch (SQLException e) {
+			broken = isConnectionFailure(e);
+			throw e;
+		} finally {
+			release(pc, broken);
+		}
+	}
+
+	/**
+	 * Waits for a pool permit, then takes an idle connection or opens one.
+	 * Only failing to open one counts against the circuit breaker: a borrower
+	 * timing out says the pool is busy, not that the database is down.
+	 */
+	private PooledConnection borrowOrTrip() throws SQLException {
+		try {
+			acquire();
+		} catch (SQLException e) {
+			breaker.cancelProbe();
+			throw e;
+		}
+		try {
+			return connect();
+		} catch (SQLException | RuntimeException e) {
+			breaker.recordFailure(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs the work, telling the circuit breaker how it went
+	 */
+	private void run(PooledConnection pc, String sql, Work work) throws SQLException {
+		try {
+			work.execute(pc.connection, pc.prepare(sql));
+			breaker.recordSuccess();
+		} catch (SQLException e) {
+			if (isConnectionFailure(e)) {
+				breaker.recordFailure(e);
+			} else {
+				breaker.recordSuccess();
+			}
+			throw e;
+		} catch (RuntimeException e) {
+			breaker.recordFailure(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Tells a lost or unreachable database apart from a statement the database
+	 * rejected, which says nothing about its availability.
+	 */
+	private static boolean isConnectionFailure(SQLException e) {
+		return e instanceof SQLRecoverableException || e instanceof SQLTransientConnectionException
+				|| e instanceof SQLNonTransientConnectionException || e instanceof SQLTimeoutException
+				|| e.getSQLState() != null && e.getSQLState().startsWith("08");
+	}
+
+	/**
+	 * Opens a connection if none is idle, so that a configuration problem
+	 * shows up at startup rather than on the first record.
+	 */
+	public void test() throws SQLException {
+		acquire();
+		try {
+			release(connect(), false);
+			breaker.recordSuccess();
+		} catch (SQLException e) {
+			breaker.recordFailure(e);
+			throw e;
+		}
+	}
+
+	private void acquire() throws SQLException {
+		try {
+			if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+				throw new SQLException("Timed out waiting for a pooled connection to " + dbUrl);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a pooled connection to " + dbUrl, e);
+		}
+	}
+
+	/**
+	 * @return an idle connection, or a new one, for the permit just acquired
+	 */
+	private PooledConnection connect() throws SQLException {
+		try {
+			PooledConnection pc;
+			while ((pc = idle.pollFirst()) != null) {
+				if (pc.validate()) {
+					return pc;
+				}
+				pc.discard();
+			}
+			return new PooledConnection(DriverManager.getConnection(dbUrl, user, password));
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private void release(PooledConnection pc, boolean broken) {
+		if (broken) {
+			pc.discard();
+		} else {
+			pc.lastUsed = System.currentTimeMillis();
+			idle.offerFirst(pc);
+		}
+		permits.release();
+	}
+
+	/**
+	 * Closes the idle connections. Connections currently borrowed are closed
+	 * when they come back broken, or reused otherwise.
+	 */
+	public void close() {
+		PooledConnection pc;
+		while ((pc = idle.pollFirst()) != null) {
+			pc.discard();
+		}
+	}
+
+	private class PooledConnection {
+
+		private final Connection connection;
+
+		private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+		private long lastUsed = System.currentTimeMillis();
+
+		PooledConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement statement = statements.get(sql);
+			if (statement == null) {
+				statement = connection.prepareStatement(sql);
+				statements.put(sql, statement);
+			}
+			return statement;
+		}
+
+		boolean validate() {
+			if (System.currentTimeMillis() - lastUsed < validationInterval) {
+				return true;
+			}
+			try {
+				return connection.isValid(validationTimeout);
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+
+		void discard() {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				// already broken
+			}
+			statements.clear();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package org.apache.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replaces the values of one repetitive column (user agent, referer, URL...)
+ * with the integer ids of a dimension table of (id, hash, value), see
+ * log.ddl, so that each row holds 4 bytes instead of the text.
+ *
+ * Ids are kept in an {@link LruCache}. The values a batch misses are resolved
+ * together: one select of them all by hash, one batch insert of those not
+ * found, and a select of the ids the insert (or another writer meanwhile)
+ * assigned. The hash, the unique key of the table, is the first 64 bits of
+ * the value's SHA-256; a value whose hash is taken by a different value is
+ * counted and gets no id.
+ */
+public class JdbcDimension {
+
+	/**
+	 * Hashes per select at most
+	 */
+	private static final int CHUNK = 100;
+
+	private final String table;
+
+	private final LruCache<String, Integer> cache;
+
+	private final String insert;
+
+	private final LongAdder collisions = new LongAdder();
+
+	private final LongAdder unresolved = new LongAdder();
+
+	public JdbcDimension(String table, int cacheSize) {
+		this.table = table;
+		this.cache = new LruCache<>(cacheSize, 16);
+		this.insert = "insert into " + table + " (hash,value) values (?,?)";
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	/**
+	 * @return the cached id of the value, or null
+	 */
+	public Integer get(String value) {
+		return cache.get(value);
+	}
+
+	/**
+	 * Looks up, and inserts where missing, the ids of values that were not
+	 * cached. Runs with the connection's auto-commit on, so that new ids are
+	 * committed before any row referencing them.
+	 *
+	 * @return the ids found, by value; values without an id are left out
+	 */
+	public Map<String, Integer> resolve(Connection connection, Collection<String> values) throws SQLException {
+		Map<Long, String> missing = new LinkedHashMap<>();
+		for (String value : values) {
+			missing.put(hash(value), value);
+		}
+		Map<String, Integer> ids = new HashMap<>();
+		select(connection, missing, ids);
+		if (missing.isEmpty()) {
+			return ids;
+		}
+		try (PreparedStatement statement = connection.prepareStatement(insert)) {
+			try {
+				for (Map.Entry<Long, String> entry : missing.entrySet()) {
+					statement.setLong(1, entry.getKey());
+					statement.setString(2, entry.getValue());
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			} catch (BatchUpdateException e) {
+				if (!isDuplicate(e)) {
+					throw e;
+				}
+				// some inserted by another writer since the select; drivers such
+				// as PostgreSQL abort the rest of the batch, so insert what is
+				// still missing one at a time
+				statement.clearBatch();
+				select(connection, missing, ids);
+				for (Map.Entry<Long, String> entry : missing.entrySet()) {
+					statement.setLong(1, entry.getKey());
+					statement.setString(2, entry.getValue());
+					try {
+						statement.executeUpdate();
+					} catch (SQLException duplicate) {
+						if (!isDuplicate(duplicate)) {
+							throw duplicate;
+						}
+					}
+				}
+			}
+		}
+		select(connection, missing, ids);
+		unresolved.add(missing.size());
+		return ids;
+	}
+
+	/**
+	 * Moves the values found from missing to ids, and to the cache
+	 */
+	private void select(Connection connection, Map<Long, String> missing, Map<String, Integer> ids)
+			throws SQLException {
+		List<Long> hashes = new ArrayList<>(missing.keySet());
+		Set<Long> found = new HashSet<>();
+		for (int start = 0; start < hashes.size(); start += CHUNK) {
+			List<Long> chunk = hashes.subList(start, Math.min(hashes.size(), start + CHUNK));
+			String sql = "select id,hash,value from " + table + " where hash in ("
+					+ String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+			try (PreparedStatement statement = connection.prepareStatement(sql)) {
+				for (int i = 0; i < chunk.size(); i++) {
+					statement.setLong(i + 1, chunk.get(i));
+				}
+				try (ResultSet rs = statement.executeQuery()) {
+					while (rs.next()) {
+						long hash = rs.getLong(2);
+						String value = missing.get(hash);
+						found.add(hash);
+						if (value.equals(rs.getString(3))) {
+							ids.put(value, rs.getInt(1));
+							cache.put(value, rs.getInt(1));
+						} else {
+							collisions.increment();
+						}
+					}
+				}
+			}
+		}
+		missing.keySet().removeAll(found);
+	}
+
+	/**
+	 * @return true for an integrity constraint violation (SQLState 23xxx), here
+	 *         a hash inserted by another writer
+	 */
+	private static boolean isDuplicate(SQLException e) {
+		return e.getSQLState() != null && e.getSQLState().startsWith("23");
+	}
+
+	static long hash(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = hash << 8 | digest[i] & 0xff;
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public long getHits() {
+		return cache.getHits();
+	}
+
+	public long getMisses() {
+		return cache.getMisses();
+	}
+
+	/**
+	 * Values whose hash belongs to another value in the table
+	 */
+	public long getCollisions() {
+		return collisions.sum();
+	}
+
+	/**
+	 * Values left without an id after a resolve
+	 */
+	public long getUnresolved() {
+		return unresolved.sum();
+	}
+}
@@ -1,117 +1,400 @@
 package org.apache.plugins;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.InetAddress;
-import java.net.URL;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.Date;
-import java.util.Properties;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
 
 /**
  * Minimalistic JDBC log handler plugin for java.util.logging.
+ *
+ * With fingerprintInterval set, repeated stack traces are collapsed by a
+ * {@link StackTraceFingerprinter}: the thrown column gets the full trace once
+ * per interval, and a reference with the fingerprint and a count otherwise.
+ * With fingerprintTable also set, full traces go to that table instead, keyed
+ * by fingerprint, and the thrown column only ever gets references. With
+ * workers, the writer thread stores a trace just before the batch that
+ * refers to it.
+ *
+ * With burstThreshold set, storms of the same record are cut short by a
+ * {@link BurstSuppressor}, before they take a connection.
+ *
+ * With workers set, records are inserted in batches by that many
+ * {@link JdbcWriterPool} threads, borrowing a connection per batch, instead of
+ * one by one on the publishing thread. partitionBy ("thread", "logger" or
+ * "time") decides which records go to which worker, in order.
+ *
+ * The database is first connected to in the background: records published
+ * until then wait in a buffer of pendingRecords records.
  */
 public class JdbcHandler extends Handler {
 
 	private static final String SQL = "INSERT INTO log_application(dbTimeStamp,millis,loggerName,message,sequenceNumber,"
 			+ "sourceClassName,sourceMethodName,threadID,hostname,level,thrown) VALUES (NOW(),?,?,?,?,?,?,?,?,?,?)";
-	private String dbUrl;
-	private String driver;
-	private String user;
-	private String password;
+	private JdbcConnectionPool pool;
 
 	private String hostname;
 
+	/**
+	 * Exposed over JMX as org.apache.plugins:type=JdbcHandler
+	 */
+	private final Metrics metrics = new Metrics();
+
+	private final Meter enqueued = metrics.meter("Enqueued");
+
+	private final Histogram jdbcLatency = metrics.histogram("JdbcMicros");
+
+	private final LongAdder retries = metrics.counter("Retries");
+
+	/**
+	 * Records not inserted, after all retries or because the circuit was open
+	 */
+	private final LongAdder dropped = metrics.counter("Dropped");
+
+	/**
+	 * Milliseconds between two full copies of the same stack trace; 0 logs
+	 * every trace in full
+	 */
+	private final long fingerprintInterval = Long.parseLong(property("fingerprintInterval", "0"));
+
+	private final StackTraceFingerprinter fingerprinter = fingerprintInterval > 0
+			? new StackTraceFingerprinter(Integer.parseInt(property("fingerprintCache", "1024")), fingerprintInterval)
+			: null;
+
+	/**
+	 * e.g. log_stack_trace, see log.ddl
+	 */
+	private final String fingerprintTable = property("fingerprintTable", null);
+
+	/**
+	 * Stack traces sent as a reference instead of in full
+	 */
+	private final LongAdder tracesOmitted = metrics.counter("TracesOmitted");
+
+	/**
+	 * Records with the same logger, level and message inserted per
+	 * burstWindow milliseconds; 0 inserts every record
+	 */
+	private final int burstThreshold = Integer.parseInt(property("burstThreshold", "0"));
+
+	private final BurstSuppressor suppressor = burstThreshold > 0
+			? new BurstSuppressor(burstThreshold, Long.parseLong(property("burstWindow", "10000")),
+					Integer.parseInt(property("burstKeys", "1024")))
+			: null;
+
+	/**
+	 * Writer threads; 0 inserts on the publishing thread
+	 */
+	private final int workers = Integer.parseInt(property("workers", "0"));
+
+	/**
+	 * Exposed over JMX as org.apache.plugins:type=JdbcHandler,name=...JdbcHandler/writer
+	 */
+	private final Metrics writerMetrics = new Metrics();
+
+	private JdbcWriterPool writer;
+
+	private final BoundedBuffer<LogRecord> pending = new BoundedBuffer<>(
+			Integer.parseInt(property("pendingRecords", "1024")));
+
+	private final Bootstrap bootstrap = new Bootstrap(getClass().getSimpleName(), this::connect, 1000, 60000);
+
+	private static String property(String name, String defaultValue) {
+		String value = LogManager.getLogManager().getProperty(JdbcHandler.class.getName() + "." + name);
+		return value == null ? defaultValue : value.trim();
+	}
+
 	public JdbcHandler() {
 		try {
 			this.hostname = InetAddress.getLocalHost().getHostName();
+			if (suppressor != null) {
+				metrics.gauge("Suppressed", suppressor::getSuppressed);
+			}
+			metrics.register("JdbcHandler", getClass().getName());
 
-			Properties p = new Properties();
-			String path = System.getProperty("ctc.config.path");
-			URL propertiesUrl = new URL(path + "/tomcat_db_logging.properties");
-			InputStream is = propertiesUrl.openStream();
-			p.load(is);
-			is.close();
-
-			dbUrl = p.getProperty("database.url");
-			driver = p.getProperty("database.driver.classname");
-			user = p.getProperty("database.username");
-			password = p.getProperty("database.password");
-
-			Class.forName(driver);
-			
-			try(Connection test = DriverManager.getConnection(dbUrl, user, password)) {
-				// empty
+			pool = JdbcConnectionPool.getInstance();
+			if (workers > 0) {
+				writer = new JdbcWriterPool(pool, SQL, new JdbcBatchWriter.RowBinder() {
+					@Override
+					public void bind(PreparedStatement statement, Object[] row) throws SQLException {
+						JdbcHandler.this.bind(statement, row);
+					}
+
+					@Override
+					public void prepare(Connection connection, List<Object[]> batch) throws SQLException {
+						storeTraces(connection, batch);
+					}
+				}, workers,
+						JdbcWriterPool.partition(property("partitionBy", "thread")),
+						Integer.parseInt(property("queueSize", "10000")), Integer.parseInt(property("batchSize", "100")),
+						Long.parseLong(property("maxFlushDelay", "1000")), writerMetrics);
+				writerMetrics.register("JdbcHandler", getClass().getName() + "/writer");
+				writer.start();
 			}
-			
+			bootstrap.start();
+
+		} catch (IOException | ClassNotFoundException e) {
+			System.err.println(new Date() + " " + this.getClass().getName() + " FAILED TO CONNECT TO DATABASE " + (pool == null ? null : pool.getUrl()));
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * Runs once in the background. A failed test is not retried: the pool
+	 * reconnects on demand and its circuit breaker sheds records meanwhile.
+	 */
+	private void connect() {
+		try {
+			pool.test();
+
 			LogRecord lr = new LogRecord(Level.CONFIG, "JdbcHandler connected successfully");
 			lr.setLoggerName(this.getClass().getName());
 			lr.setSourceClassName(this.getClass().getName());
-			lr.setSourceMethodName("Constructor");
-			this.publish(lr);
+			lr.setSourceMethodName("connect");
+			this.insert(lr);
 
-			System.out.println(new Date() + " " + this.getClass().getName() + " Connected to database " + dbUrl);
+			System.out.println(new Date() + " " + this.getClass().getName() + " Connected to database " + pool.getUrl());
 
-		} catch (IOException | SQLException | ClassNotFoundException e) {
-			System.err.println(new Date() + " " + this.getClass().getName() + " FAILED TO CONNECT TO DATABASE " + dbUrl);
+		} catch (SQLException e) {
+			System.err.println(new Date() + " " + this.getClass().getName() + " FAILED TO CONNECT TO DATABASE " + pool.getUrl());
 			e.printStackTrace(System.err);
 		}
+		insertPending();
+	}
+
+	private void insertPending() {
+		LogRecord record;
+		while ((record = pending.poll()) != null) {
+			dispatch(record);
+		}
 	}
 
 	@Override
 	public void publish(LogRecord record) {
 
-		if (getFilter() != null && !getFilter().isLoggable(record))
+		if (pool == null || getFilter() != null && !getFilter().isLoggable(record))
 			return;
 
+		if (!bootstrap.isReady()) {
+			if (!pending.offer(record)) {
+				dropped.increment();
+			}
+			return;
+		}
+		if (!pending.isEmpty()) {
+			// published while connect() was finishing
+			insertPending();
+		}
+		dispatch(record);
+	}
+
+	private void dispatch(LogRecord record) {
+		if (suppressor != null) {
+			suppressor.offer(record, this::insert);
+		} else {
+			insert(record);
+		}
+	}
+
+	private void insert(LogRecord record) {
+		enqueued.mark();
+		StackTraceFingerprinter.Trace trace = fingerprinter == null || record.getThrown() == null ? null
+				: fingerprinter.trace(record.getThrown());
+		String thrown = thrown(record.getThrown(), trace);
+		if (fingerprintTable == null || trace == null || !trace.isFull()) {
+			trace = null;
+		}
+		if (writer != null) {
+			if (!writer.offer(Objects.hashCode(record.getLoggerName()), record.getMillis(),
+					new Object[] { record, thrown, trace })) {
+				dropped.increment();
+			}
+			return;
+		}
+		if (trace != null && !storeTrace(trace, record.getThrown())) {
+			dropped.increment();
+			return;
+		}
 		int retries = 3;
 
 		while (--retries >= 0) {
-			try(Connection conn = DriverManager.getConnection(dbUrl, user, password);
-				PreparedStatement pStmtInsert = conn.prepareCall(SQL)) {
-				
-				pStmtInsert.setLong(1, record.getMillis());
-				pStmtInsert.setString(2, record.getLoggerName());
-				pStmtInsert.setString(3, record.getMessage());
-				pStmtInsert.setInt(4, (int) record.getSequenceNumber());
-				pStmtInsert.setString(5, record.getSourceClassName());
-				pStmtInsert.setString(6, record.getSourceMethodName());
-				pStmtInsert.setInt(7, (int) record.getThreadID());
-				pStmtInsert.setString(8, this.hostname);
-				pStmtInsert.setString(9, record.getLevel().getName());
-
-				if (record.getThrown() != null) {
-					StringWriter sw = new StringWriter();
-					record.getThrown().printStackTrace(new PrintWriter(sw));
-					pStmtInsert.setString(10, sw.toString());
-				} else {
-					pStmtInsert.setString(10, null);
-				}
-
-				pStmtInsert.executeUpdate();
+			long start = System.nanoTime();
+			try {
+				pool.execute(SQL, (conn, pStmtInsert) -> {
+					bind(pStmtInsert, record, thrown);
+					pStmtInsert.executeUpdate();
+				});
 				return; // don't retry
 
+			} catch (CircuitOpenException e) {
+				pool.getCircuitBreaker().shed(1);
+				dropped.increment();
+				return;
+
 			} catch (SQLException e) {
 				System.err.println(new Date().toString() + " " + this.getClass().getName() +
 						": Failed to log to database! Will retry another " + retries + " times. Error: " + e.toString());
-				e.printStackTrace(System.err);
+				if (retries > 0) {
+					this.retries.increment();
+				}
+			} finally {
+				jdbcLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			}
+		}
+		dropped.increment();
+	}
+
+	/**
+	 * Binds a { record, thrown, trace to store or null } row queued for a
+	 * writer
+	 */
+	private void bind(PreparedStatement statement, Object[] row) throws SQLException {
+		bind(statement, (LogRecord) row[0], (String) row[1]);
+	}
+
+	private void bind(PreparedStatement pStmtInsert, LogRecord record, String thrown) throws SQLException {
+		pStmtInsert.setLong(1, record.getMillis());
+		pStmtInsert.setString(2, record.getLoggerName());
+		pStmtInsert.setString(3, record.getMessage());
+		pStmtInsert.setInt(4, (int) record.getSequenceNumber());
+		pStmtInsert.setString(5, record.getSourceClassName());
+		pStmtInsert.setString(6, record.getSourceMethodName());
+		pStmtInsert.setInt(7, (int) record.getThreadID());
+		pStmtInsert.setString(8, this.hostname);
+		pStmtInsert.setString(9, record.getLevel().getName());
+
+		pStmtInsert.setString(10, thrown);
+	}
+
+	/**
+	 * @param trace
+	 *            the fingerprinted trace, null without a fingerprinter
+	 * @return the text of the thrown column
+	 */
+	private String thrown(Throwable thrown, StackTraceFingerprinter.Trace trace) {
+		if (thrown == null) {
+			return null;
+		}
+		if (trace == null) {
+			StringWriter sw = new StringWriter();
+			thrown.printStackTrace(new PrintWriter(sw));
+			return sw.toString();
+		}
+		if (fingerprintTable == null) {
+			if (!trace.isFull()) {
+				tracesOmitted.increment();
+			}
+			return trace.getText();
+		}
+		tracesOmitted.increment();
+		return "[" + StackTraceFingerprinter.toHex(trace.getFingerprint()) + "] " + thrown;
+	}
+
+	private String traceSql() {
+		return "INSERT INTO " + fingerprintTable + "(fingerprint,exception,trace,first_seen) VALUES (?,?,?,NOW())";
+	}
+
+	/**
+	 * Stores a trace on the publishing thread, when there are no workers
+	 *
+	 * @return false if the circuit is open
+	 */
+	private boolean storeTrace(StackTraceFingerprinter.Trace trace, Throwable thrown) {
+		try {
+			pool.execute(traceSql(), (conn, statement) -> {
+				bindTrace(statement, trace, thrown);
+				statement.executeUpdate();
+			});
+		} catch (CircuitOpenException e) {
+			pool.getCircuitBreaker().shed(1);
+			return false;
+		} catch (SQLException e) {
+			traceFailed(trace, e);
+		}
+		return true;
+	}
+
+	/**
+	 * Stores the traces a batch refers to, on the writer thread
+	 */
+	private void storeTraces(Connection connection, List<Object[]> batch) throws SQLException {
+		PreparedStatement statement = null;
+		try {
+			for (Object[] row : batch) {
+				StackTraceFingerprinter.Trace trace = (StackTraceFingerprinter.Trace) row[2];
+				if (trace == null) {
+					continue;
+				}
+				if (statement == null) {
+					statement = connection.prepareStatement(traceSql());
+				}
+				try {
+					bindTrace(statement, trace, ((LogRecord) row[0]).getThrown());
+					statement.executeUpdate();
+				} catch (SQLException e) {
+					traceFailed(trace, e);
+				}
 			}
+		} finally {
+			if (statement != null) {
+				statement.close();
+			}
+		}
+	}
+
+	private static void bindTrace(PreparedStatement statement, StackTraceFingerprinter.Trace trace, Throwable thrown)
+			throws SQLException {
+		statement.setString(1, StackTraceFingerprinter.toHex(trace.getFingerprint()));
+		statement.setString(2, thrown.getClass().getName());
+		statement.setString(3, trace.getText());
+	}
+
+	private void traceFailed(StackTraceFingerprinter.Trace trace, SQLException e) {
+		// 23xxx: stored by an earlier interval or process
+		if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+			System.err.println(new Date().toString() + " " + this.getClass().getName()
+					+ ": Failed to store stack trace " + StackTraceFingerprinter.toHex(trace.getFingerprint())
+					+ ". Error: " + e.toString());
 		}
 	}
 
+	/**
+	 * Inserts what is still pending, one last try if the database was never
+	 * connected to, and the summaries of the current burst window, then stops
+	 * the writer
+	 */
 	@Override
 	public void close() {
+		bootstrap.cancel();
+		if (pool != null) {
+			insertPending();
+			if (suppressor != null) {
+				suppressor.close(this::insert);
+			}
+		}
+		if (writer != null) {
+			writer.stop();
+			writerMetrics.unregister();
+		}
+		metrics.unregister();
 	}
 
 	@Override
 	public void flush() {
+		if (suppressor != null && bootstrap.isReady()) {
+			suppressor.expire(this::insert);
+		}
 	}
 }
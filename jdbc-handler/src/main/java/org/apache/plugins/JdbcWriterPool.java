@@ -0,0 +1,152 @@
+package org.apache.plugins;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Several {@link JdbcBatchWriter} workers inserting in parallel, each with its
+ * own queue and thread. Rows are routed by a partition key, so that the rows
+ * of one partition go to one worker and are inserted in order, in batches;
+ * throughput grows with the workers up to what the database, and the pool,
+ * accept.
+ *
+ * Each worker borrows a connection of the {@link JdbcConnectionPool} per
+ * batch, so workers beyond database.pool.size wait their turn with the other
+ * callers instead of holding every connection.
+ */
+public class JdbcWriterPool {
+
+	/**
+	 * What the partition key of a row is
+	 */
+	public enum Partition {
+		/**
+		 * The thread producing the row
+		 */
+		THREAD,
+		/**
+		 * A key of the row, e.g. its remote host or logger
+		 */
+		KEY,
+		/**
+		 * Its time, in buckets of maxFlushDelay: consecutive buckets go to
+		 * consecutive workers
+		 */
+		TIME
+	}
+
+	private final JdbcBatchWriter[] workers;
+
+	private final Partition partition;
+
+	private final long bucket;
+
+	/**
+	 * @param queueSize
+	 *            rows queued at most, split over the workers
+	 * @param metrics
+	 *            gets the workers' BatchSize, BatchJdbcMicros, WriterFailures,
+	 *            QueueDepth and WriterDropped, summed, and the Workers count;
+	 *            prefixed so as not to replace the owner's own Failures and
+	 *            Dropped
+	 */
+	public JdbcWriterPool(JdbcConnectionPool pool, String sql, JdbcBatchWriter.RowBinder binder, int workers,
+			Partition partition, int queueSize, int batchSize, long maxFlushDelay, Metrics metrics) {
+		this.workers = new JdbcBatchWriter[Math.max(1, workers)];
+		this.partition = partition;
+		this.bucket = Math.max(1, maxFlushDelay);
+		Histogram batchRows = metrics.histogram("BatchSize");
+		Histogram batchLatency = metrics.histogram("BatchJdbcMicros");
+		LongAdder failures = metrics.counter("WriterFailures");
+		for (int i = 0; i < this.workers.length; i++) {
+			this.workers[i] = new JdbcBatchWriter(pool, sql, binder, Math.max(1, queueSize / this.workers.length),
+					batchSize, maxFlushDelay, batchRows, batchLatency, failures,
+					JdbcBatchWriter.class.getSimpleName() + (this.workers.length == 1 ? "" : "-" + i));
+		}
+		metrics.gauge("QueueDepth", this::getQueueDepth);
+		metrics.gauge("WriterDropped", this::getDropped);
+		metrics.gauge("Workers", () -> this.workers.length);
+	}
+
+	/**
+	 * @param name
+	 *            "thread", "time" or anything else for KEY
+	 */
+	public static Partition partition(String name) {
+		if ("thread".equalsIgnoreCase(name)) {
+			return Partition.THREAD;
+		} else if ("time".equalsIgnoreCase(name)) {
+			return Partition.TIME;
+		}
+		return Partition.KEY;
+	}
+
+	public Partition getPartition() {
+		return partition;
+	}
+
+	/**
+	 * Queues a row for insertion without blocking. Rows that do not fit the
+	 * queue of their worker are counted and discarded.
+	 *
+	 * @param key
+	 *            the hash of the row's key, used with {@link Partition#KEY}
+	 * @param millis
+	 *            the row's time, used with {@link Partition#TIME}
+	 */
+	public boolean offer(int key, long millis, Object[] row) {
+		return worker(key, millis).offer(row);
+	}
+
+	private JdbcBatchWriter worker(int key, long millis) {
+		if (workers.length == 1) {
+			return workers[0];
+		}
+		long hash;
+		switch (partition) {
+		case THREAD:
+			hash = Thread.currentThread().getId();
+			break;
+		case TIME:
+			hash = millis / bucket;
+			break;
+		default:
+			hash = key;
+		}
+		return workers[(int) ((hash & Long.MAX_VALUE) % workers.length)];
+	}
+
+	public void start() {
+		for (JdbcBatchWriter worker : workers) {
+			worker.start();
+		}
+	}
+
+	/**
+	 * Stops the workers after they have written everything still queued
+	 */
+	public void stop() {
+		for (JdbcBatchWriter worker : workers) {
+			worker.stop();
+		}
+	}
+
+	public int getWorkers() {
+		return workers.length;
+	}
+
+	public long getDropped() {
+		long dropped = 0;
+		for (JdbcBatchWriter worker : workers) {
+			dropped += worker.getDropped();
+		}
+		return dropped;
+	}
+
+	public long getQueueDepth() {
+		long depth = 0;
+		for (JdbcBatchWriter worker : workers) {
+			depth += worker.getQueueDepth();
+		}
+		return depth;
+	}
+}
@@ -0,0 +1,168 @@
+package org.apache.plugins;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.AccessLogValve;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+public class AccessLogJdbcValveTest {
+
+	private static final String DATABASE = H2.POOL;
+
+	static final String PATTERN = "http_status=%s,bytes_sent=%b,bytes_total=%B,time_elapsed=%D,"
+			+ "time_to_first_byte=%F,server_ts=%t,url=%U";
+
+	@ClassRule
+	public static TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void configure() throws IOException {
+		H2.configurePool(folder.getRoot());
+	}
+
+	private static AccessLogJdbcValve valve(String table) {
+		AccessLogJdbcValve valve = new AccessLogJdbcValve() {
+			@Override
+			protected void initInternal() {
+				// no container to register with
+			}
+		};
+		valve.setPattern(PATTERN);
+		valve.setTable(table);
+		return valve;
+	}
+
+	static void createTable(String table) throws SQLException {
+		H2.execute(DATABASE, "create table " + table + " (http_status int, bytes_sent bigint, bytes_total bigint,"
+				+ " time_elapsed bigint, time_to_first_byte bigint, server_ts timestamp, url varchar(100))");
+	}
+
+	/**
+	 * Logs a 200 of 1234 bytes, its first byte after 42 ms, and a 304 with no
+	 * body, not committed
+	 */
+	static void log(AccessLogValve valve) {
+		Request request = Mockito.mock(Request.class, Mockito.RETURNS_DEEP_STUBS);
+		org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+		Mockito.when(request.getCoyoteRequest()).thenReturn(coyoteRequest);
+		Mockito.when(request.getRequestURI()).thenReturn("/a");
+		Response response = Mockito.mock(Response.class, Mockito.RETURNS_DEEP_STUBS);
+		org.apache.coyote.Response coyoteResponse = new org.apache.coyote.Response();
+		coyoteResponse.setCommitted(true);
+		coyoteRequest.setStartTime(coyoteResponse.getCommitTime() - 42);
+		Mockito.when(response.getCoyoteResponse()).thenReturn(coyoteResponse);
+		Mockito.when(response.getStatus()).thenReturn(200);
+		Mockito.when(response.getBytesWritten(false)).thenReturn(1234L);
+		valve.log(request, response, 7);
+
+		request = Mockito.mock(Request.class, Mockito.RETURNS_DEEP_STUBS);
+		Mockito.when(request.getCoyoteRequest()).thenReturn(new org.apache.coyote.Request());
+		Mockito.when(request.getRequestURI()).thenReturn("/b");
+		response = Mockito.mock(Response.class, Mockito.RETURNS_DEEP_STUBS);
+		Mockito.when(response.getCoyoteResponse()).thenReturn(new org.apache.coyote.Response());
+		Mockito.when(response.getStatus()).thenReturn(304);
+		Mockito.when(response.getBytesWritten(false)).thenReturn(0L);
+		valve.log(request, response, 3);
+	}
+
+	static void await(String table, long rows) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (H2.count(DATABASE, table) < rows && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	static void assertTyped(String table, long before) throws SQLException {
+		try (Connection connection = H2.connect(DATABASE); Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("select * from " + table + " order by url")) {
+			Assert.assertTrue(rs.next());
+			Assert.assertEquals(200, rs.getObject("http_status"));
+			Assert.assertEquals(1234L, rs.getObject("bytes_sent"));
+			Assert.assertEquals(1234L, rs.getObject("bytes_total"));
+			Assert.assertEquals(7L, rs.getObject("time_elapsed"));
+			Assert.assertEquals(42L, rs.getObject("time_to_first_byte"));
+			Timestamp ts = rs.getTimestamp("server_ts");
+			Assert.assertTrue(ts.getTime() >= before && ts.getTime() <= System.currentTimeMillis());
+			Assert.assertEquals("/a", rs.getString("url"));
+
+			Assert.assertTrue(rs.next());
+			Assert.assertEquals(304, rs.getObject("http_status"));
+			// %b logs '-' for no body, %B 0
+			Assert.assertNull(rs.getObject("bytes_sent"));
+			Assert.assertEquals(0L, rs.getObject("bytes_total"));
+			Assert.assertEquals(3L, rs.getObject("time_elapsed"));
+			// never committed
+			Assert.assertNull(rs.getObject("time_to_first_byte"));
+			Assert.assertEquals("/b", rs.getString("url"));
+			Assert.assertFalse(rs.next());
+		}
+	}
+
+	@Test
+	public void rejectsAPairWithoutColumn() {
+		try {
+			valve("log_unused").setPattern("url=%U,%s");
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("'%s'"));
+		}
+	}
+
+	@Test
+	public void bindsNativeTypes() throws Exception {
+		createTable("log_sync");
+		AccessLogJdbcValve valve = valve("log_sync");
+		long before = System.currentTimeMillis() / 1000 * 1000;
+		valve.start();
+		try {
+			log(valve);
+			await("log_sync", 2);
+		} finally {
+			valve.stop();
+		}
+		assertTyped("log_sync", before);
+	}
+
+	@Test
+	public void bindsNativeTypesOnTheWriterThread() throws Exception {
+		createTable("log_async");
+		AccessLogJdbcValve valve = valve("log_async");
+		valve.setAsync(true);
+		long before = System.currentTimeMillis() / 1000 * 1000;
+		valve.start();
+		try {
+			log(valve);
+		} finally {
+			valve.stop();
+		}
+		assertTyped("log_async", before);
+	}
+
+	@Test
+	public void bindsNativeTypesRenderedOnTheWriterThread() throws Exception {
+		createTable("log_deferred");
+		AccessLogJdbcValve valve = valve("log_deferred");
+		valve.setAsync(true);
+		valve.setDeferred(true);
+		long before = System.currentTimeMillis() / 1000 * 1000;
+		valve.start();
+		try {
+			log(valve);
+		} finally {
+			valve.stop();
+		}
+		assertTyped("log_deferred", before);
+	}
+}
@@ -0,0 +1,76 @@
+package org.apache.plugins;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * In-memory H2 databases for the tests, one per name, kept until the JVM
+ * exits
+ */
+final class H2 {
+
+	/**
+	 * The database of JdbcConnectionPool.getInstance(), shared by the tests
+	 * since the pool is created once per JVM
+	 */
+	static final String POOL = "pool";
+
+	private H2() {
+	}
+
+	static String url(String database) {
+		return "jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1";
+	}
+
+	/**
+	 * @return the tomcat_db_logging.properties of a pool on the database
+	 */
+	static Properties properties(String database) {
+		Properties p = new Properties();
+		p.setProperty("database.url", url(database));
+		p.setProperty("database.driver.classname", "org.h2.Driver");
+		p.setProperty("database.username", "sa");
+		p.setProperty("database.password", "");
+		return p;
+	}
+
+	/**
+	 * Points JdbcConnectionPool.getInstance() at the {@link #POOL} database
+	 */
+	static void configurePool(File folder) throws IOException {
+		File properties = new File(folder, "tomcat_db_logging.properties");
+		try (OutputStream out = new FileOutputStream(properties)) {
+			properties(POOL).store(out, null);
+		}
+		String path = folder.toURI().toString();
+		System.setProperty("ctc.config.path", path.substring(0, path.length() - 1));
+	}
+
+	static Connection connect(String database) throws SQLException {
+		return DriverManager.getConnection(url(database), "sa", "");
+	}
+
+	static void execute(String database, String... sql) throws SQLException {
+		try (Connection connection = connect(database); Statement statement = connection.createStatement()) {
+			for (String s : sql) {
+				statement.execute(s);
+			}
+		}
+	}
+
+	static long count(String database, String table) throws SQLException {
+		try (Connection connection = connect(database); Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("select count(*) from " + table)) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+}
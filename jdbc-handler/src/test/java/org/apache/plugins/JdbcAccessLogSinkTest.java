@@ -0,0 +1,48 @@
+package org.apache.plugins;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JdbcAccessLogSinkTest {
+
+	@ClassRule
+	public static TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void configure() throws IOException {
+		H2.configurePool(folder.getRoot());
+	}
+
+	private static MultiSinkAccessLogValve valve() {
+		MultiSinkAccessLogValve valve = new MultiSinkAccessLogValve() {
+			@Override
+			protected void initInternal() {
+				// no container to register with
+			}
+		};
+		valve.setPattern(AccessLogJdbcValveTest.PATTERN);
+		valve.setSinks(JdbcAccessLogSink.class.getName());
+		return valve;
+	}
+
+	@Test
+	public void bindsNativeTypes() throws Exception {
+		// the sink's default table
+		AccessLogJdbcValveTest.createTable("log_access");
+		MultiSinkAccessLogValve valve = valve();
+		long before = System.currentTimeMillis() / 1000 * 1000;
+		valve.start();
+		try {
+			AccessLogJdbcValveTest.log(valve);
+		} finally {
+			valve.stop();
+		}
+		AccessLogJdbcValveTest.assertTyped("log_access", before);
+		Assert.assertEquals(2, H2.count(H2.POOL, "log_access"));
+	}
+}
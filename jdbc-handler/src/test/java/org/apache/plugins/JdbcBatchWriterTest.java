@@ -0,0 +1,103 @@
+package org.apache.plugins;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JdbcBatchWriterTest {
+
+	private static JdbcConnectionPool pool(String database) throws Exception {
+		H2.execute(database, "create table log_test (seq int, message varchar(100))");
+		return new JdbcConnectionPool(H2.properties(database));
+	}
+
+	private static JdbcBatchWriter writer(JdbcConnectionPool pool, int batchSize, Metrics metrics) {
+		return new JdbcBatchWriter(pool, "insert into log_test (seq,message) values (?,?)", (statement, row) -> {
+			statement.setInt(1, (Integer) row[0]);
+			statement.setString(2, (String) row[1]);
+		}, 1000, batchSize, 100, metrics);
+	}
+
+	@Test
+	public void insertsInBatches() throws Exception {
+		Metrics metrics = new Metrics();
+		JdbcBatchWriter writer = writer(pool("batches"), 100, metrics);
+		for (int i = 0; i < 250; i++) {
+			Assert.assertTrue(writer.offer(new Object[] { i, "message " + i }));
+		}
+		writer.start();
+		writer.stop();
+
+		Assert.assertEquals(250, H2.count("batches", "log_test"));
+		Assert.assertEquals(3L, metrics.getAttribute("BatchSizeCount"));
+		Assert.assertEquals(100L, metrics.getAttribute("BatchSizeMax"));
+		Assert.assertEquals(0L, metrics.getAttribute("WriterFailures"));
+		try (Connection connection = H2.connect("batches"); Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("select seq,message from log_test order by seq")) {
+			for (int i = 0; i < 250; i++) {
+				Assert.assertTrue(rs.next());
+				Assert.assertEquals(i, rs.getInt(1));
+				Assert.assertEquals("message " + i, rs.getString(2));
+			}
+		}
+	}
+
+	@Test
+	public void flushesOnStop() throws Exception {
+		JdbcBatchWriter writer = writer(pool("stop"), 100, new Metrics());
+		writer.start();
+		for (int i = 0; i < 10; i++) {
+			writer.offer(new Object[] { i, null });
+		}
+		writer.stop();
+		Assert.assertEquals(10, H2.count("stop", "log_test"));
+		Assert.assertEquals(0, writer.getQueueDepth());
+	}
+
+	@Test
+	public void dropsWhatDoesNotFit() throws Exception {
+		Metrics metrics = new Metrics();
+		JdbcBatchWriter writer = new JdbcBatchWriter(pool("full"), "insert into log_test (seq) values (?)",
+				(statement, row) -> statement.setInt(1, (Integer) row[0]), 10, 100, 100, metrics);
+		for (int i = 0; i < 15; i++) {
+			writer.offer(new Object[] { i });
+		}
+		Assert.assertEquals(5, writer.getDropped());
+		Assert.assertEquals(5L, metrics.getAttribute("WriterDropped"));
+		writer.start();
+		writer.stop();
+		Assert.assertEquals(10, H2.count("full", "log_test"));
+	}
+
+	@Test
+	public void failedBatchRolledBack() throws Exception {
+		Metrics metrics = new Metrics();
+		JdbcBatchWriter writer = writer(pool("rollback"), 100, metrics);
+		writer.offer(new Object[] { 1, "fits" });
+		writer.offer(new Object[] { 2, new String(new char[200]) });
+		writer.start();
+		writer.stop();
+		Assert.assertEquals(0, H2.count("rollback", "log_test"));
+		Assert.assertEquals(1L, metrics.getAttribute("WriterFailures"));
+	}
+
+	@Test
+	public void survivesABinderException() throws Exception {
+		Metrics metrics = new Metrics();
+		JdbcBatchWriter writer = writer(pool("binder"), 100, metrics);
+		writer.start();
+		// not an Integer: the binder throws ClassCastException
+		writer.offer(new Object[] { "1", "bad" });
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((Long) metrics.getAttribute("WriterFailures") == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1L, metrics.getAttribute("WriterFailures"));
+		writer.offer(new Object[] { 2, "good" });
+		writer.stop();
+		Assert.assertEquals(1, H2.count("binder", "log_test"));
+	}
+}
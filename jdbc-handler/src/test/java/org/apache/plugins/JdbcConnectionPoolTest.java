@@ -0,0 +1,148 @@
+package org.apache.plugins;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JdbcConnectionPoolTest {
+
+	private static final String SELECT = "select 1";
+
+	/**
+	 * @return the connection the work was given
+	 */
+	private static Connection execute(JdbcConnectionPool pool, SQLException failure) throws SQLException {
+		Connection[] used = new Connection[1];
+		pool.execute(SELECT, (connection, statement) -> {
+			used[0] = connection;
+			statement.executeQuery().close();
+			if (failure != null) {
+				throw failure;
+			}
+		});
+		return used[0];
+	}
+
+	@Test
+	public void reusesConnections() throws Exception {
+		JdbcConnectionPool pool = new JdbcConnectionPool(H2.properties("reuse"));
+		Connection first = execute(pool, null);
+		Assert.assertSame(first, execute(pool, null));
+		Assert.assertFalse(first.isClosed());
+	}
+
+	@Test
+	public void replacesAConnectionAfterAFailure() throws Exception {
+		JdbcConnectionPool pool = new JdbcConnectionPool(H2.properties("replace"));
+		Connection first = execute(pool, null);
+		try {
+			execute(pool, new SQLException("connection lost", "08006"));
+			Assert.fail();
+		} catch (SQLException e) {
+			Assert.assertEquals("08006", e.getSQLState());
+		}
+		Assert.assertTrue(first.isClosed());
+
+		Connection replacement = execute(pool, null);
+		Assert.assertNotSame(first, replacement);
+		Assert.assertFalse(replacement.isClosed());
+	}
+
+	@Test
+	public void keepsAConnectionAfterARejectedStatement() throws Exception {
+		JdbcConnectionPool pool = new JdbcConnectionPool(H2.properties("rejected"));
+		Connection first = execute(pool, null);
+		try {
+			execute(pool, new SQLException("duplicate key", "23505"));
+			Assert.fail();
+		} catch (SQLException e) {
+			Assert.assertEquals("23505", e.getSQLState());
+		}
+		Assert.assertFalse(first.isClosed());
+		Assert.assertSame(first, execute(pool, null));
+	}
+
+	@Test
+	public void breakerShedsWhileOpen() throws Exception {
+		Properties p = H2.properties("breaker");
+		p.setProperty("database.breaker.failureThreshold", "2");
+		p.setProperty("database.breaker.baseDelay", "60000");
+		JdbcConnectionPool pool = new JdbcConnectionPool(p);
+		H2.execute("breaker", "create table log_test (seq int)");
+
+		// rejected statements say nothing about the database
+		for (int i = 0; i < 3; i++) {
+			try {
+				execute(pool, new SQLException("syntax", "42000"));
+			} catch (SQLException e) {
+				// expected
+			}
+		}
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, pool.getCircuitBreaker().getState());
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				execute(pool, new SQLException("connection lost", "08006"));
+			} catch (SQLException e) {
+				// expected
+			}
+		}
+		Assert.assertEquals(CircuitBreaker.State.OPEN, pool.getCircuitBreaker().getState());
+		try {
+			pool.execute(SELECT, (connection, statement) -> Assert.fail("ran while open"));
+			Assert.fail();
+		} catch (CircuitOpenException e) {
+			// expected
+		}
+
+		JdbcBatchWriter writer = new JdbcBatchWriter(pool, "insert into log_test (seq) values (?)",
+				(statement, row) -> statement.setInt(1, (Integer) row[0]), 100, 100, 100, new Metrics());
+		for (int i = 0; i < 5; i++) {
+			writer.offer(new Object[] { i });
+		}
+		writer.start();
+		writer.stop();
+		Assert.assertEquals(5, pool.getCircuitBreaker().getShed());
+		Assert.assertEquals(0, H2.count("breaker", "log_test"));
+	}
+
+	@Test
+	public void borrowTimeoutIsNotAFailure() throws Exception {
+		Properties p = H2.properties("busy");
+		p.setProperty("database.pool.size", "1");
+		p.setProperty("database.pool.borrowTimeout", "50");
+		p.setProperty("database.breaker.failureThreshold", "1");
+		JdbcConnectionPool pool = new JdbcConnectionPool(p);
+		pool.execute(SELECT, (connection, statement) -> {
+			// the only connection is taken
+			for (int i = 0; i < 3; i++) {
+				try {
+					execute(pool, null);
+					Assert.fail();
+				} catch (SQLException e) {
+					Assert.assertTrue(e.getMessage().startsWith("Timed out"));
+				}
+			}
+		});
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, pool.getCircuitBreaker().getState());
+		execute(pool, null);
+	}
+
+	@Test
+	public void testOpensAConnection() throws Exception {
+		Properties p = H2.properties("test");
+		new JdbcConnectionPool(p).test();
+
+		p.setProperty("database.url", "jdbc:h2:mem:missing;IFEXISTS=TRUE");
+		JdbcConnectionPool missing = new JdbcConnectionPool(p);
+		try {
+			missing.test();
+			Assert.fail();
+		} catch (SQLException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package org.apache.plugins;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JdbcDimensionTest {
+
+	private static void createTable(String database) throws SQLException {
+		H2.execute(database, "create table log_user_agent (id int auto_increment primary key,"
+				+ " hash bigint not null unique, value varchar(1000) not null)");
+	}
+
+	@Test
+	public void resolvesAndReusesIds() throws Exception {
+		createTable("dimension");
+		JdbcDimension dimension = new JdbcDimension("log_user_agent", 100);
+		Map<String, Integer> ids;
+		try (Connection connection = H2.connect("dimension")) {
+			ids = dimension.resolve(connection, Arrays.asList("curl/8.0", "Mozilla/5.0"));
+		}
+		Assert.assertEquals(2, ids.size());
+		Assert.assertNotEquals(ids.get("curl/8.0"), ids.get("Mozilla/5.0"));
+		Assert.assertEquals(2, H2.count("dimension", "log_user_agent"));
+
+		// cached
+		Assert.assertEquals(ids.get("curl/8.0"), dimension.get("curl/8.0"));
+		Assert.assertEquals(1, dimension.getHits());
+		Assert.assertNull(dimension.get("Wget/1.21"));
+
+		// known to the table, by another writer with an empty cache
+		JdbcDimension other = new JdbcDimension("log_user_agent", 100);
+		try (Connection connection = H2.connect("dimension")) {
+			Map<String, Integer> again = other.resolve(connection, Arrays.asList("curl/8.0", "Wget/1.21"));
+			Assert.assertEquals(ids.get("curl/8.0"), again.get("curl/8.0"));
+			Assert.assertNotNull(again.get("Wget/1.21"));
+		}
+		Assert.assertEquals(3, H2.count("dimension", "log_user_agent"));
+		Assert.assertEquals(0, dimension.getUnresolved() + other.getUnresolved());
+	}
+
+	/**
+	 * Calls the target, unwrapping what it throws
+	 */
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * @return the connection, whose insert statements abort their batch with
+	 *         the exception, after running the SQL
+	 */
+	private static Connection abortingBatches(Connection connection, String sql, BatchUpdateException e) {
+		ClassLoader loader = JdbcDimensionTest.class.getClassLoader();
+		return (Connection) Proxy.newProxyInstance(loader, new Class<?>[] { Connection.class },
+				(proxy, method, args) -> {
+					Object result = invoke(connection, method, args);
+					if (!method.getName().equals("prepareStatement") || !((String) args[0]).startsWith("insert")) {
+						return result;
+					}
+					PreparedStatement statement = (PreparedStatement) result;
+					return Proxy.newProxyInstance(loader, new Class<?>[] { PreparedStatement.class },
+							(p, m, a) -> {
+								if (!m.getName().equals("executeBatch")) {
+									return invoke(statement, m, a);
+								}
+								try (Statement other = connection.createStatement()) {
+									other.execute(sql);
+								}
+								statement.clearBatch();
+								throw e;
+							});
+				});
+	}
+
+	/**
+	 * Another writer inserts b between the select and the batch insert of a,
+	 * b and c; like PostgreSQL, the driver then aborts the whole batch
+	 */
+	@Test
+	public void insertsTheRestAfterAConflict() throws Exception {
+		createTable("conflict");
+		JdbcDimension dimension = new JdbcDimension("log_user_agent", 100);
+		try (Connection connection = H2.connect("conflict")) {
+			Map<String, Integer> ids = dimension.resolve(abortingBatches(connection,
+					"insert into log_user_agent (hash,value) values (" + JdbcDimension.hash("b") + ",'b')",
+					new BatchUpdateException("duplicate key", "23505", new int[0])), Arrays.asList("a", "b", "c"));
+			Assert.assertEquals(3, ids.size());
+			Assert.assertEquals(0, dimension.getUnresolved());
+		}
+		Assert.assertEquals(3, H2.count("conflict", "log_user_agent"));
+	}
+
+	@Test
+	public void rethrowsABatchFailureWithoutState() throws Exception {
+		createTable("stateless");
+		JdbcDimension dimension = new JdbcDimension("log_user_agent", 100);
+		try (Connection connection = H2.connect("stateless")) {
+			dimension.resolve(abortingBatches(connection, "select 1", new BatchUpdateException()),
+					Arrays.asList("a"));
+			Assert.fail();
+		} catch (BatchUpdateException e) {
+			Assert.assertNull(e.getSQLState());
+		}
+	}
+
+	@Test
+	public void rethrowsOtherInsertFailures() throws Exception {
+		H2.execute("failure", "create table log_user_agent (id int auto_increment primary key,"
+				+ " hash bigint not null unique, value varchar(3) not null)");
+		JdbcDimension dimension = new JdbcDimension("log_user_agent", 100);
+		try (Connection connection = H2.connect("failure")) {
+			dimension.resolve(connection, Arrays.asList("too long"));
+			Assert.fail();
+		} catch (SQLException e) {
+			Assert.assertFalse(e.getSQLState().startsWith("23"));
+		}
+	}
+}
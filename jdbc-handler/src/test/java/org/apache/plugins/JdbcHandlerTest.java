@@ -0,0 +1,166 @@
+package org.apache.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JdbcHandlerTest {
+
+	@ClassRule
+	public static TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void configure() throws Exception {
+		H2.configurePool(folder.getRoot());
+		H2.execute(H2.POOL, "create table if not exists log_application (id bigint auto_increment primary key,"
+				+ " level varchar(7), hostname varchar(255), dbTimeStamp timestamp, millis bigint,"
+				+ " loggerName varchar(255), message clob, sequenceNumber int, sourceClassName varchar(255),"
+				+ " sourceMethodName varchar(255), threadID int, thrown clob)",
+				"create table if not exists log_stack_trace (fingerprint char(16) primary key,"
+						+ " exception varchar(255), trace clob, first_seen timestamp)");
+	}
+
+	@After
+	public void restore() throws IOException {
+		LogManager.getLogManager().readConfiguration();
+	}
+
+	private static JdbcHandler handler(String properties) throws Exception {
+		LogManager.getLogManager().readConfiguration(new ByteArrayInputStream(
+				("org.apache.plugins.JdbcHandler.maxFlushDelay = 10\n" + properties).getBytes(StandardCharsets.UTF_8)));
+		String connected = "where message = 'JdbcHandler connected successfully'";
+		long before = count("log_application", connected);
+		JdbcHandler handler = new JdbcHandler();
+		await("log_application", connected, before + 1);
+		return handler;
+	}
+
+	private static long count(String table, String where) throws SQLException {
+		try (Connection connection = H2.connect(H2.POOL);
+				PreparedStatement statement = connection.prepareStatement("select count(*) from " + table + " " + where);
+				ResultSet rs = statement.executeQuery()) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+
+	private static void await(String table, String where, long rows) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (count(table, where) < rows && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(rows, count(table, where));
+	}
+
+	private static List<String> thrown(String logger) throws SQLException {
+		List<String> thrown = new ArrayList<>();
+		try (Connection connection = H2.connect(H2.POOL);
+				PreparedStatement statement = connection
+						.prepareStatement("select thrown from log_application where loggerName = ? order by id")) {
+			statement.setString(1, logger);
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					thrown.add(rs.getString(1));
+				}
+			}
+		}
+		return thrown;
+	}
+
+	/**
+	 * Publishes three records with the same trace, thrown by a class of its
+	 * own so that its fingerprint is new
+	 */
+	private static void publish(JdbcHandler handler, String logger, RuntimeException e) {
+		for (int i = 0; i < 3; i++) {
+			LogRecord record = new LogRecord(Level.SEVERE, "failed " + i);
+			record.setLoggerName(logger);
+			record.setSourceClassName(JdbcHandlerTest.class.getName());
+			record.setSourceMethodName("publish");
+			record.setThrown(e);
+			handler.publish(record);
+		}
+	}
+
+	private static void assertStoredOnce(String logger, Class<?> exception) throws Exception {
+		List<String> thrown = thrown(logger);
+		Assert.assertEquals(3, thrown.size());
+		String reference = thrown.get(0);
+		Assert.assertTrue(reference, reference.startsWith("[") && reference.contains(exception.getName()));
+		Assert.assertEquals(reference, thrown.get(2));
+		String fingerprint = reference.substring(1, reference.indexOf(']'));
+		Assert.assertEquals(1, count("log_stack_trace",
+				"where fingerprint = '" + fingerprint + "' and exception = '" + exception.getName() + "'"));
+	}
+
+	@SuppressWarnings("serial")
+	private static class WriterFailure extends RuntimeException {
+	}
+
+	@SuppressWarnings("serial")
+	private static class PublisherFailure extends RuntimeException {
+	}
+
+	@Test
+	public void writerStoresTheTrace() throws Exception {
+		JdbcHandler handler = handler("org.apache.plugins.JdbcHandler.workers = 1\n"
+				+ "org.apache.plugins.JdbcHandler.fingerprintInterval = 60000\n"
+				+ "org.apache.plugins.JdbcHandler.fingerprintTable = log_stack_trace\n");
+		try {
+			publish(handler, "writer", new WriterFailure());
+			await("log_application", "where loggerName = 'writer'", 3);
+		} finally {
+			handler.close();
+		}
+		assertStoredOnce("writer", WriterFailure.class);
+	}
+
+	@Test
+	public void publisherStoresTheTraceWithoutWorkers() throws Exception {
+		JdbcHandler handler = handler("org.apache.plugins.JdbcHandler.fingerprintInterval = 60000\n"
+				+ "org.apache.plugins.JdbcHandler.fingerprintTable = log_stack_trace\n");
+		try {
+			publish(handler, "publisher", new PublisherFailure());
+		} finally {
+			handler.close();
+		}
+		assertStoredOnce("publisher", PublisherFailure.class);
+	}
+
+	@Test
+	public void closeInsertsTheBurstSummaries() throws Exception {
+		JdbcHandler handler = handler("org.apache.plugins.JdbcHandler.workers = 1\n"
+				+ "org.apache.plugins.JdbcHandler.burstThreshold = 2\n"
+				+ "org.apache.plugins.JdbcHandler.burstWindow = 600000\n");
+		try {
+			for (int i = 0; i < 5; i++) {
+				LogRecord record = new LogRecord(Level.WARNING, "storm");
+				record.setLoggerName("burst");
+				record.setSourceClassName(JdbcHandlerTest.class.getName());
+				record.setSourceMethodName("closeInsertsTheBurstSummaries");
+				handler.publish(record);
+			}
+		} finally {
+			handler.close();
+		}
+		Assert.assertEquals(2, count("log_application", "where loggerName = 'burst' and message = 'storm'"));
+		Assert.assertEquals(1,
+				count("log_application", "where loggerName = 'burst' and message = 'storm (repeated 3 times)'"));
+	}
+}
@@ -0,0 +1,73 @@
+package org.apache.plugins;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JdbcWriterPoolTest {
+
+	private static final String INSERT = "insert into log_test (partition_key,seq) values (?,?)";
+
+	private static JdbcWriterPool writers(JdbcConnectionPool pool, int workers, Metrics metrics) {
+		return new JdbcWriterPool(pool, INSERT, (statement, row) -> {
+			statement.setInt(1, (Integer) row[0]);
+			statement.setInt(2, (Integer) row[1]);
+		}, workers, JdbcWriterPool.Partition.KEY, 10000, 10, 100, metrics);
+	}
+
+	@Test
+	public void keepsEachPartitionInOrder() throws Exception {
+		H2.execute("partitions",
+				"create table log_test (id bigint auto_increment primary key, partition_key int, seq int)");
+		Metrics metrics = new Metrics();
+		JdbcWriterPool writers = writers(new JdbcConnectionPool(H2.properties("partitions")), 4, metrics);
+		writers.start();
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertTrue(writers.offer(i % 10, 0, new Object[] { i % 10, i }));
+		}
+		writers.stop();
+
+		Assert.assertEquals(1000, H2.count("partitions", "log_test"));
+		Assert.assertEquals(4L, metrics.getAttribute("Workers"));
+		Assert.assertEquals(0L, metrics.getAttribute("WriterDropped"));
+		Map<Integer, Integer> last = new HashMap<>();
+		try (Connection connection = H2.connect("partitions"); Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("select partition_key,seq from log_test order by id")) {
+			while (rs.next()) {
+				Integer previous = last.put(rs.getInt(1), rs.getInt(2));
+				Assert.assertTrue(previous == null || previous < rs.getInt(2));
+			}
+		}
+		Assert.assertEquals(10, last.size());
+	}
+
+	@Test
+	public void leavesConnectionsToOtherCallers() throws Exception {
+		H2.execute("shared", "create table log_test (partition_key int, seq int)");
+		Properties p = H2.properties("shared");
+		p.setProperty("database.pool.size", "2");
+		p.setProperty("database.pool.borrowTimeout", "2000");
+		JdbcConnectionPool pool = new JdbcConnectionPool(p);
+		JdbcWriterPool writers = writers(pool, 6, new Metrics());
+		writers.start();
+		try {
+			for (int round = 0; round < 20; round++) {
+				for (int i = 0; i < 60; i++) {
+					writers.offer(i, 0, new Object[] { i, round });
+				}
+				// a synchronous caller still gets a connection between batches
+				pool.execute("select 1", (connection, statement) -> statement.executeQuery().close());
+			}
+		} finally {
+			writers.stop();
+		}
+		Assert.assertEquals(1200, H2.count("shared", "log_test"));
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, pool.getCircuitBreaker().getState());
+	}
+}
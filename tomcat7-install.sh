@@ -1,7 +1,8 @@
 #!/bin/bash
 
-rm -fv /usr/share/tomcat7/lib/{tomcat7-conf-1.0-RELEASE,jdbc-handler-*,cloudwatch-handler-*}.jar
+rm -fv /usr/share/tomcat7/lib/{tomcat7-conf-1.0-RELEASE,handler-common-*,jdbc-handler-*,cloudwatch-handler-*}.jar
 
+cp -v handler-common/target/handler-common-*.jar /usr/share/tomcat7/lib/
 cp -v jdbc-handler/target/jdbc-handler-*.jar /usr/share/tomcat7/lib/
 cp -v cloudwatch-handler/target/cloudwatch-handler-*-shaded.jar /usr/share/tomcat7/lib/
 
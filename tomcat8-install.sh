@@ -1,6 +1,7 @@
 #!/bin/bash
 
 cp -v cloudwatch-handler/deploy/cloudwatch-handler-*-shaded.jar /usr/share/tomcat8/lib/
+cp -v handler-common/target/handler-common-*.jar /usr/share/tomcat8/lib/
 cp -v jdbc-handler/target/jdbc-handler-*.jar /usr/share/tomcat8/lib/
 
 for i in /usr/share/tomcat8/lib/*.jar